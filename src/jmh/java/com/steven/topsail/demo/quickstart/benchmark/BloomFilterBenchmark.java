@@ -0,0 +1,84 @@
+package com.steven.topsail.demo.quickstart.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.steven.topsail.demo.quickstart.filter.MappedBloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 黑名单判断，规模与 BloomTest 一致（50 万用户，误判率 1%）：
+ * Guava BloomFilter 对比 ListFilterService 使用的 MappedBloomFilter，
+ * 查询的 opId 一半在名单中、一半不在
+ *
+ * @author Steven
+ * @date 2021-02-01
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BloomFilterBenchmark {
+
+    private static final int INSERTIONS = 500000;
+
+    private static final int PROBES = 1024;
+
+    private BloomFilter<String> guava;
+
+    private MappedBloomFilter mapped;
+
+    private Path file;
+
+    private String[] probes;
+
+    private int cursor;
+
+    @Setup
+    public void setup() throws IOException {
+        guava = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), INSERTIONS, 0.01);
+        MappedBloomFilter.Builder builder = MappedBloomFilter.builder(INSERTIONS, 0.01);
+        for (int i = 0; i < INSERTIONS; i++) {
+            String opId = "SUPERUSR" + i;
+            guava.put(opId);
+            builder.put(opId);
+        }
+        file = Files.createTempFile("black-users", ".bloom");
+        mapped = builder.writeTo(file);
+
+        probes = new String[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = "SUPERUSR" + (i * 977 + (i % 2) * INSERTIONS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public boolean guava() {
+        return guava.mightContain(next());
+    }
+
+    @Benchmark
+    public boolean mapped() {
+        return mapped.mightContain(next());
+    }
+
+    private String next() {
+        return probes[cursor++ & (PROBES - 1)];
+    }
+}
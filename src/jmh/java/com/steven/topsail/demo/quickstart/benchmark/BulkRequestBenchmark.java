@@ -0,0 +1,85 @@
+package com.steven.topsail.demo.quickstart.benchmark;
+
+import com.steven.topsail.demo.quickstart.codec.JsonDocumentWriter;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组装一个 bulk 请求，与 createDemoDataBulk 每批的文档结构一致。
+ * 随机字段在 Setup 中预先生成，只测组装与序列化本身
+ *
+ * @author Steven
+ * @date 2021-02-01
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BulkRequestBenchmark {
+
+    @Param({"10000"})
+    private int docs;
+
+    private String[] users;
+    private String[] messages;
+    private String[] ids;
+    private final Date date = new Date();
+
+    private static final JsonDocumentWriter.Field USER = JsonDocumentWriter.Field.of("user");
+    private static final JsonDocumentWriter.Field DATE = JsonDocumentWriter.Field.of("date");
+    private static final JsonDocumentWriter.Field MESSAGE = JsonDocumentWriter.Field.of("message");
+
+    @Setup
+    public void setup() {
+        users = new String[docs];
+        messages = new String[docs];
+        ids = new String[docs];
+        for (int i = 0; i < docs; i++) {
+            users[i] = RandomStringUtils.randomAlphabetic(8);
+            messages[i] = RandomStringUtils.randomAlphabetic(16);
+            ids[i] = UUID.randomUUID().toString();
+        }
+    }
+
+    @Benchmark
+    public long assemble() {
+        BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < docs; i++) {
+            Map<String, Object> jsonMap = new HashMap<>(6);
+            jsonMap.put("user", users[i]);
+            jsonMap.put("date", date);
+            jsonMap.put("message", messages[i]);
+            bulkRequest.add(new IndexRequest("posts").id(ids[i]).source(jsonMap));
+        }
+        return bulkRequest.estimatedSizeInBytes();
+    }
+
+    @Benchmark
+    public long assembleEncoded() {
+        BulkRequest bulkRequest = new BulkRequest();
+        JsonDocumentWriter writer = new JsonDocumentWriter();
+        long now = date.getTime();
+        for (int i = 0; i < docs; i++) {
+            bulkRequest.add(writer.start()
+                .field(USER, users[i])
+                .dateField(DATE, now)
+                .field(MESSAGE, messages[i])
+                .toIndexRequest("posts", ids[i]));
+        }
+        return bulkRequest.estimatedSizeInBytes();
+    }
+}
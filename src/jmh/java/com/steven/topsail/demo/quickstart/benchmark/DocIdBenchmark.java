@@ -0,0 +1,40 @@
+package com.steven.topsail.demo.quickstart.benchmark;
+
+import org.elasticsearch.common.UUIDs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文档 id 生成：当前使用的 UUID.randomUUID（SecureRandom，多线程下争用），
+ * 对比 ES 自带的时间序 id 和随机 id
+ *
+ * @author Steven
+ * @date 2021-02-01
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DocIdBenchmark {
+
+    @Benchmark
+    public String randomUuid() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public String timeBasedUuid() {
+        return UUIDs.base64UUID();
+    }
+
+    @Benchmark
+    public String randomBase64Uuid() {
+        return UUIDs.randomBase64UUID();
+    }
+}
@@ -0,0 +1,82 @@
+package com.steven.topsail.demo.quickstart.benchmark;
+
+import com.steven.topsail.demo.quickstart.codec.JsonDocumentWriter;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文档 source 的三种构建方式，对应 SearchServiceImpl.indexRequest：
+ * HashMap、XContentBuilder、现成的 JSON 字符串，以及 JsonDocumentWriter 直接编码
+ *
+ * @author Steven
+ * @date 2021-02-01
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DocumentSourceBenchmark {
+
+    private static final JsonDocumentWriter.Field USER = JsonDocumentWriter.Field.of("user");
+    private static final JsonDocumentWriter.Field DATE = JsonDocumentWriter.Field.of("date");
+    private static final JsonDocumentWriter.Field MESSAGE = JsonDocumentWriter.Field.of("message");
+
+    private final Date date = new Date();
+
+    private final JsonDocumentWriter writer = new JsonDocumentWriter();
+
+    private final String jsonString = "{" +
+        "\"user\" : \"张三\"," +
+        "\"date\" : \"2013-01-30\"," +
+        "\"message\" : \"打酱油\"" +
+        "}";
+
+    @Benchmark
+    public BytesReference hashMap() {
+        Map<String, Object> jsonMap = new HashMap<>(6);
+        jsonMap.put("user", "李四");
+        jsonMap.put("date", date);
+        jsonMap.put("message", "王婆卖瓜越卖越夸");
+        return new IndexRequest("posts").source(jsonMap).source();
+    }
+
+    @Benchmark
+    public BytesReference xContentBuilder() throws IOException {
+        XContentBuilder xContentBuilder = XContentFactory.jsonBuilder();
+        xContentBuilder.startObject();
+        xContentBuilder.field("user", "王五");
+        xContentBuilder.timeField("date", date);
+        xContentBuilder.field("message", "卖烧饼");
+        xContentBuilder.endObject();
+        return new IndexRequest("posts").source(xContentBuilder).source();
+    }
+
+    @Benchmark
+    public BytesReference jsonString() {
+        return new IndexRequest("posts").source(jsonString, XContentType.JSON).source();
+    }
+
+    @Benchmark
+    public BytesReference jsonDocumentWriter() {
+        return writer.start()
+            .field(USER, "赵六")
+            .dateField(DATE, date.getTime())
+            .field(MESSAGE, "卖烧饼")
+            .toIndexRequest("posts", null)
+            .source();
+    }
+}
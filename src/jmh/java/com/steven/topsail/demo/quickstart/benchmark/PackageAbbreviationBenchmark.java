@@ -0,0 +1,89 @@
+package com.steven.topsail.demo.quickstart.benchmark;
+
+import com.steven.topsail.demo.quickstart.util.PackageAbbreviator;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 包路径简写：GenerateKeyTest 中原来的实现，对比 PackageAbbreviator 带缓存、不带缓存两种调用
+ *
+ * @author Steven
+ * @date 2021-02-01
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PackageAbbreviationBenchmark {
+
+    private static final int SIZE = 10000;
+
+    private String[] packageNames;
+
+    private final PackageAbbreviator abbreviator = new PackageAbbreviator(SIZE * 2);
+
+    private final StringBuilder out = new StringBuilder(64);
+
+    @Setup
+    public void setup() {
+        packageNames = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            StringBuilder buff = new StringBuilder(128);
+            for (int j = 0; j < 6; j++) {
+                buff.append(RandomStringUtils.randomAlphabetic(8, 15).toLowerCase()).append(".");
+            }
+            buff.append(RandomStringUtils.randomAlphabetic(8, 15).toLowerCase());
+            packageNames[i] = buff.toString();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void original(Blackhole blackhole) {
+        for (String packageName : packageNames) {
+            blackhole.consume(abbreviate(packageName));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void cached(Blackhole blackhole) {
+        for (String packageName : packageNames) {
+            out.setLength(0);
+            blackhole.consume(abbreviator.abbreviate(packageName, out).length());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void uncached(Blackhole blackhole) {
+        for (String packageName : packageNames) {
+            out.setLength(0);
+            blackhole.consume(PackageAbbreviator.appendAbbreviation(packageName, out).length());
+        }
+    }
+
+    private static String abbreviate(String packageName) {
+        StringBuilder buff = new StringBuilder(packageName.length() * 2);
+        char[] chars = packageName.toCharArray();
+
+        buff.append("@").append(chars[0]);
+        for (int i = 1; i < chars.length; i++) {
+            if ('.' == chars[i]) {
+                char c = chars[i + 1];
+                buff.append('.').append(c);
+                i++;
+            }
+        }
+        return buff.toString();
+    }
+}
@@ -0,0 +1,204 @@
+package com.steven.topsail.demo.quickstart.async;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * ES 异步调用执行器
+ * <p>
+ * 把 RestHighLevelClient 的 *Async 方法转成 CompletableFuture，供 Controller 直接返回，
+ * 请求在途期间不占用 Tomcat 线程。同时在途的请求数有上限，超过时立即失败（503），
+ * 不排队；每个请求有超时（504），超时后取消底层 HTTP 请求并释放名额。
+ * <p>
+ * future 在 ES 客户端的 I/O 线程上完成，后续的 thenApply 等回调只能做轻量的内存操作。
+ *
+ * @author Steven
+ * @date 2021-02-04
+ */
+@Slf4j
+@Component
+public class EsAsyncExecutor {
+
+    @Value("${async.max-outstanding:256}")
+    private int maxOutstanding;
+
+    @Value("${async.timeout:10000}")
+    private long timeout;
+
+    private Semaphore outstanding;
+
+    /**
+     * 超时计时器专用线程，不与定时任务共用 taskScheduler，避免定时任务占满线程时超时失效；
+     * 请求完成后计时器即取消，取消时从队列移除，不会堆积
+     */
+    private ScheduledThreadPoolExecutor timer;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        outstanding = new Semaphore(maxOutstanding);
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "EsAsyncTimeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        log.info("ES 异步执行器启动，maxOutstanding: {}，timeout: {} ms", maxOutstanding, timeout);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * 执行一次 *Async 调用
+     *
+     * @param name 操作名，用于日志
+     * @param call 发起调用，返回可取消的句柄，例如 listener -> client.getAsync(request, options, listener)
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> execute(String name, Function<ActionListener<T>, Cancellable> call) {
+        // 在调用线程写入、在计时器线程读取
+        AtomicReference<Cancellable> cancellable = new AtomicReference<>();
+        return limit(name, () -> {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            cancellable.set(call.apply(new ActionListener<T>() {
+                @Override
+                public void onResponse(T response) {
+                    future.complete(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }));
+            return future;
+        }, () -> {
+            Cancellable handle = cancellable.get();
+            if (null != handle) {
+                handle.cancel();
+            }
+        });
+    }
+
+    /**
+     * 对已经是 future 形式的异步操作（如 get 合并器）施加同样的名额和超时限制
+     *
+     * @param name
+     * @param call
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> limit(String name, Supplier<CompletableFuture<T>> call) {
+        return limit(name, call, null);
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    public int getOutstanding() {
+        return maxOutstanding - outstanding.availablePermits();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("maxOutstanding", maxOutstanding);
+        map.put("outstanding", getOutstanding());
+        map.put("submitted", submitted.sum());
+        map.put("rejected", rejected.sum());
+        map.put("timedOut", timedOut.sum());
+        map.put("failed", failed.sum());
+        return map;
+    }
+
+    /**
+     * 同 {@link #limit(String, Supplier)}，超时时执行 onTimeout 取消底层请求
+     *
+     * @param name
+     * @param call
+     * @param onTimeout 可以为 null
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> limit(String name, Supplier<CompletableFuture<T>> call, Runnable onTimeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!outstanding.tryAcquire()) {
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException("ES 在途请求已达上限 " + maxOutstanding + "，拒绝: " + name));
+            return result;
+        }
+        submitted.increment();
+
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                outstanding.release();
+            }
+        };
+
+        ScheduledFuture<?> timeoutTask = timer.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(name + " 超过 " + timeout + " ms 未完成"))) {
+                timedOut.increment();
+                log.warn("ES 异步调用超时: {}", name);
+                if (null != onTimeout) {
+                    onTimeout.run();
+                }
+                release.run();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            timeoutTask.cancel(false);
+            release.run();
+            failed.increment();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        future.whenComplete((value, e) -> {
+            timeoutTask.cancel(false);
+            release.run();
+            if (null == e) {
+                result.complete(value);
+            } else if (result.completeExceptionally(e)) {
+                failed.increment();
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,353 @@
+package com.steven.topsail.demo.quickstart.async;
+
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * 对冲读
+ * <p>
+ * 读请求先以 preference=_prefer_nodes:A 发出，超过该操作最近一个窗口的 p95（可配置）仍未返回时，
+ * 以 _prefer_nodes:B 向另一个数据节点上的分片副本再发一次相同的请求，先返回的结果生效，另一个请求取消。
+ * A、B 在数据节点列表上轮转，读负载仍然均匀分布。
+ * <p>
+ * 对冲次数受预算限制：每个请求积累 budget 个令牌，对冲一次消耗一个，对冲请求最多占 budget 比例，
+ * 集群整体变慢时不会把读流量翻倍。数据节点少于两个或未开启时直接发送，不带 preference。
+ * <p>
+ * 对冲计时器和节点刷新在专用线程上运行，不与 taskScheduler 上会阻塞的定时任务共用线程，
+ * 集群变慢、定时任务占满线程时对冲仍能按时触发。节点刷新为异步请求，不占用该线程。
+ *
+ * @author Steven
+ * @date 2021-02-09
+ */
+@Slf4j
+@Component
+public class HedgedReader {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    /**
+     * 窗口内样本少于该值时不更新阈值
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * 令牌上限，允许短时间内的突发对冲
+     */
+    private static final double MAX_TOKENS = 10;
+
+    @Value("${hedge.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hedge.percentile:95}")
+    private double percentile;
+
+    @Value("${hedge.min-delay:5}")
+    private long minDelay;
+
+    @Value("${hedge.max-delay:1000}")
+    private long maxDelay;
+
+    /**
+     * 对冲请求占全部读请求的比例上限
+     */
+    @Value("${hedge.budget:0.05}")
+    private double budget;
+
+    @Value("${hedge.window:10000}")
+    private long window;
+
+    @Value("${hedge.node-refresh-interval:60000}")
+    private long nodeRefreshInterval;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private EsAsyncExecutor esAsyncExecutor;
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+    /**
+     * 操作名 -> 对冲阈值（毫秒），没有的按 maxDelay
+     */
+    private volatile Map<String, Long> thresholds = new ConcurrentHashMap<>();
+
+    private volatile String[] dataNodes = new String[0];
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private double tokens = MAX_TOKENS;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "HedgedReader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 请求先于阈值返回时计时器即取消，取消时从队列移除，不会堆积
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.scheduleWithFixedDelay(this::refreshNodes, 0, nodeRefreshInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::rotateThresholds, window, window, TimeUnit.MILLISECONDS);
+        log.info("对冲读开启，p{}，延迟 {}~{} ms，预算: {}", percentile, minDelay, maxDelay, budget);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 发起一次读请求，受 EsAsyncExecutor 的名额和超时约束，超时时两个请求都取消
+     *
+     * @param name 操作名，按名称分别统计阈值，例如 "get posts"
+     * @param call (preference, listener) -> cancellable，preference 可能为 null
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> read(String name, BiFunction<String, ActionListener<T>, Cancellable> call) {
+        Attempts<T> attempts = new Attempts<>();
+        return esAsyncExecutor.limit(name, () -> hedge(name, call, attempts), attempts::cancel);
+    }
+
+    /**
+     * 发起一次读请求，不经过 EsAsyncExecutor，供已经自行限流的调用方（如 get 合并器）使用
+     *
+     * @param name
+     * @param call
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> hedge(String name, BiFunction<String, ActionListener<T>, Cancellable> call) {
+        return hedge(name, call, new Attempts<>());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long r = reads.sum();
+        long h = hedged.sum();
+        map.put("enabled", enabled);
+        map.put("dataNodes", dataNodes.length);
+        map.put("reads", r);
+        map.put("hedged", h);
+        map.put("hedgeRatio", r == 0 ? 0 : (double) h / r);
+        map.put("hedgeWins", hedgeWins.sum());
+        map.put("budgetExhausted", budgetExhausted.sum());
+        map.put("thresholds", new LinkedHashMap<>(thresholds));
+        return map;
+    }
+
+    private <T> CompletableFuture<T> hedge(String name, BiFunction<String, ActionListener<T>, Cancellable> call, Attempts<T> attempts) {
+        String[] nodes = dataNodes;
+        if (!enabled || nodes.length < 2) {
+            attempts.start(0, null, call);
+            return attempts.result;
+        }
+        reads.increment();
+        earn();
+
+        int i = Math.floorMod(next.getAndIncrement(), nodes.length);
+        String first = "_prefer_nodes:" + nodes[i];
+        String second = "_prefer_nodes:" + nodes[(i + 1) % nodes.length];
+        long start = System.nanoTime();
+        attempts.start(0, first, call);
+
+        long delay = thresholds.getOrDefault(name, maxDelay);
+        ScheduledFuture<?> timer = scheduler.schedule(() -> {
+            if (attempts.result.isDone()) {
+                return;
+            }
+            if (!spend()) {
+                budgetExhausted.increment();
+                return;
+            }
+            hedged.increment();
+            attempts.start(1, second, call);
+        }, delay, TimeUnit.MILLISECONDS);
+
+        attempts.result.whenComplete((value, e) -> {
+            timer.cancel(false);
+            if (null == e) {
+                record(name, System.nanoTime() - start);
+                if (1 == attempts.winner) {
+                    hedgeWins.increment();
+                }
+            }
+        });
+        return attempts.result;
+    }
+
+    private synchronized void earn() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+
+    private synchronized boolean spend() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * 记录从发出到首个结果返回的耗时；对冲成功时记录的是首个请求耗时的下界
+     */
+    private void record(String name, long nanos) {
+        long micros = Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_TRACKABLE_MICROS);
+        recorders.computeIfAbsent(name, k -> new Recorder(HIGHEST_TRACKABLE_MICROS, 3)).recordValue(micros);
+    }
+
+    private void rotateThresholds() {
+        Map<String, Long> updated = new ConcurrentHashMap<>(thresholds);
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            Histogram histogram = entry.getValue().getIntervalHistogram();
+            if (histogram.getTotalCount() < MIN_SAMPLES) {
+                continue;
+            }
+            long millis = TimeUnit.MICROSECONDS.toMillis(histogram.getValueAtPercentile(percentile));
+            updated.put(entry.getKey(), Math.max(minDelay, Math.min(maxDelay, millis)));
+        }
+        thresholds = updated;
+    }
+
+    /**
+     * 数据节点 id 列表，_prefer_nodes 只接受节点 id
+     */
+    private void refreshNodes() {
+        ResponseListener listener = new ResponseListener() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onSuccess(Response response) {
+                try {
+                    Map<String, Object> body;
+                    try (InputStream in = response.getEntity().getContent()) {
+                        body = XContentHelper.convertToMap(XContentType.JSON.xContent(), in, false);
+                    }
+                    Map<String, Object> nodes = (Map<String, Object>) body.get("nodes");
+                    String[] ids = null == nodes ? new String[0] : nodes.keySet().toArray(new String[0]);
+                    if (ids.length != dataNodes.length) {
+                        log.info("对冲读数据节点: {}", String.join(",", ids));
+                    }
+                    dataNodes = ids;
+                } catch (Exception e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                log.warn("获取数据节点失败: {}", e.toString());
+            }
+        };
+        try {
+            restHighLevelClient.getLowLevelClient().performRequestAsync(new Request("GET", "/_nodes/data:true/none"), listener);
+        } catch (RuntimeException e) {
+            // 周期任务抛出异常后不再执行
+            listener.onFailure(e);
+        }
+    }
+
+    /**
+     * 同一次读的两个请求，先返回者生效并取消另一个；两个都失败时才失败
+     */
+    private static final class Attempts<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Cancellable[] cancellables = new Cancellable[2];
+        private int started;
+        private int failed;
+        private volatile int winner = -1;
+
+        private void start(int index, String preference, BiFunction<String, ActionListener<T>, Cancellable> call) {
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                started++;
+            }
+            Cancellable cancellable = call.apply(preference, new ActionListener<T>() {
+                @Override
+                public void onResponse(T response) {
+                    synchronized (Attempts.this) {
+                        if (result.isDone() || -1 != winner) {
+                            return;
+                        }
+                        winner = index;
+                    }
+                    result.complete(response);
+                    cancelOther(index);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    boolean last;
+                    synchronized (Attempts.this) {
+                        last = ++failed >= started;
+                    }
+                    // 另一个请求仍在途时等它的结果；首个请求失败时还没有对冲，直接失败
+                    if (last) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+            synchronized (this) {
+                cancellables[index] = cancellable;
+                if (result.isDone() && winner != index) {
+                    cancellable.cancel();
+                }
+            }
+        }
+
+        private synchronized void cancelOther(int index) {
+            Cancellable other = cancellables[1 - index];
+            if (null != other) {
+                other.cancel();
+            }
+        }
+
+        private synchronized void cancel() {
+            for (Cancellable cancellable : cancellables) {
+                if (null != cancellable) {
+                    cancellable.cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.steven.topsail.demo.quickstart.batch;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * bulk 批大小与并发数的 AIMD 控制器
+ * <p>
+ * 每个 bulk 完成后根据反馈调整：
+ * <ul>
+ * <li>有条目被拒绝（429），或整个请求失败（连接失败、超时等）：批大小、并发数减半；</li>
+ * <li>往返耗时超过目标值：批大小乘以 0.75，并发数不变；</li>
+ * <li>否则，批次已攒满（达到文档数或字节数上限）时批大小加一个步长，连续 concurrency 个攒满的 bulk 正常时并发数加 1；
+ * 批次未攒满说明上限不是瓶颈，保持不变，避免写入稀疏时上限一路涨到最大值。</li>
+ * </ul>
+ * 批大小同时按文档数和字节数限制，两者按相同比例调整，都限制在配置的上下界之内。
+ * 一次减小之后，减小前已发出的 bulk 的反馈不再触发减小，避免同一次拥塞被重复惩罚。
+ * <p>
+ * 并发数由 {@link #acquire()} / {@link #release()} 控制，上限变小时在途请求自然完成，不会被打断。
+ *
+ * @author Steven
+ * @date 2021-02-08
+ */
+@Slf4j
+public class AdaptiveBulkController {
+
+    public enum Decision {
+        HOLD, INCREASE, DECREASE_REJECTED, DECREASE_FAILED, DECREASE_LATENCY
+    }
+
+    private static final double LATENCY_DECREASE = 0.75;
+
+    private static final double REJECTED_DECREASE = 0.5;
+
+    private static final int STEPS = 20;
+
+    private final int minActions;
+    private final int maxActions;
+    private final long minBytes;
+    private final long maxBytes;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+
+    private double actions;
+    private double bytes;
+    private int concurrency;
+    private int inFlight;
+
+    /**
+     * 每次减小加一，bulk 发出时记录当时的值
+     */
+    private long epoch;
+
+    private int healthyInRow;
+
+    private double avgLatencyMillis;
+    private Decision lastDecision = Decision.HOLD;
+    private long increases;
+    private long decreases;
+    private long rejectedItems;
+    private long failedBulks;
+    private long sentBytes;
+    private final long startNanos = System.nanoTime();
+
+    public AdaptiveBulkController(int minActions, int maxActions, int initialActions,
+                                  long minBytes, long maxBytes, long initialBytes,
+                                  int minConcurrency, int maxConcurrency, int initialConcurrency,
+                                  long targetLatencyMillis) {
+        if (minActions <= 0 || minActions > maxActions || minBytes <= 0 || minBytes > maxBytes
+            || minConcurrency <= 0 || minConcurrency > maxConcurrency || targetLatencyMillis <= 0) {
+            throw new IllegalArgumentException("批大小、并发数的上下界或目标耗时不合法");
+        }
+        this.minActions = minActions;
+        this.maxActions = maxActions;
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.actions = clamp(initialActions, minActions, maxActions);
+        this.bytes = clamp(initialBytes, minBytes, maxBytes);
+        this.concurrency = (int) clamp(initialConcurrency, minConcurrency, maxConcurrency);
+    }
+
+    public synchronized int batchActions() {
+        return (int) actions;
+    }
+
+    public synchronized long batchBytes() {
+        return (long) bytes;
+    }
+
+    /**
+     * 等待并发名额
+     *
+     * @return 发送时的 epoch，完成后传给 {@link #onResult}
+     * @throws InterruptedException
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= concurrency) {
+            wait();
+        }
+        inFlight++;
+        return epoch;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * 记录一个 bulk 的反馈并调整
+     *
+     * @param sentEpoch    发送时 {@link #acquire()} 返回的值
+     * @param items        条目数
+     * @param rejected     被拒绝的条目数，整个请求被拒绝时等于 items
+     * @param failed       整个请求因 429 以外的原因失败（连接失败、超时等）
+     * @param full         批次是否攒满了文档数或字节数上限
+     * @param payloadBytes 请求大小
+     * @param latencyNanos 往返耗时，失败时为发出到失败的耗时
+     * @return 本次的调整
+     */
+    public synchronized Decision onResult(long sentEpoch, int items, int rejected, boolean failed, boolean full,
+                                          long payloadBytes, long latencyNanos) {
+        double latencyMillis = latencyNanos / 1e6;
+        avgLatencyMillis = 0 == avgLatencyMillis ? latencyMillis : avgLatencyMillis * 0.8 + latencyMillis * 0.2;
+        rejectedItems += rejected;
+        sentBytes += payloadBytes;
+        if (failed) {
+            failedBulks++;
+        }
+
+        Decision decision;
+        if (rejected > 0 || failed || latencyNanos > targetLatencyNanos) {
+            healthyInRow = 0;
+            if (sentEpoch != epoch) {
+                decision = Decision.HOLD;
+            } else if (rejected > 0 || failed) {
+                decision = rejected > 0 ? Decision.DECREASE_REJECTED : Decision.DECREASE_FAILED;
+                scale(REJECTED_DECREASE);
+                concurrency = Math.max(minConcurrency, concurrency / 2);
+            } else {
+                decision = Decision.DECREASE_LATENCY;
+                scale(LATENCY_DECREASE);
+            }
+        } else if (!full) {
+            decision = Decision.HOLD;
+        } else {
+            decision = Decision.INCREASE;
+            actions = clamp(actions + (double) maxActions / STEPS, minActions, maxActions);
+            bytes = clamp(bytes + (double) maxBytes / STEPS, minBytes, maxBytes);
+            if (++healthyInRow >= concurrency && concurrency < maxConcurrency) {
+                concurrency++;
+                healthyInRow = 0;
+                notifyAll();
+            }
+        }
+
+        if (Decision.DECREASE_REJECTED == decision || Decision.DECREASE_FAILED == decision
+            || Decision.DECREASE_LATENCY == decision) {
+            epoch++;
+            decreases++;
+            log.debug("bulk 调整: {}，actions: {}，bytes: {}，concurrency: {}，耗时: {} ms，拒绝: {}/{}",
+                decision, (int) actions, (long) bytes, concurrency, (long) latencyMillis, rejected, items);
+        } else if (Decision.INCREASE == decision) {
+            increases++;
+        }
+        lastDecision = decision;
+        return decision;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        map.put("batchActions", (int) actions);
+        map.put("batchBytes", (long) bytes);
+        map.put("concurrency", concurrency);
+        map.put("inFlight", inFlight);
+        map.put("avgLatencyMillis", avgLatencyMillis);
+        map.put("lastDecision", lastDecision);
+        map.put("increases", increases);
+        map.put("decreases", decreases);
+        map.put("rejectedItems", rejectedItems);
+        map.put("failedBulks", failedBulks);
+        map.put("bytesPerSecond", seconds <= 0 ? 0 : sentBytes / seconds);
+        return map;
+    }
+
+    private void scale(double factor) {
+        actions = clamp(actions * factor, minActions, maxActions);
+        bytes = clamp(bytes * factor, minBytes, maxBytes);
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
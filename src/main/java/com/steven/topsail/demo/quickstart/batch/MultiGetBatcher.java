@@ -0,0 +1,166 @@
+package com.steven.topsail.demo.quickstart.batch;
+
+import com.steven.topsail.demo.quickstart.async.HedgedReader;
+import com.steven.topsail.demo.quickstart.cache.DocumentKey;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单文档 get 合并器
+ * <p>
+ * 在一个很短的时间窗口内到达的 (index, id) 查询合并成一次 _mget，
+ * 窗口到期或攒够 maxSize 条时发送，每个调用方通过 future 拿到自己的结果。
+ * 开启对冲读时 _mget 经 {@link HedgedReader} 发送。
+ *
+ * @author Steven
+ * @date 2021-01-25
+ */
+@Slf4j
+@Component
+public class MultiGetBatcher {
+
+    @Value("${batch.get.window:2}")
+    private long window;
+
+    @Value("${batch.get.max-size:200}")
+    private int maxSize;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private HedgedReader hedgedReader;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 当前窗口内待发送的查询，同一个键只发一次
+     */
+    private Map<DocumentKey, List<CompletableFuture<GetResponse>>> pending = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MultiGetBatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("get 合并器启动，window: {} ms，maxSize: {}", window, maxSize);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    /**
+     * 提交一次单文档查询
+     *
+     * @param index
+     * @param id
+     * @return
+     */
+    public CompletableFuture<GetResponse> get(String index, String id) {
+        CompletableFuture<GetResponse> future = new CompletableFuture<>();
+        Map<DocumentKey, List<CompletableFuture<GetResponse>>> full = null;
+        synchronized (this) {
+            boolean first = pending.isEmpty();
+            pending.computeIfAbsent(new DocumentKey(index, id), k -> new ArrayList<>(1)).add(future);
+            if (pending.size() >= maxSize) {
+                full = pending;
+                pending = new LinkedHashMap<>();
+            } else if (first) {
+                scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        requests.increment();
+        if (null != full) {
+            send(full);
+        }
+        return future;
+    }
+
+    /**
+     * 立即发送当前窗口内的查询
+     */
+    public void flush() {
+        Map<DocumentKey, List<CompletableFuture<GetResponse>>> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        send(batch);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long r = requests.sum();
+        long b = batches.sum();
+        map.put("requests", r);
+        map.put("batches", b);
+        map.put("averageBatchSize", b == 0 ? 0 : (double) r / b);
+        return map;
+    }
+
+    private void send(Map<DocumentKey, List<CompletableFuture<GetResponse>>> batch) {
+        List<DocumentKey> keys = new ArrayList<>(batch.keySet());
+        List<List<CompletableFuture<GetResponse>>> waiters = new ArrayList<>(batch.values());
+        batches.increment();
+
+        hedgedReader.<MultiGetResponse>hedge("mget batch", (preference, listener) -> {
+            MultiGetRequest multiGetRequest = new MultiGetRequest().preference(preference);
+            for (DocumentKey key : keys) {
+                multiGetRequest.add(new MultiGetRequest.Item(key.getIndex(), key.getId()));
+            }
+            return restHighLevelClient.mgetAsync(multiGetRequest, RequestOptions.DEFAULT, listener);
+        }).whenComplete((multiGetResponse, e) -> {
+            if (null != e) {
+                log.warn("_mget 失败，{} 个文档", waiters.size(), e);
+                for (List<CompletableFuture<GetResponse>> futures : waiters) {
+                    for (CompletableFuture<GetResponse> future : futures) {
+                        future.completeExceptionally(e);
+                    }
+                }
+                return;
+            }
+            MultiGetItemResponse[] responses = multiGetResponse.getResponses();
+            for (int i = 0; i < responses.length; i++) {
+                MultiGetItemResponse response = responses[i];
+                for (CompletableFuture<GetResponse> future : waiters.get(i)) {
+                    if (response.isFailed()) {
+                        future.completeExceptionally(response.getFailure().getFailure());
+                    } else {
+                        future.complete(response.getResponse());
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,474 @@
+package com.steven.topsail.demo.quickstart.batch;
+
+import com.steven.topsail.demo.quickstart.cache.DocumentCache;
+import com.steven.topsail.demo.quickstart.cache.DocumentKey;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
+import com.steven.topsail.demo.quickstart.replica.LocalReplicaService;
+import com.steven.topsail.demo.quickstart.service.IReindexService;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 局部更新合并器（write-behind）
+ * <p>
+ * 窗口内对同一个 (index, id) 的局部更新逐字段合并，后写覆盖先写（对象字段按 ES 的规则递归合并），
+ * 窗口到期或待发送的文档数达到 maxKeys 时整体作为一个 bulk update 发送。同一时间只有一个批次在途，
+ * 保证同一文档的更新按提交顺序生效；在途期间到达的更新继续合并，收到响应后立即发送下一批。
+ * 每个调用方拿到一个 future，在合并后的更新被 ES 确认时完成；只关心吞吐的调用方可以不等待。
+ * <p>
+ * 尚未确认的更新（包括已发出、等待响应的）通过 {@link #overlay} 叠加到读到的文档上，
+ * 保证经本服务读取时能看到自己的写入。
+ * <p>
+ * 被限流（429）、暂不可用（503）或整个请求失败的更新保留合并后的字段，重新并入待发送窗口，
+ * 窗口内更新的字段覆盖在其上，最多重试 max-retries 次；其他失败记入最近失败列表，可从 stats 查看。
+ * 在途期间待发送的文档数达到 max-pending 时，新文档的更新直接拒绝（已在窗口中的文档仍可合并）。
+ * <p>
+ * 刷新策略由 refresh-policy 决定，默认不等待刷新。应用停止时先等待在途批次，再发送并等待剩余的更新，
+ * 总共最多等待 shutdown-timeout 毫秒，超时未确认的更新以失败结束并记录日志。
+ *
+ * @author Steven
+ * @date 2021-02-07
+ */
+@Slf4j
+@Component
+public class UpdateCoalescer {
+
+    private static final int MAX_RECENT_FAILURES = 100;
+
+    @Value("${batch.update.enabled:false}")
+    private boolean enabled;
+
+    @Value("${batch.update.window:200}")
+    private long window;
+
+    @Value("${batch.update.max-keys:1000}")
+    private int maxKeys;
+
+    /**
+     * bulk 请求的刷新策略：NONE、WAIT_UNTIL、IMMEDIATE
+     */
+    @Value("${batch.update.refresh-policy:NONE}")
+    private WriteRequest.RefreshPolicy refreshPolicy;
+
+    @Value("${batch.update.retry-on-conflict:3}")
+    private int retryOnConflict;
+
+    @Value("${batch.update.max-retries:3}")
+    private int maxRetries;
+
+    @Value("${batch.update.max-pending:10000}")
+    private int maxPending;
+
+    @Value("${batch.update.shutdown-timeout:10000}")
+    private long shutdownTimeout;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    @Autowired
+    private LocalReplicaService localReplicaService;
+
+    @Autowired
+    private IReindexService reindexService;
+
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * 最近的最终失败：index/id 及原因
+     */
+    private final Deque<String> recentFailures = new ArrayDeque<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 当前窗口内待发送的更新
+     */
+    private Map<DocumentKey, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * 已发出、尚未收到响应的批次，没有时为 null
+     */
+    private Map<DocumentKey, Pending> inFlight;
+
+    /**
+     * 待发送与在途的文档数，为 0 时读路径不必加锁
+     */
+    private volatile int buffered;
+
+    private boolean closed;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "UpdateCoalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("更新合并器 enabled: {}，window: {} ms，maxKeys: {}，refreshPolicy: {}", enabled, window, maxKeys, refreshPolicy);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        long deadline = System.currentTimeMillis() + shutdownTimeout;
+        flush();
+        List<Pending> lost = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            // 在途批次确认后会立即发送在途期间积攒的更新，等到全部确认或超时
+            long remaining;
+            while (buffered > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (buffered > 0) {
+                lost.addAll(pending.values());
+                log.warn("更新合并器停止时仍有 {} 个文档的更新未确认，其中 {} 个未发送", buffered, pending.size());
+                pending = new LinkedHashMap<>();
+            }
+        }
+        for (Pending entry : lost) {
+            entry.fail(new IllegalStateException("应用停止，更新未发送"));
+        }
+        scheduler.shutdown();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 提交一次局部更新
+     *
+     * @param index
+     * @param id
+     * @param fields 要修改的字段
+     * @return 合并后的更新被 ES 确认时完成
+     */
+    public CompletableFuture<Void> update(String index, String id, Map<String, Object> fields) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Map<DocumentKey, Pending> full = null;
+        synchronized (this) {
+            boolean first = pending.isEmpty();
+            Pending entry = pending.get(new DocumentKey(index, id));
+            if (null == entry && (closed || pending.size() >= maxPending)) {
+                rejected.increment();
+                future.completeExceptionally(new RejectedExecutionException(
+                    closed ? "更新合并器已停止" : "待合并的文档数超过上限: " + maxPending));
+                return future;
+            }
+            if (null == entry) {
+                entry = new Pending();
+                pending.put(new DocumentKey(index, id), entry);
+                buffered++;
+            } else {
+                merged.increment();
+            }
+            merge(entry.fields, fields);
+            entry.waiters.add(future);
+
+            if (pending.size() >= maxKeys) {
+                full = detach();
+            } else if (first && null == inFlight) {
+                scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        updates.increment();
+        if (null != full) {
+            send(full);
+        }
+        return future;
+    }
+
+    /**
+     * 立即发送当前窗口内的更新
+     */
+    public void flush() {
+        Map<DocumentKey, Pending> batch;
+        synchronized (this) {
+            batch = detach();
+        }
+        if (null != batch) {
+            send(batch);
+        }
+    }
+
+    /**
+     * 把尚未确认的更新叠加到文档上
+     *
+     * @param index
+     * @param id
+     * @param source 从缓存或 ES 读到的文档，null 表示不存在
+     * @return 没有未确认的更新时返回 source 本身，否则返回叠加后的副本
+     */
+    public Map<String, Object> overlay(String index, String id, Map<String, Object> source) {
+        if (0 == buffered || null == source) {
+            return source;
+        }
+        DocumentKey key = new DocumentKey(index, id);
+        Map<String, Object> result = source;
+        synchronized (this) {
+            if (null != inFlight) {
+                result = overlay(result, source, inFlight.get(key));
+            }
+            result = overlay(result, source, pending.get(key));
+        }
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long u = updates.sum();
+        long s = sent.sum();
+        map.put("enabled", enabled);
+        map.put("updates", u);
+        map.put("merged", merged.sum());
+        map.put("sent", s);
+        map.put("batches", batches.sum());
+        map.put("failed", failed.sum());
+        map.put("retried", retried.sum());
+        map.put("rejected", rejected.sum());
+        map.put("buffered", buffered);
+        map.put("mergeRatio", s == 0 ? 0 : (double) u / s);
+        synchronized (recentFailures) {
+            map.put("recentFailures", new ArrayList<>(recentFailures));
+        }
+        return map;
+    }
+
+    /**
+     * 取出当前窗口作为在途批次，调用方持有 this 锁
+     *
+     * @return 没有待发送的更新或已有批次在途时返回 null
+     */
+    private Map<DocumentKey, Pending> detach() {
+        if (pending.isEmpty() || null != inFlight) {
+            return null;
+        }
+        inFlight = pending;
+        pending = new LinkedHashMap<>();
+        return inFlight;
+    }
+
+    private void send(Map<DocumentKey, Pending> batch) {
+        List<DocumentKey> keys = new ArrayList<>(batch.keySet());
+        BulkRequest bulkRequest = new BulkRequest().setRefreshPolicy(refreshPolicy);
+        for (DocumentKey key : keys) {
+            bulkRequest.add(new UpdateRequest(key.getIndex(), key.getId())
+                .doc(batch.get(key).fields)
+                .retryOnConflict(retryOnConflict));
+        }
+        batches.increment();
+        sent.add(keys.size());
+
+        restHighLevelClient.bulkAsync(bulkRequest, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse bulkResponse) {
+                Set<String> indices = new HashSet<>();
+                Map<DocumentKey, Pending> retries = new LinkedHashMap<>();
+                Set<DocumentKey> blocked = new HashSet<>();
+                BulkItemResponse[] items = bulkResponse.getItems();
+                for (int i = 0; i < items.length; i++) {
+                    BulkItemResponse item = items[i];
+                    DocumentKey key = keys.get(i);
+                    indices.add(key.getIndex());
+                    localReplicaService.written(key.getIndex(), key.getId());
+                    if (item.isFailed()) {
+                        documentCache.evict(key.getIndex(), key.getId());
+                        Pending entry = batch.get(key);
+                        if (isRetryable(item.getFailure().getStatus()) && entry.attempts < maxRetries) {
+                            retries.put(key, entry);
+                        } else if (isWriteBlocked(key, item)) {
+                            // 重建索引禁写窗口，窗口结束后重发即可，不计重试次数
+                            retries.put(key, entry);
+                            blocked.add(key);
+                        } else {
+                            giveUp(key, entry, item.getFailure().getCause(), item.getFailureMessage());
+                        }
+                    } else {
+                        documentCache.evict(key.getIndex(), key.getId(), item.getVersion());
+                        batch.get(key).complete();
+                    }
+                }
+                for (String index : indices) {
+                    searchResultCache.invalidate(index);
+                }
+                acknowledged(batch, retries, blocked);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                log.warn("合并更新 bulk 请求失败，{} 个文档", keys.size(), e);
+                Map<DocumentKey, Pending> retries = new LinkedHashMap<>();
+                for (DocumentKey key : keys) {
+                    documentCache.evict(key.getIndex(), key.getId());
+                    localReplicaService.written(key.getIndex(), key.getId());
+                    Pending entry = batch.get(key);
+                    if (entry.attempts < maxRetries) {
+                        retries.put(key, entry);
+                    } else {
+                        giveUp(key, entry, e, e.toString());
+                    }
+                }
+                acknowledged(batch, retries, Collections.emptySet());
+            }
+        });
+    }
+
+    /**
+     * 在途批次已确认，在途期间积攒的更新立即发送；有需要重试的更新时等一个窗口再发送
+     *
+     * @param batch
+     * @param retries 需要重试的更新，字段并到窗口中同一文档的更新之前，窗口中的新值覆盖旧值
+     * @param blocked 因禁写窗口重试的更新，不计重试次数
+     */
+    private void acknowledged(Map<DocumentKey, Pending> batch, Map<DocumentKey, Pending> retries, Set<DocumentKey> blocked) {
+        Map<DocumentKey, Pending> next = null;
+        synchronized (this) {
+            inFlight = null;
+            buffered -= batch.size();
+            for (Map.Entry<DocumentKey, Pending> entry : retries.entrySet()) {
+                Pending retry = entry.getValue();
+                if (!blocked.contains(entry.getKey())) {
+                    retry.attempts++;
+                }
+                Pending newer = pending.remove(entry.getKey());
+                if (null == newer) {
+                    buffered++;
+                } else {
+                    merge(retry.fields, newer.fields);
+                    retry.waiters.addAll(newer.waiters);
+                }
+                pending.put(entry.getKey(), retry);
+            }
+            retried.add(retries.size());
+            if (!retries.isEmpty() && !closed) {
+                scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            } else {
+                next = detach();
+            }
+            notifyAll();
+        }
+        if (null != next) {
+            send(next);
+        }
+    }
+
+    private void giveUp(DocumentKey key, Pending entry, Throwable cause, String reason) {
+        failed.increment();
+        log.warn("合并更新失败，index: {}，id: {}，已重试 {} 次，原因: {}", key.getIndex(), key.getId(), entry.attempts, reason);
+        synchronized (recentFailures) {
+            if (recentFailures.size() >= MAX_RECENT_FAILURES) {
+                recentFailures.removeFirst();
+            }
+            recentFailures.addLast(key.getIndex() + "/" + key.getId() + ": " + reason);
+        }
+        entry.fail(cause);
+    }
+
+    private boolean isWriteBlocked(DocumentKey key, BulkItemResponse item) {
+        return RestStatus.FORBIDDEN == item.getFailure().getStatus()
+            && (reindexService.isWriteBlocked(key.getIndex()) || reindexService.isWriteBlocked(item.getIndex()));
+    }
+
+    private static boolean isRetryable(RestStatus status) {
+        return RestStatus.TOO_MANY_REQUESTS == status || RestStatus.SERVICE_UNAVAILABLE == status;
+    }
+
+    private static Map<String, Object> overlay(Map<String, Object> current, Map<String, Object> source, Pending entry) {
+        if (null == entry) {
+            return current;
+        }
+        Map<String, Object> copy = current == source ? deepCopy(source) : current;
+        merge(copy, entry.fields);
+        return copy;
+    }
+
+    /**
+     * 与 ES 局部更新的语义一致：对象字段递归合并，其他值直接覆盖
+     */
+    @SuppressWarnings("unchecked")
+    static void merge(Map<String, Object> target, Map<String, Object> update) {
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            Object value = entry.getValue();
+            Object existing = target.get(entry.getKey());
+            if (value instanceof Map && existing instanceof Map) {
+                merge((Map<String, Object>) existing, (Map<String, Object>) value);
+            } else if (value instanceof Map) {
+                Map<String, Object> copy = new LinkedHashMap<>();
+                merge(copy, (Map<String, Object>) value);
+                target.put(entry.getKey(), copy);
+            } else {
+                target.put(entry.getKey(), value);
+            }
+        }
+    }
+
+    private static Map<String, Object> deepCopy(Map<String, Object> source) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        merge(copy, source);
+        return copy;
+    }
+
+    private static final class Pending {
+        private final Map<String, Object> fields = new LinkedHashMap<>();
+        private final List<CompletableFuture<Void>> waiters = new ArrayList<>(1);
+        private int attempts;
+
+        private void complete() {
+            for (CompletableFuture<Void> waiter : waiters) {
+                waiter.complete(null);
+            }
+        }
+
+        private void fail(Throwable e) {
+            for (CompletableFuture<Void> waiter : waiters) {
+                waiter.completeExceptionally(e);
+            }
+        }
+    }
+}
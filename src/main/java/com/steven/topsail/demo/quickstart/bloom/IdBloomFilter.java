@@ -0,0 +1,336 @@
+package com.steven.topsail.demo.quickstart.bloom;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.steven.topsail.demo.quickstart.feed.ChangeFeed;
+import com.steven.topsail.demo.quickstart.feed.ChangedDocument;
+import com.steven.topsail.demo.quickstart.util.ScrollUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 文档 id 布隆过滤器
+ * <p>
+ * 每个受保护的索引一个过滤器，启动时扫描全部 id 装载，经本服务写入的文档实时加入，其他写入方的新文档
+ * 由变更订阅（{@link ChangeFeed}）加入，订阅只取新增 id，不维护已知集合。布隆过滤器不能删除元素，
+ * 已删除文档会抬高误判率，定期检查时只有实测误判率超过 fpp 的 rebuild-fpp-factor 倍、
+ * 或距上次重建超过 max-age 才重新扫描重建。mightContain 为 false
+ * 时文档一定不存在，读路径可以直接返回，不必访问 ES。
+ * <p>
+ * 本服务的写入在发出前加入过滤器，重建开始前加入、扫描时尚未可见的 id 不会被扫描到；
+ * 因此最近 in-flight-window 内加入的 id 另外保存一份，替换前并入新过滤器。保存的 id 超出上限而有丢失时不替换，
+ * 保留旧过滤器等下次重建，不产生漏判。
+ *
+ * @author Steven
+ * @date 2021-01-27
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    /**
+     * 受保护的索引，默认只包含本服务自己写入的索引；其他写入方的索引新增文档要等变更订阅下一轮才加入，
+     * 这段时间内读不到新文档，加入前需确认可以接受
+     */
+    @Value("${bloom.id.indices:posts}")
+    private String indices;
+
+    @Value("${bloom.id.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${bloom.id.fpp:0.01}")
+    private double fpp;
+
+    @Value("${bloom.id.refresh-interval:3600000}")
+    private long refreshInterval;
+
+    /**
+     * 实测误判率超过 fpp 的该倍数时重建
+     */
+    @Value("${bloom.id.rebuild-fpp-factor:2}")
+    private double rebuildFppFactor;
+
+    /**
+     * 计算实测误判率所需的最少不存在文档数
+     */
+    @Value("${bloom.id.rebuild-min-samples:1000}")
+    private long rebuildMinSamples;
+
+    @Value("${bloom.id.max-age:86400000}")
+    private long maxAge;
+
+    /**
+     * 写入从加入过滤器到在 ES 上可被扫描到的最长时间，包括排队、重试和刷新间隔
+     */
+    @Value("${bloom.id.in-flight-window:300000}")
+    private long inFlightWindow;
+
+    /**
+     * 最近加入的 id 最多保存的个数
+     */
+    @Value("${bloom.id.recent-max-size:200000}")
+    private int recentMaxSize;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (String index : StringUtils.split(indices, ',')) {
+            String name = index.trim();
+            guards.put(name, new Guard());
+            changeFeed.register(name, false, false, batch -> {
+                for (ChangedDocument document : batch.getUpserts()) {
+                    put(name, document.getId());
+                }
+            });
+        }
+        taskScheduler.scheduleWithFixedDelay(this::rebuildStale, refreshInterval);
+    }
+
+    /**
+     * 文档是否可能存在；索引未受保护或过滤器尚未装载完成时一律返回 true
+     *
+     * @param index
+     * @param id
+     * @return
+     */
+    public boolean mightContain(String index, String id) {
+        Guard guard = guards.get(index);
+        if (null == guard) {
+            return true;
+        }
+        BloomFilter<String> filter = guard.filter;
+        if (null == filter) {
+            return true;
+        }
+        guard.checks.increment();
+        boolean might;
+        synchronized (filter) {
+            might = filter.mightContain(id);
+        }
+        if (!might) {
+            guard.negatives.increment();
+        }
+        return might;
+    }
+
+    /**
+     * 记录写入的文档 id，重建期间同时写入新旧两个过滤器
+     *
+     * @param index
+     * @param id
+     */
+    public void put(String index, String id) {
+        Guard guard = guards.get(index);
+        if (null == guard || null == id) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (guard) {
+            put(guard.filter, id);
+            put(guard.building, id);
+            guard.recent.addLast(new RecentPut(now, id));
+            while (!guard.recent.isEmpty() && now - guard.recent.peekFirst().time > inFlightWindow) {
+                guard.recent.removeFirst();
+            }
+            if (guard.recent.size() > recentMaxSize) {
+                guard.droppedAt = guard.recent.removeFirst().time;
+            }
+        }
+    }
+
+    /**
+     * 过滤器判定可能存在、但 ES 返回不存在时调用，用于统计实际误判率
+     *
+     * @param index
+     */
+    public void recordFalsePositive(String index) {
+        Guard guard = guards.get(index);
+        if (null != guard) {
+            guard.falsePositives.increment();
+        }
+    }
+
+    /**
+     * 重建尚未装载、实测误判率过高或超过 max-age 的过滤器
+     */
+    public void rebuildStale() {
+        for (Map.Entry<String, Guard> entry : guards.entrySet()) {
+            Guard guard = entry.getValue();
+            long absent = guard.negatives.sum() + guard.falsePositives.sum();
+            boolean degraded = absent >= rebuildMinSamples && guard.falsePositives.sum() > absent * fpp * rebuildFppFactor;
+            boolean expired = System.currentTimeMillis() - guard.rebuildTime > maxAge;
+            if (null != guard.filter && !degraded && !expired) {
+                continue;
+            }
+            try {
+                rebuild(entry.getKey());
+            } catch (Exception e) {
+                log.error("重建 id 布隆过滤器失败，index: {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    public void rebuildAll() {
+        for (String index : guards.keySet()) {
+            try {
+                rebuild(index);
+            } catch (Exception e) {
+                log.error("重建 id 布隆过滤器失败，index: {}", index, e);
+            }
+        }
+    }
+
+    /**
+     * 扫描索引的全部 id 重建过滤器，完成后整体替换
+     *
+     * @param index
+     * @throws IOException
+     */
+    public void rebuild(String index) throws IOException {
+        Guard guard = guards.get(index);
+        if (null == guard) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long count = restHighLevelClient.count(new CountRequest(index), RequestOptions.DEFAULT).getCount();
+        long capacity = Math.max(expectedInsertions, count * 2);
+        BloomFilter<String> building = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), capacity, fpp);
+        long buildingSince;
+        synchronized (guard) {
+            guard.building = building;
+            buildingSince = System.currentTimeMillis();
+        }
+
+        long scanned;
+        try {
+            // 刷新后再扫描，保证重建开始前已确认的写入都能被扫描到
+            restHighLevelClient.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+            scanned = ScrollUtils.scanIds(restHighLevelClient, index, id -> put(building, id));
+        } catch (IOException | RuntimeException e) {
+            synchronized (guard) {
+                guard.building = null;
+            }
+            throw e;
+        }
+
+        synchronized (guard) {
+            // 在 buildingSince 之前加入、可能仍在途的 id 只在旧过滤器中，从最近记录并入；记录有丢失时不替换
+            if (guard.droppedAt >= buildingSince - inFlightWindow) {
+                guard.building = null;
+                throw new IOException("最近写入的 id 超过 recent-max-size 被丢弃，放弃本次重建，index: " + index);
+            }
+            for (RecentPut recent : guard.recent) {
+                put(building, recent.id);
+            }
+            guard.filter = building;
+            guard.building = null;
+            guard.size = scanned;
+            guard.capacity = capacity;
+            guard.rebuildTime = System.currentTimeMillis();
+            guard.checks.reset();
+            guard.negatives.reset();
+            guard.falsePositives.reset();
+        }
+        log.info("id 布隆过滤器重建完成，index: {}，文档数: {}，容量: {}，耗时: {} ms",
+            index, scanned, capacity, System.currentTimeMillis() - start);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, Guard> entry : guards.entrySet()) {
+            Guard guard = entry.getValue();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            BloomFilter<String> filter = guard.filter;
+            stats.put("ready", null != filter);
+            stats.put("size", guard.size);
+            stats.put("capacity", guard.capacity);
+            stats.put("rebuildTime", guard.rebuildTime);
+            if (null != filter) {
+                synchronized (filter) {
+                    stats.put("expectedFpp", filter.expectedFpp());
+                }
+            }
+            long checks = guard.checks.sum();
+            long negatives = guard.negatives.sum();
+            long falsePositives = guard.falsePositives.sum();
+            stats.put("checks", checks);
+            stats.put("negatives", negatives);
+            stats.put("falsePositives", falsePositives);
+            // 实测误判率：判定可能存在的不存在文档 / 全部不存在文档
+            long absent = negatives + falsePositives;
+            stats.put("measuredFpp", absent == 0 ? 0 : (double) falsePositives / absent);
+            map.put(entry.getKey(), stats);
+        }
+        return map;
+    }
+
+    /**
+     * Guava 20 的 BloomFilter 不是线程安全的，读写都在过滤器对象上加锁
+     */
+    private static void put(BloomFilter<String> filter, String id) {
+        if (null != filter) {
+            synchronized (filter) {
+                filter.put(id);
+            }
+        }
+    }
+
+    private static final class RecentPut {
+        private final long time;
+        private final String id;
+
+        private RecentPut(long time, String id) {
+            this.time = time;
+            this.id = id;
+        }
+    }
+
+    private static final class Guard {
+        private volatile BloomFilter<String> filter;
+        private BloomFilter<String> building;
+
+        /**
+         * 最近 in-flight-window 内加入的 id，只在持有 guard 锁时访问
+         */
+        private final Deque<RecentPut> recent = new ArrayDeque<>();
+
+        /**
+         * 因超出上限被丢弃的最近一条记录的时间
+         */
+        private long droppedAt;
+        private volatile long size;
+        private volatile long capacity;
+        private volatile long rebuildTime;
+        private final LongAdder checks = new LongAdder();
+        private final LongAdder negatives = new LongAdder();
+        private final LongAdder falsePositives = new LongAdder();
+    }
+}
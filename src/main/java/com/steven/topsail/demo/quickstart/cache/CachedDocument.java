@@ -0,0 +1,37 @@
+package com.steven.topsail.demo.quickstart.cache;
+
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 缓存的文档，source 为 null 表示文档不存在（或已被本地删除）
+ *
+ * @author Steven
+ * @date 2021-01-24
+ */
+@Data
+public final class CachedDocument {
+
+    /**
+     * 文档版本，不存在的文档为 -1 或删除时的版本
+     */
+    private final long version;
+
+    private final Map<String, Object> source;
+
+    /**
+     * 缓存权重，按 _source 字节数估算
+     */
+    private final int weight;
+
+    public static CachedDocument of(long version, Map<String, Object> source, int sourceBytes) {
+        Map<String, Object> readOnly = null == source ? null : Collections.unmodifiableMap(source);
+        return new CachedDocument(version, readOnly, 64 + Math.max(sourceBytes, 0));
+    }
+
+    public static CachedDocument missing(long version) {
+        return new CachedDocument(version, null, 64);
+    }
+}
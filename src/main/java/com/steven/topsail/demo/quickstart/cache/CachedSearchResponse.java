@@ -0,0 +1,24 @@
+package com.steven.topsail.demo.quickstart.cache;
+
+import lombok.Data;
+
+/**
+ * 缓存的原始查询响应，响应体保持 ES 返回的字节，不做解析
+ *
+ * @author Steven
+ * @date 2021-01-29
+ */
+@Data
+public final class CachedSearchResponse {
+
+    private final int status;
+
+    private final String contentType;
+
+    private final byte[] body;
+
+    /**
+     * 缓存有效期（纳秒），取索引的 refresh_interval
+     */
+    private final long ttlNanos;
+}
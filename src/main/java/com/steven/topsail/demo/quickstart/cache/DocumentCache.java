@@ -0,0 +1,193 @@
+package com.steven.topsail.demo.quickstart.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.steven.topsail.demo.quickstart.feed.ChangeFeed;
+import com.steven.topsail.demo.quickstart.feed.ChangedDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 文档读缓存
+ * <p>
+ * 按 _source 字节数加权限制容量，写入后 TTL 过期。本地写操作通过 {@link #refresh} / {@link #evict}
+ * 同步缓存，refresh 只接受版本号更新的文档，避免并发读把旧版本写回缓存。剔除时留下写入版本的墓碑，
+ * 剔除前发出、剔除后才返回的读不会把旧版本重新放回缓存。缓存键一律使用调用方传入的索引名（可以是别名），
+ * 不使用响应中的实际索引名，读写才能对上同一个键。cache.document.feed-indices
+ * 中的索引还订阅变更（{@link ChangeFeed}），其他写入方修改或删除的文档随之剔除，不必等 TTL 过期。
+ *
+ * @author Steven
+ * @date 2021-01-24
+ */
+@Slf4j
+@Component
+public class DocumentCache {
+
+    @Value("${cache.document.max-weight:67108864}")
+    private long maxWeight;
+
+    @Value("${cache.document.ttl:300}")
+    private long ttl;
+
+    /**
+     * 逗号分隔，为空时只靠本地写操作和 TTL 保持一致
+     */
+    @Value("${cache.document.feed-indices:}")
+    private String[] feedIndices;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    private Cache<DocumentKey, CachedDocument> cache;
+
+    /**
+     * 被剔除文档的写入版本，与缓存同样 TTL 过期
+     */
+    private Cache<DocumentKey, Long> tombstones;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((DocumentKey key, CachedDocument doc) -> doc.getWeight())
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+        tombstones = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .build();
+        for (String index : feedIndices) {
+            String name = index.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            changeFeed.register(name, false, true, batch -> {
+                for (ChangedDocument document : batch.getUpserts()) {
+                    evict(name, document.getId());
+                }
+                for (String id : batch.getDeletes()) {
+                    evict(name, id);
+                }
+            });
+        }
+        log.info("文档缓存初始化，maxWeight: {}，ttl: {} s", maxWeight, ttl);
+    }
+
+    /**
+     * 读取文档，未命中时由 loader 加载；同一个键的并发加载只会执行一次
+     *
+     * @param index
+     * @param id
+     * @param loader
+     * @return
+     */
+    public CachedDocument get(String index, String id, Function<DocumentKey, CachedDocument> loader) {
+        DocumentKey key = new DocumentKey(index, id);
+        CachedDocument doc = cache.get(key, loader);
+        if (null != doc && isStale(key, doc)) {
+            // 加载期间发生了写入，旧版本本次照常返回，但不留在缓存中
+            cache.asMap().remove(key, doc);
+        }
+        return doc;
+    }
+
+    /**
+     * 读取已缓存的文档，未命中返回 null
+     *
+     * @param index
+     * @param id
+     * @return
+     */
+    public CachedDocument getIfPresent(String index, String id) {
+        return cache.getIfPresent(new DocumentKey(index, id));
+    }
+
+    /**
+     * 批量读取已缓存的文档
+     *
+     * @param keys
+     * @return
+     */
+    public Map<DocumentKey, CachedDocument> getAllPresent(Collection<DocumentKey> keys) {
+        return cache.getAllPresent(keys);
+    }
+
+    /**
+     * 写入更新后的文档，版本号低于已缓存版本或墓碑版本时忽略
+     *
+     * @param index
+     * @param id
+     * @param doc
+     */
+    public void refresh(String index, String id, CachedDocument doc) {
+        DocumentKey key = new DocumentKey(index, id);
+        if (isStale(key, doc)) {
+            return;
+        }
+        cache.asMap().merge(key, doc,
+            (current, update) -> update.getVersion() >= current.getVersion() ? update : current);
+    }
+
+    /**
+     * 写入后剔除单个文档，并记下写入版本，此后版本更低的 refresh 被忽略
+     *
+     * @param index
+     * @param id
+     * @param version 写入返回的版本号
+     */
+    public void evict(String index, String id, long version) {
+        DocumentKey key = new DocumentKey(index, id);
+        tombstones.asMap().merge(key, version, Math::max);
+        cache.invalidate(key);
+    }
+
+    /**
+     * 剔除单个文档，用于不知道写入版本的场景（写入失败、外部写入）
+     *
+     * @param index
+     * @param id
+     */
+    public void evict(String index, String id) {
+        cache.invalidate(new DocumentKey(index, id));
+    }
+
+    /**
+     * 剔除整个索引的文档，用于 delete by query 等无法定位到具体文档的写操作
+     *
+     * @param index
+     */
+    public void evictIndex(String index) {
+        cache.asMap().keySet().removeIf(key -> key.getIndex().equals(index));
+    }
+
+    private boolean isStale(DocumentKey key, CachedDocument doc) {
+        Long written = tombstones.getIfPresent(key);
+        return null != written && doc.getVersion() < written;
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", cache.estimatedSize());
+        map.put("hitCount", stats.hitCount());
+        map.put("missCount", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("loadSuccessCount", stats.loadSuccessCount());
+        map.put("loadFailureCount", stats.loadFailureCount());
+        map.put("averageLoadPenalty", stats.averageLoadPenalty());
+        map.put("evictionCount", stats.evictionCount());
+        map.put("evictionWeight", stats.evictionWeight());
+        return map;
+    }
+}
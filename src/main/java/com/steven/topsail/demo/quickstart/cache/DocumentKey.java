@@ -0,0 +1,17 @@
+package com.steven.topsail.demo.quickstart.cache;
+
+import lombok.Data;
+
+/**
+ * 文档缓存键
+ *
+ * @author Steven
+ * @date 2021-01-24
+ */
+@Data
+public final class DocumentKey {
+
+    private final String index;
+
+    private final String id;
+}
@@ -0,0 +1,332 @@
+package com.steven.topsail.demo.quickstart.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 查询结果缓存
+ * <p>
+ * 以 索引 + filter_path + 规范化的查询 JSON（查询条件、分页、字段过滤、高亮）为键缓存原始响应字节，
+ * 有效期跟随索引的 refresh_interval：在一个刷新周期内 ES 本身也不会返回更新的结果。
+ * refresh_interval 在后台异步读取，定期重新读取，索引设置或别名变更时由变更方调用 {@link #invalidateTtl()} 立即失效；
+ * 尚未读到时按 1s 计，读取失败时沿用旧值并稍后重试，查询线程不等待。
+ * 同一个键的并发查询只有一个真正发往 ES，其余等待它的结果。
+ *
+ * @author Steven
+ * @date 2021-01-29
+ */
+@Slf4j
+@Component
+public class SearchResultCache {
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+    @Value("${cache.search.max-weight:33554432}")
+    private long maxWeight;
+
+    /**
+     * 索引关闭自动刷新（refresh_interval = -1）或刷新间隔过长时的有效期上限（毫秒）
+     */
+    @Value("${cache.search.max-ttl:30000}")
+    private long maxTtl;
+
+    /**
+     * 各索引有效期的重新读取间隔（毫秒）
+     */
+    @Value("${cache.search.ttl-refresh:60000}")
+    private long ttlRefresh;
+
+    /**
+     * 读取 refresh_interval 失败后的重试间隔
+     */
+    private static final long TTL_RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    private Cache<SearchKey, CachedSearchResponse> cache;
+
+    private final Map<String, IndexTtl> indexTtls = new ConcurrentHashMap<>();
+
+    /**
+     * 正在读取有效期的索引
+     */
+    private final Set<String> ttlLoading = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 每次 {@link #invalidateTtl()} 加一，之前发出的读取结果丢弃
+     */
+    private final AtomicLong ttlGeneration = new AtomicLong();
+
+    /**
+     * 异步查询的在途请求，同一个键只发一次
+     */
+    private final Map<SearchKey, CompletableFuture<CachedSearchResponse>> loading = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((SearchKey key, CachedSearchResponse value) -> key.getSource().length() + value.getBody().length)
+            .expireAfter(new Expiry<SearchKey, CachedSearchResponse>() {
+                @Override
+                public long expireAfterCreate(SearchKey key, CachedSearchResponse value, long currentTime) {
+                    return value.getTtlNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(SearchKey key, CachedSearchResponse value, long currentTime, long currentDuration) {
+                    return value.getTtlNanos();
+                }
+
+                @Override
+                public long expireAfterRead(SearchKey key, CachedSearchResponse value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * 读取查询结果，未命中时由 loader 查询；只缓存 200 响应
+     *
+     * @param index
+     * @param filterPath
+     * @param searchSource
+     * @param loader
+     * @return
+     * @throws IOException
+     */
+    public CachedSearchResponse get(String index, String filterPath, SearchSourceBuilder searchSource, SearchLoader loader) throws IOException {
+        SearchKey key = new SearchKey(index, null == filterPath ? "" : filterPath, Strings.toString(searchSource));
+        try {
+            CachedSearchResponse response = cache.get(key, k -> {
+                try {
+                    return loader.load(ttlNanos(index));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (200 != response.getStatus()) {
+                cache.invalidate(key);
+            }
+            return response;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 异步读取查询结果，未命中时由 loader 发起异步查询；同一个键的并发查询共用一个 future
+     *
+     * @param index
+     * @param filterPath
+     * @param searchSource
+     * @param loader
+     * @return
+     */
+    public CompletableFuture<CachedSearchResponse> getAsync(String index, String filterPath, SearchSourceBuilder searchSource,
+                                                            AsyncSearchLoader loader) {
+        SearchKey key = new SearchKey(index, null == filterPath ? "" : filterPath, Strings.toString(searchSource));
+        CachedSearchResponse cached = cache.getIfPresent(key);
+        if (null != cached) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long ttlNanos = ttlNanos(index);
+        CompletableFuture<CachedSearchResponse> created = new CompletableFuture<>();
+        CompletableFuture<CachedSearchResponse> existing = loading.putIfAbsent(key, created);
+        if (null != existing) {
+            return existing;
+        }
+        loader.load(ttlNanos).whenComplete((response, e) -> {
+            if (null == e && 200 == response.getStatus()) {
+                cache.put(key, response);
+            }
+            loading.remove(key, created);
+            if (null == e) {
+                created.complete(response);
+            } else {
+                created.completeExceptionally(e);
+            }
+        });
+        return created;
+    }
+
+    /**
+     * 索引有写入时剔除该索引的全部查询结果
+     *
+     * @param index
+     */
+    public void invalidate(String index) {
+        cache.asMap().keySet().removeIf(key -> key.getIndex().equals(index));
+    }
+
+    /**
+     * 索引设置或别名指向变化后调用，各索引的有效期在下次使用时重新读取
+     */
+    public void invalidateTtl() {
+        ttlGeneration.incrementAndGet();
+        indexTtls.clear();
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", cache.estimatedSize());
+        map.put("hitCount", stats.hitCount());
+        map.put("missCount", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("averageLoadPenalty", stats.averageLoadPenalty());
+        map.put("evictionCount", stats.evictionCount());
+        Map<String, Long> ttl = new LinkedHashMap<>();
+        for (Map.Entry<String, IndexTtl> entry : indexTtls.entrySet()) {
+            ttl.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().getTtlNanos()));
+        }
+        map.put("indexTtlMillis", ttl);
+        return map;
+    }
+
+    /**
+     * 索引的缓存有效期（别名取其下最短的 refresh_interval），不阻塞；过期或没有时在后台读取
+     */
+    private long ttlNanos(String index) {
+        IndexTtl current = indexTtls.get(index);
+        if (null == current || System.nanoTime() - current.getExpiresAt() >= 0) {
+            loadTtl(index, current);
+        }
+        return null == current ? defaultTtlNanos() : current.getTtlNanos();
+    }
+
+    private void loadTtl(String index, IndexTtl current) {
+        if (!ttlLoading.add(index)) {
+            return;
+        }
+        long generation = ttlGeneration.get();
+        GetSettingsRequest request = new GetSettingsRequest()
+            .indices(index)
+            .names(REFRESH_INTERVAL)
+            .includeDefaults(true);
+        ActionListener<GetSettingsResponse> listener = new ActionListener<GetSettingsResponse>() {
+            @Override
+            public void onResponse(GetSettingsResponse response) {
+                try {
+                    long min = Long.MAX_VALUE;
+                    min = Math.min(min, minRefreshNanos(response.getIndexToSettings()));
+                    min = Math.min(min, minRefreshNanos(response.getIndexToDefaultSettings()));
+                    long ttl = Math.min(min, TimeUnit.MILLISECONDS.toNanos(maxTtl));
+                    update(index, generation, new IndexTtl(ttl, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlRefresh)));
+                } catch (RuntimeException e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                log.warn("读取索引 {} 的 refresh_interval 失败，{} s 后重试: {}", index, TimeUnit.NANOSECONDS.toSeconds(TTL_RETRY_NANOS), e.toString());
+                long ttl = null == current ? defaultTtlNanos() : current.getTtlNanos();
+                update(index, generation, new IndexTtl(ttl, System.nanoTime() + TTL_RETRY_NANOS));
+            }
+        };
+        try {
+            restHighLevelClient.indices().getSettingsAsync(request, RequestOptions.DEFAULT, listener);
+        } catch (RuntimeException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private void update(String index, long generation, IndexTtl ttl) {
+        if (generation == ttlGeneration.get()) {
+            indexTtls.put(index, ttl);
+        }
+        ttlLoading.remove(index);
+    }
+
+    private long defaultTtlNanos() {
+        return Math.min(TimeUnit.SECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(maxTtl));
+    }
+
+    private static long minRefreshNanos(ImmutableOpenMap<String, Settings> indexToSettings) {
+        long min = Long.MAX_VALUE;
+        for (Settings settings : indexToSettings.values().toArray(Settings.class)) {
+            String value = settings.get(REFRESH_INTERVAL);
+            if (null == value) {
+                continue;
+            }
+            TimeValue interval = TimeValue.parseTimeValue(value, REFRESH_INTERVAL);
+            // -1 表示关闭自动刷新，交给 max-ttl 兜底
+            min = Math.min(min, interval.nanos() < 0 ? Long.MAX_VALUE : interval.nanos());
+        }
+        return min;
+    }
+
+    @FunctionalInterface
+    public interface SearchLoader {
+
+        /**
+         * 执行查询
+         *
+         * @param ttlNanos 结果的缓存有效期
+         * @return
+         * @throws IOException
+         */
+        CachedSearchResponse load(long ttlNanos) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface AsyncSearchLoader {
+
+        /**
+         * 发起异步查询
+         *
+         * @param ttlNanos 结果的缓存有效期
+         * @return
+         */
+        CompletableFuture<CachedSearchResponse> load(long ttlNanos);
+    }
+
+    @Data
+    private static final class IndexTtl {
+        private final long ttlNanos;
+
+        /**
+         * System.nanoTime() 时刻，之后重新读取
+         */
+        private final long expiresAt;
+    }
+
+    @Data
+    private static final class SearchKey {
+        private final String index;
+        private final String filterPath;
+        private final String source;
+    }
+}
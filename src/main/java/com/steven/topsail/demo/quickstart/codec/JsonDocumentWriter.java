@@ -0,0 +1,319 @@
+package com.steven.topsail.demo.quickstart.codec;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * 文档 JSON 编码器
+ * <p>
+ * 按字段类型直接把文档写成 UTF-8 JSON 字节，不经过 Map 和 Jackson：字段名预先编码成 {@link Field}，
+ * 数值、日期直接写成字节，内部缓冲区重复使用，每个文档只在 {@link #toBytes()} 时分配一个定长数组。
+ * 生成的字节直接作为 IndexRequest 的 source，单条写入和 bulk 写入都适用。
+ * <p>
+ * 非线程安全，每个线程（或每个写入循环）使用自己的实例。
+ *
+ * @author Steven
+ * @date 2021-02-02
+ */
+public final class JsonDocumentWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer;
+
+    private int position;
+
+    private boolean firstField;
+
+    public JsonDocumentWriter() {
+        this(256);
+    }
+
+    public JsonDocumentWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * 开始一个新文档，丢弃缓冲区中之前的内容
+     *
+     * @return
+     */
+    public JsonDocumentWriter start() {
+        position = 0;
+        firstField = true;
+        writeByte('{');
+        return this;
+    }
+
+    public JsonDocumentWriter field(Field field, String value) {
+        writeName(field);
+        if (null == value) {
+            writeBytes(NULL);
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonDocumentWriter field(Field field, long value) {
+        writeName(field);
+        writeLong(value);
+        return this;
+    }
+
+    public JsonDocumentWriter field(Field field, double value) {
+        writeName(field);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeBytes(NULL);
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    public JsonDocumentWriter field(Field field, boolean value) {
+        writeName(field);
+        writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    /**
+     * 日期字段，写成与 ES 默认格式 strict_date_optional_time 一致的 UTC 时间，
+     * 例如 2021-02-02T08:30:00.000Z，无需创建 Date 对象
+     *
+     * @param field
+     * @param epochMillis
+     * @return
+     */
+    public JsonDocumentWriter dateField(Field field, long epochMillis) {
+        writeName(field);
+        writeDate(epochMillis);
+        return this;
+    }
+
+    /**
+     * 结束文档，返回一份独立的字节数组（请求发出前会一直被引用，不能复用）
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        writeByte('}');
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * 结束文档，生成索引请求
+     *
+     * @param index
+     * @param id
+     * @return
+     */
+    public IndexRequest toIndexRequest(String index, String id) {
+        return new IndexRequest(index).id(id).source(toBytes(), XContentType.JSON);
+    }
+
+    private void writeName(Field field) {
+        if (firstField) {
+            firstField = false;
+        } else {
+            writeByte(',');
+        }
+        writeBytes(field.encoded);
+    }
+
+    private void writeString(String value) {
+        int length = value.length();
+        ensureCapacity(length + 2);
+        buffer[position++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    writeEscaped(c);
+                } else {
+                    ensureCapacity(1);
+                    buffer[position++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensureCapacity(4);
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符，按 String.getBytes 的做法替换为 '?'
+                ensureCapacity(1);
+                buffer[position++] = '?';
+            } else {
+                ensureCapacity(3);
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeEscaped(char c) {
+        ensureCapacity(6);
+        buffer[position++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buffer[position++] = (byte) c;
+                break;
+            case '\n':
+                buffer[position++] = 'n';
+                break;
+            case '\r':
+                buffer[position++] = 'r';
+                break;
+            case '\t':
+                buffer[position++] = 't';
+                break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> 4];
+                buffer[position++] = HEX[c & 0xF];
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position = end;
+    }
+
+    private void writeDate(long epochMillis) {
+        long epochDay = Math.floorDiv(epochMillis, 86400000L);
+        int millisOfDay = (int) Math.floorMod(epochMillis, 86400000L);
+
+        // 公历换算，见 Howard Hinnant 的 civil_from_days
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            writeString(Instant.ofEpochMilli(epochMillis).toString());
+            return;
+        }
+
+        ensureCapacity(26);
+        buffer[position++] = '"';
+        writeDigits((int) year, 4);
+        buffer[position++] = '-';
+        writeDigits(month, 2);
+        buffer[position++] = '-';
+        writeDigits(day, 2);
+        buffer[position++] = 'T';
+        writeDigits(millisOfDay / 3600000, 2);
+        buffer[position++] = ':';
+        writeDigits(millisOfDay / 60000 % 60, 2);
+        buffer[position++] = ':';
+        writeDigits(millisOfDay / 1000 % 60, 2);
+        buffer[position++] = '.';
+        writeDigits(millisOfDay % 1000, 3);
+        buffer[position++] = 'Z';
+        buffer[position++] = '"';
+    }
+
+    private void writeDigits(int value, int width) {
+        for (int i = position + width - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += width;
+    }
+
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+
+    /**
+     * 预先编码的字段名，形如 "user":，应定义为常量重复使用
+     */
+    public static final class Field {
+
+        private final String name;
+
+        private final byte[] encoded;
+
+        private Field(String name, byte[] encoded) {
+            this.name = name;
+            this.encoded = encoded;
+        }
+
+        public static Field of(String name) {
+            JsonDocumentWriter writer = new JsonDocumentWriter(name.length() + 8);
+            writer.writeString(name);
+            writer.writeByte(':');
+            return new Field(name, Arrays.copyOf(writer.buffer, writer.position));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package com.steven.topsail.demo.quickstart.config;
 
+import com.steven.topsail.demo.quickstart.metrics.EsClientMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -30,8 +36,33 @@ public class RestHighLevelClientConfig {
     @Value("${elastic.password:123456}")
     private String password;
 
+    @Value("${elastic.max-conn-total:30}")
+    private int maxConnTotal;
+
+    @Value("${elastic.max-conn-per-route:10}")
+    private int maxConnPerRoute;
+
+    @Autowired
+    private EsClientMetrics esClientMetrics;
+
+    /**
+     * ES 客户端连接池，单独声明以便探活时读取租用、等待中的连接数；上限与 RestClientBuilder 的默认值一致
+     *
+     * @return
+     * @throws IOReactorException
+     */
+    @Bean
+    public PoolingNHttpClientConnectionManager esConnectionManager() throws IOReactorException {
+        PoolingNHttpClientConnectionManager connectionManager =
+            new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT));
+        connectionManager.setMaxTotal(maxConnTotal);
+        connectionManager.setDefaultMaxPerRoute(maxConnPerRoute);
+        return connectionManager;
+    }
+
     @Bean
-    public RestHighLevelClient restHighLevelClient() {
+    public RestHighLevelClient restHighLevelClient() throws IOReactorException {
+        PoolingNHttpClientConnectionManager connectionManager = esConnectionManager();
 
         String[] hosts = this.hosts.split(",");
         HttpHost[] httpHosts = new HttpHost[hosts.length];
@@ -49,8 +80,11 @@ public class RestHighLevelClientConfig {
                 CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
                 credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
                 httpClientBuilder.disableAuthCaching();
-                return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-            });
+                httpClientBuilder.setConnectionManager(connectionManager);
+                httpClientBuilder.addInterceptorFirst(esClientMetrics.requestInterceptor());
+                httpClientBuilder.addInterceptorLast(esClientMetrics.responseInterceptor());
+                return esClientMetrics.instrument(httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider));
+            }).setFailureListener(esClientMetrics.failureListener());
 
         return new RestHighLevelClient(restClientBuilder);
 
@@ -3,6 +3,7 @@ package com.steven.topsail.demo.quickstart.config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 /**
@@ -19,4 +20,17 @@ public class SchedulingConfig {
         taskScheduler.setThreadNamePrefix("AutoRefresh-");
         return taskScheduler;
     }
+
+    /**
+     * 由 HTTP 触发的长时间任务（生成模拟数据、导出等），不占用 Tomcat 线程；队列满时拒绝
+     */
+    @Bean
+    public ThreadPoolTaskExecutor jobExecutor() {
+        ThreadPoolTaskExecutor jobExecutor = new ThreadPoolTaskExecutor();
+        jobExecutor.setCorePoolSize(2);
+        jobExecutor.setMaxPoolSize(2);
+        jobExecutor.setQueueCapacity(16);
+        jobExecutor.setThreadNamePrefix("Job-");
+        return jobExecutor;
+    }
 }
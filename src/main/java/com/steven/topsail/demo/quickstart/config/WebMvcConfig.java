@@ -0,0 +1,37 @@
+package com.steven.topsail.demo.quickstart.config;
+
+import com.steven.topsail.demo.quickstart.filter.BlackListInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * @author Steven
+ * @date 2021-01-28
+ */
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    /**
+     * 异步请求（返回 CompletableFuture 的接口）的兜底超时，需大于 ES 调用本身的超时；
+     * 生成模拟数据、导出等长任务也走异步请求，因此默认放宽到 10 分钟
+     */
+    @Value("${async.request-timeout:600000}")
+    private long asyncRequestTimeout;
+
+    @Autowired
+    private BlackListInterceptor blackListInterceptor;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(blackListInterceptor).excludePathPatterns("/probe.jsp");
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(asyncRequestTimeout);
+    }
+}
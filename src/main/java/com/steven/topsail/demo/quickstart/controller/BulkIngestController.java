@@ -0,0 +1,40 @@
+package com.steven.topsail.demo.quickstart.controller;
+
+import com.steven.topsail.demo.quickstart.model.BulkIngestStats;
+import com.steven.topsail.demo.quickstart.service.IBulkIngestService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * @author Steven
+ * @date 2021-01-22
+ */
+@RestController
+public class BulkIngestController {
+
+    @Autowired
+    private IBulkIngestService bulkIngestService;
+
+    /**
+     * 批量写入统计：写入速率、失败条目等
+     *
+     * @return
+     */
+    @GetMapping("/bulk/stats")
+    public BulkIngestStats stats() {
+        return bulkIngestService.stats();
+    }
+
+    /**
+     * 等待排队中的文档全部写入
+     *
+     * @param timeout 最长等待毫秒数
+     * @return 是否全部完成
+     * @throws InterruptedException
+     */
+    @GetMapping("/bulk/flush")
+    public boolean flush(Long timeout) throws InterruptedException {
+        return bulkIngestService.flush(null == timeout ? 30000L : timeout);
+    }
+}
@@ -0,0 +1,41 @@
+package com.steven.topsail.demo.quickstart.controller;
+
+import com.steven.topsail.demo.quickstart.filter.ListFilterService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * @author Steven
+ * @date 2021-01-28
+ */
+@RestController
+public class FilterController {
+
+    @Autowired
+    private ListFilterService listFilterService;
+
+    @GetMapping("/filter/{name}/check/{value}")
+    public boolean check(@PathVariable String name, @PathVariable String value) {
+        return listFilterService.mightContain(name, value, false);
+    }
+
+    @GetMapping("/filter/{name}/rebuild")
+    public void rebuild(@PathVariable String name) throws IOException {
+        listFilterService.rebuild(name);
+    }
+
+    /**
+     * 名单统计：查找延迟、填充率、预估误判率
+     *
+     * @return
+     */
+    @GetMapping("/filter/stats")
+    public Map<String, Object> stats() {
+        return listFilterService.stats();
+    }
+}
@@ -1,13 +1,19 @@
 package com.steven.topsail.demo.quickstart.controller;
 
+import com.steven.topsail.demo.quickstart.model.ReindexProgress;
 import com.steven.topsail.demo.quickstart.service.IIndexService;
+import com.steven.topsail.demo.quickstart.service.IReindexService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * @author Steven
@@ -20,15 +26,93 @@ public class IndexController {
     @Autowired
     private IIndexService indexService;
 
-    @GetMapping("createIndex/{indexName}")
-    public void create(@PathVariable("indexName") String indexName) throws IOException {
-        indexService.createIndex(indexName);
+    @Autowired
+    private IReindexService reindexService;
+
+    @Autowired
+    private ThreadPoolTaskExecutor jobExecutor;
 
+    @GetMapping("createIndex/{indexName}")
+    public CompletableFuture<Boolean> create(@PathVariable("indexName") String indexName) {
+        return indexService.createIndexAsync(indexName);
     }
 
     @GetMapping("deleteIndex/{indexName}")
-    public void delete(@PathVariable("indexName") String indexName) throws IOException {
-        indexService.deleteIndex(indexName);
+    public CompletableFuture<Boolean> delete(@PathVariable("indexName") String indexName) {
+        return indexService.deleteIndexAsync(indexName);
+    }
+
+    @GetMapping("rolling/{alias}/create")
+    public CompletableFuture<String> createRolling(@PathVariable("alias") String alias) {
+        return onJobExecutor(() -> indexService.createRollingIndex(alias));
+    }
+
+    /**
+     * 按滚动条件检查一次，force 为 true 时无条件滚动
+     *
+     * @param alias
+     * @param force
+     * @return 新分桶，未滚动时为空
+     */
+    @GetMapping("rolling/{alias}/rollover")
+    public CompletableFuture<String> rollover(@PathVariable("alias") String alias,
+                                              @RequestParam(defaultValue = "false") boolean force) {
+        return onJobExecutor(() -> indexService.rollover(alias, force));
+    }
+
+    @GetMapping("rolling/{alias}/bulk-load/begin")
+    public CompletableFuture<Boolean> beginBulkLoad(@PathVariable("alias") String alias) {
+        return onJobExecutor(() -> {
+            indexService.beginBulkLoad(alias);
+            return true;
+        });
+    }
+
+    @GetMapping("rolling/{alias}/bulk-load/end")
+    public CompletableFuture<Boolean> endBulkLoad(@PathVariable("alias") String alias) {
+        return onJobExecutor(() -> {
+            indexService.endBulkLoad(alias);
+            return true;
+        });
+    }
+
+    /**
+     * 按当前映射重建索引，完成后读别名原子切换到新索引
+     *
+     * @param alias 例如 sec_function
+     * @return 重建进度
+     */
+    @GetMapping("reindex/{alias}")
+    public ReindexProgress reindex(@PathVariable("alias") String alias) {
+        return reindexService.submit(alias);
+    }
+
+    @GetMapping("reindex/progress/{taskId}")
+    public ReindexProgress reindexProgress(@PathVariable("taskId") String taskId) {
+        return reindexService.progress(taskId);
+    }
+
+    @GetMapping("reindex/cancel/{taskId}")
+    public boolean reindexCancel(@PathVariable("taskId") String taskId) {
+        return reindexService.cancel(taskId);
+    }
+
+    /**
+     * 索引管理操作是同步调用，放到 jobExecutor 中执行，不占用 Tomcat 线程
+     */
+    private <T> CompletableFuture<T> onJobExecutor(IndexCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, jobExecutor);
+    }
+
+    @FunctionalInterface
+    private interface IndexCall<T> {
+        T call() throws IOException;
     }
 
 }
@@ -0,0 +1,49 @@
+package com.steven.topsail.demo.quickstart.controller;
+
+import com.steven.topsail.demo.quickstart.model.WorkloadReport;
+import com.steven.topsail.demo.quickstart.model.WorkloadSpec;
+import com.steven.topsail.demo.quickstart.service.ILoadTestService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * @author Steven
+ * @date 2021-02-10
+ */
+@RestController
+public class LoadTestController {
+
+    @Autowired
+    private ILoadTestService loadTestService;
+
+    /**
+     * 提交压测，已有压测在运行时返回 503
+     *
+     * @param spec 负载定义，省略的字段取默认值；target 为 stub 时压测本地模拟服务
+     * @return 任务 id
+     */
+    @PostMapping("/loadtest/run")
+    public String run(@RequestBody WorkloadSpec spec) {
+        return loadTestService.submit(spec);
+    }
+
+    /**
+     * 压测结果，运行中时为截至当前的统计
+     *
+     * @param taskId
+     * @return
+     */
+    @GetMapping("/loadtest/report/{taskId}")
+    public WorkloadReport report(@PathVariable("taskId") String taskId) {
+        return loadTestService.report(taskId);
+    }
+
+    @GetMapping("/loadtest/cancel/{taskId}")
+    public boolean cancel(@PathVariable("taskId") String taskId) {
+        return loadTestService.cancel(taskId);
+    }
+}
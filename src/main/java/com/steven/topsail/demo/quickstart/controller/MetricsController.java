@@ -0,0 +1,105 @@
+package com.steven.topsail.demo.quickstart.controller;
+
+import com.steven.topsail.demo.quickstart.async.EsAsyncExecutor;
+import com.steven.topsail.demo.quickstart.async.HedgedReader;
+import com.steven.topsail.demo.quickstart.batch.UpdateCoalescer;
+import com.steven.topsail.demo.quickstart.feed.ChangeFeed;
+import com.steven.topsail.demo.quickstart.metrics.EsClientMetrics;
+import com.steven.topsail.demo.quickstart.replica.LocalReplicaService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * @author Steven
+ * @date 2021-01-31
+ */
+@RestController
+public class MetricsController {
+
+    @Autowired
+    private EsClientMetrics esClientMetrics;
+
+    @Autowired
+    private EsAsyncExecutor esAsyncExecutor;
+
+    @Autowired
+    private UpdateCoalescer updateCoalescer;
+
+    @Autowired
+    private HedgedReader hedgedReader;
+
+    @Autowired
+    private LocalReplicaService localReplicaService;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    /**
+     * ES 客户端指标：按 操作|索引 的延迟百分位（微秒）、字节数、错误与拒绝数
+     *
+     * @return
+     */
+    @GetMapping("/metrics/es")
+    public Map<String, Object> es() {
+        return esClientMetrics.snapshot();
+    }
+
+    @GetMapping("/metrics/es/reset")
+    public boolean reset() {
+        esClientMetrics.reset();
+        return true;
+    }
+
+    /**
+     * 异步接口的在途请求数、拒绝数、超时数
+     *
+     * @return
+     */
+    @GetMapping("/metrics/async")
+    public Map<String, Object> async() {
+        return esAsyncExecutor.stats();
+    }
+
+    /**
+     * 更新合并器：收到的更新数、被合并掉的更新数、实际发送的文档数
+     *
+     * @return
+     */
+    @GetMapping("/metrics/update")
+    public Map<String, Object> update() {
+        return updateCoalescer.stats();
+    }
+
+    /**
+     * 对冲读：读请求数、对冲数、对冲胜出数、预算耗尽次数，以及各操作当前的对冲阈值（毫秒）
+     *
+     * @return
+     */
+    @GetMapping("/metrics/hedge")
+    public Map<String, Object> hedge() {
+        return hedgedReader.stats();
+    }
+
+    /**
+     * 本地副本：各索引的文档数、增量更新与删除数、本地查询数与转发 ES 的查询数
+     *
+     * @return
+     */
+    @GetMapping("/metrics/replica")
+    public Map<String, Object> replica() {
+        return localReplicaService.stats();
+    }
+
+    /**
+     * 变更订阅：各索引的高水位、已知文档数、全量/增量/对账次数、推送的变更数
+     *
+     * @return
+     */
+    @GetMapping("/metrics/feed")
+    public Map<String, Object> feed() {
+        return changeFeed.stats();
+    }
+}
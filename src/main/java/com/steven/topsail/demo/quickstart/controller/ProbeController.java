@@ -1,13 +1,14 @@
 package com.steven.topsail.demo.quickstart.controller;
 
-import org.springframework.beans.factory.annotation.Value;
+import com.steven.topsail.demo.quickstart.probe.ProbeService;
+import com.steven.topsail.demo.quickstart.probe.ProbeSnapshot;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -17,36 +18,37 @@ import java.util.Map;
 @RestController
 public class ProbeController {
 
-    private static final String serverTime = DateTimeFormatter.ofPattern("YYYY-MM-dd HH:mm:ss").format(LocalDateTime.now());
-
-    private long count = 1;
-    private long interval = 0;
-
-    @Value("#{${bits.service.timeout.map:{k1:1}}}")
-    private Map<String, Long> timeoutMapping = new HashMap<>();
+    @Autowired
+    private ProbeService probeService;
 
+    /**
+     * 负载均衡探活，直接写出后台快照预先渲染的响应
+     *
+     * @param response
+     * @throws IOException
+     */
     @GetMapping("/probe.jsp")
-    public String probe() {
-
-        System.out.println(timeoutMapping);
-        for (String key : timeoutMapping.keySet()) {
-            System.out.println("key: " + key + " -> value: " + timeoutMapping.get(key));
-        }
-
-        try {
-            Thread.sleep(interval);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        String msg = String.format("%-30s | %s", "OK", serverTime);
-        System.out.printf("%s, count: %d\n", msg, count++);
-        return msg;
+    public void probe(HttpServletResponse response) throws IOException {
+        ProbeService.Published current = probeService.current();
+        byte[] body = current.body();
+        response.setStatus(current.httpStatus());
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
     }
 
-    @GetMapping("/sleep/{interval}")
-    public void sleep(@PathVariable("interval") long interval) {
-        this.interval = interval * 1000;
-        System.out.println("设置心跳访问时长: " + interval);
+    /**
+     * 快照明细及累计探活次数
+     *
+     * @return
+     */
+    @GetMapping("/probe/detail")
+    public Map<String, Object> detail() {
+        ProbeSnapshot snapshot = probeService.snapshot();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("snapshot", snapshot);
+        map.put("probes", probeService.getProbes());
+        return map;
     }
 
 }
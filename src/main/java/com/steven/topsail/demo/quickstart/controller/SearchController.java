@@ -1,13 +1,30 @@
 package com.steven.topsail.demo.quickstart.controller;
 
+import com.steven.topsail.demo.quickstart.batch.MultiGetBatcher;
+import com.steven.topsail.demo.quickstart.bloom.IdBloomFilter;
+import com.steven.topsail.demo.quickstart.cache.DocumentCache;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
+import com.steven.topsail.demo.quickstart.model.BulkIngestStats;
+import com.steven.topsail.demo.quickstart.model.DeleteProgress;
+import com.steven.topsail.demo.quickstart.model.ExportResult;
+import com.steven.topsail.demo.quickstart.service.IBulkDeleteService;
+import com.steven.topsail.demo.quickstart.service.IExportService;
 import com.steven.topsail.demo.quickstart.service.impl.SearchServiceImpl;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Steven
@@ -16,9 +33,33 @@ import java.util.Map;
 @RestController
 public class SearchController {
 
+    /**
+     * 只返回页面需要的字段，减少传输字节
+     */
+    private static final String SEARCH_FILTER_PATH =
+        "took,timed_out,hits.total,hits.max_score,hits.hits._id,hits.hits._score,hits.hits._source,hits.hits.highlight,error,status";
+
     @Autowired
     private SearchServiceImpl searchServiceImpl;
 
+    @Autowired
+    private IExportService exportService;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private MultiGetBatcher multiGetBatcher;
+
+    @Autowired
+    private IBulkDeleteService bulkDeleteService;
+
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
     @GetMapping("indexRequest")
     public void indexRequest() throws IOException {
         searchServiceImpl.indexRequest();
@@ -44,24 +85,38 @@ public class SearchController {
         searchServiceImpl.update();
     }
 
+    /**
+     * 局部更新，请求体为要修改的字段
+     *
+     * @param index
+     * @param id
+     * @param fields
+     * @return
+     */
+    @PostMapping("update/{index}/{id}")
+    public CompletableFuture<Boolean> partialUpdate(@PathVariable String index, @PathVariable String id,
+                                                    @RequestBody Map<String, Object> fields) {
+        return searchServiceImpl.partialUpdate(index, id, fields).thenApply(v -> true);
+    }
+
     @GetMapping("multiGet")
     public void multiGet() throws IOException {
         searchServiceImpl.multiGet();
     }
 
     @GetMapping("createDemoData")
-    public void createDemoData() throws Exception {
-        searchServiceImpl.createDemoData();
+    public CompletableFuture<Integer> createDemoData() {
+        return searchServiceImpl.createDemoData();
     }
 
     @GetMapping("createDemoDataBulk")
-    public void createDemoDataBulk() throws Exception {
-        searchServiceImpl.createDemoDataBulk();
+    public CompletableFuture<BulkIngestStats> createDemoDataBulk() {
+        return searchServiceImpl.createDemoDataBulk();
     }
 
     @GetMapping("truncate/{indexName}")
-    public void truncateIndex(@PathVariable("indexName") String indexName) throws IOException {
-        searchServiceImpl.deleteRecord(indexName);
+    public CompletableFuture<Long> truncateIndex(@PathVariable("indexName") String indexName) {
+        return searchServiceImpl.deleteRecord(indexName);
     }
 
     /**
@@ -72,21 +127,141 @@ public class SearchController {
      * @return
      */
     @GetMapping("/getById/{index}/{id}")
-    public Map<String, Object> getById(@PathVariable String index, @PathVariable String id) throws IOException {
-        return searchServiceImpl.getNameById(index, id);
+    public CompletableFuture<Map<String, Object>> getById(@PathVariable String index, @PathVariable String id) {
+        return searchServiceImpl.getNameByIdAsync(index, id);
+    }
+
+    /**
+     * 根据索引名和多个Id批量查找数据
+     *
+     * @param index
+     * @param ids   逗号分隔的 id 列表
+     * @return
+     */
+    @GetMapping("/multiGet/{index}")
+    public CompletableFuture<Map<String, Map<String, Object>>> multiGet(@PathVariable String index, @RequestParam String ids) {
+        return searchServiceImpl.multiGetAsync(index, Arrays.asList(ids.split(",")));
+    }
+
+    /**
+     * 文档缓存命中率等统计
+     *
+     * @return
+     */
+    @GetMapping("/cache/document/stats")
+    public Map<String, Object> documentCacheStats() {
+        return documentCache.stats();
+    }
+
+    /**
+     * get 合并统计：请求数、_mget 批次数、平均批大小
+     *
+     * @return
+     */
+    @GetMapping("/batch/get/stats")
+    public Map<String, Object> batchGetStats() {
+        return multiGetBatcher.stats();
     }
 
+    /**
+     * id 布隆过滤器统计：容量、预期误判率、实测误判率
+     *
+     * @return
+     */
+    @GetMapping("/bloom/id/stats")
+    public Map<String, Object> bloomIdStats() {
+        return idBloomFilter.stats();
+    }
+
+    /**
+     * 查询结果缓存统计
+     *
+     * @return
+     */
+    @GetMapping("/cache/search/stats")
+    public Map<String, Object> searchCacheStats() {
+        return searchResultCache.stats();
+    }
+
+    /**
+     * 主动剔除某个索引的查询结果缓存
+     *
+     * @param index
+     */
+    @GetMapping("/cache/search/invalidate/{index}")
+    public void searchCacheInvalidate(@PathVariable String index) {
+        searchResultCache.invalidate(index);
+    }
+
+    /**
+     * 菜单搜索，ES 响应体原样转发给客户端，不在本地解析、再序列化；相同查询在索引刷新周期内直接返回缓存
+     *
+     * @param content 搜索词
+     * @param from
+     * @param size
+     * @return
+     */
     @GetMapping("/search")
-    public String search(String content) throws IOException {
-        searchServiceImpl.search();
-        return "ok";
+    public CompletableFuture<ResponseEntity<byte[]>> search(@RequestParam String content,
+                                                            @RequestParam(defaultValue = "0") int from,
+                                                            @RequestParam(defaultValue = "10") int size) {
+        SearchSourceBuilder searchSource = searchServiceImpl.functionSearchSource(content.trim(), from, size);
+        return searchServiceImpl.cachedSearchAsync(SearchServiceImpl.FUNCTION_INDEX, searchSource, SEARCH_FILTER_PATH)
+            .thenApply(esResponse -> {
+                ResponseEntity.BodyBuilder builder = ResponseEntity.status(esResponse.getStatus());
+                if (null != esResponse.getContentType()) {
+                    builder.header(HttpHeaders.CONTENT_TYPE, esResponse.getContentType());
+                }
+                return builder.body(esResponse.getBody());
+            });
     }
 
     @GetMapping("/delete")
-    public long delete(String title) {
-        long deleteNum = searchServiceImpl.deleteArticle(title);
-        return deleteNum;
+    public CompletableFuture<Long> delete(String title) {
+        return searchServiceImpl.deleteArticleCount(title);
     }
 
-}
+    /**
+     * 以 sliced scroll 并行导出整个索引到本地 NDJSON 文件
+     *
+     * @param index    索引名
+     * @param file     输出文件名，相对于 export.dir，默认 {index}.ndjson
+     * @param slices   切片数
+     * @param pageSize 每页文档数
+     * @return
+     * @throws IOException
+     */
+    @GetMapping("/export/{index}")
+    public CompletableFuture<ExportResult> export(@PathVariable String index,
+                                                  @RequestParam(required = false) String file,
+                                                  @RequestParam(defaultValue = "4") int slices,
+                                                  @RequestParam(defaultValue = "2000") int pageSize) {
+        if (null == file) {
+            file = index + ".ndjson";
+        }
+        return exportService.exportAsync(index, file, slices, pageSize);
+    }
+
+    /**
+     * 异步删除标题匹配的文章，返回任务进度
+     *
+     * @param index
+     * @param title
+     * @return
+     */
+    @GetMapping("/delete/async")
+    public DeleteProgress deleteAsync(@RequestParam(defaultValue = "article-2019.08.08.03") String index, String title) {
+        return searchServiceImpl.deleteArticleAsync(index, title);
+    }
 
+    @GetMapping("/delete/progress/{taskId}")
+    public DeleteProgress deleteProgress(@PathVariable String taskId) {
+        return bulkDeleteService.progress(taskId);
+    }
+
+    @GetMapping("/delete/cancel/{taskId}")
+    public boolean deleteCancel(@PathVariable String taskId) {
+        return bulkDeleteService.cancel(taskId);
+    }
+
+}
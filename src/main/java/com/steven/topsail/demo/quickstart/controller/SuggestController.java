@@ -0,0 +1,40 @@
+package com.steven.topsail.demo.quickstart.controller;
+
+import com.steven.topsail.demo.quickstart.model.FunctionSuggestion;
+import com.steven.topsail.demo.quickstart.suggest.FunctionSuggester;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @author Steven
+ * @date 2021-01-30
+ */
+@RestController
+public class SuggestController {
+
+    @Autowired
+    private FunctionSuggester functionSuggester;
+
+    /**
+     * 菜单搜索框联想，按 FUNC_NAME / VIEWNAME 前缀匹配，不访问 ES
+     *
+     * @param prefix 已输入的内容
+     * @param size   返回条数
+     * @return
+     */
+    @GetMapping("/suggest")
+    public List<FunctionSuggestion> suggest(@RequestParam String prefix, @RequestParam(defaultValue = "10") int size) {
+        return functionSuggester.suggest(prefix, size);
+    }
+
+    @GetMapping("/suggest/refresh")
+    public int refresh() throws IOException {
+        functionSuggester.fullRefresh();
+        return functionSuggester.size();
+    }
+}
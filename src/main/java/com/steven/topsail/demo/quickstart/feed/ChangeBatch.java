@@ -0,0 +1,38 @@
+package com.steven.topsail.demo.quickstart.feed;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 一批变更，对应一页拉取结果或一次对账的结果
+ *
+ * @author Steven
+ * @date 2021-02-12
+ */
+@Data
+public final class ChangeBatch {
+
+    public enum Type {
+        /**
+         * 全量同步：索引中的全部文档，以及同步前已知、同步后不存在的文档
+         */
+        FULL,
+        /**
+         * 按时间戳增量拉取的变更
+         */
+        DELTA,
+        /**
+         * id 集合对账发现的删除，以及没有时间戳、增量拉取不到的新文档
+         */
+        RECONCILE
+    }
+
+    private final String index;
+
+    private final Type type;
+
+    private final List<ChangedDocument> upserts;
+
+    private final List<String> deletes;
+}
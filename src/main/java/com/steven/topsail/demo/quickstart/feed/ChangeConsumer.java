@@ -0,0 +1,18 @@
+package com.steven.topsail.demo.quickstart.feed;
+
+import java.io.IOException;
+
+/**
+ * 变更订阅者
+ * <p>
+ * 在变更订阅的调度线程中同步调用，同一个索引的批次按顺序到达。批次可能重复投递
+ * （重叠窗口、订阅者失败后的全量重放），处理必须是幂等的。
+ *
+ * @author Steven
+ * @date 2021-02-12
+ */
+@FunctionalInterface
+public interface ChangeConsumer {
+
+    void onChanges(ChangeBatch batch) throws IOException;
+}
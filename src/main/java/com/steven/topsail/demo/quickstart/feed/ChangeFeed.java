@@ -0,0 +1,561 @@
+package com.steven.topsail.demo.quickstart.feed;
+
+import com.carrotsearch.hppc.ObjectLongHashMap;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectLongCursor;
+import com.steven.topsail.demo.quickstart.util.ScrollUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ES 变更订阅
+ * <p>
+ * 进程内的缓存、联想前缀树、布隆过滤器等视图共用同一份增量拉取，不再各自定期全量扫描索引。
+ * 每个被订阅的索引维护一个高水位：时间戳字段的最大值；有订阅者需要删除事件时，还维护每个文档
+ * 最后一次拉到的 _seq_no（已知集合）。
+ * <ul>
+ * <li>首次（或需要重放时）全量同步一次，之后按 poll-interval 拉取时间戳不早于 高水位 - overlap 的文档，
+ * _seq_no 没有增长的跳过，重叠窗口用来兜住 refresh 延迟和写入方时钟偏差</li>
+ * <li>按分片逐个拉取（preference=_shards:N），排序为 [时间戳, _seq_no]，二者在分片内唯一，
+ * 用 search_after 大页翻页，不需要 scroll 上下文，也不需要按 _id 排序加载 fielddata</li>
+ * <li>时间戳拉不到删除，也拉不到时间戳落在窗口之前的修改（写入方时钟偏差、时间戳字段不是修改时间），
+ * 由 reconcile-interval 周期的对账补上：扫描全部 id 及 _seq_no 与已知集合比对，已知集合中没有扫到的是删除，
+ * 扫到但 _seq_no 不同或未知的按 id 补拉</li>
+ * </ul>
+ * 每页变更作为一个批次同步投递给该索引的全部订阅者。订阅者处理失败、新订阅者加入、
+ * 别名切换到新的实际索引时，下一次拉取改为全量同步，订阅者需要幂等处理重复的文档；
+ * 订阅者连续失败时全量重放按 poll-interval 指数退避，最长 max-backoff。
+ * <p>
+ * 已知集合用 hppc 的 ObjectLongHashMap 保存（不装箱，每个 id 约 id 字符串本身加 16 字节），
+ * 对账时在原集合上就地标记，不另建 id 集合；只需要新增 id 的订阅者（如布隆过滤器）不会触发已知集合的维护。
+ *
+ * @author Steven
+ * @date 2021-02-12
+ */
+@Slf4j
+@Component
+public class ChangeFeed {
+
+    /**
+     * 逗号分隔的 索引:时间戳字段，未列出的索引使用 default-timestamp-field
+     */
+    @Value("${feed.timestamp-fields:posts:date}")
+    private String timestampFields;
+
+    @Value("${feed.default-timestamp-field:DONE_DATE}")
+    private String defaultTimestampField;
+
+    @Value("${feed.poll-interval:10000}")
+    private long pollInterval;
+
+    @Value("${feed.reconcile-interval:600000}")
+    private long reconcileInterval;
+
+    @Value("${feed.page-size:5000}")
+    private int pageSize;
+
+    /**
+     * 增量拉取的回看窗口（毫秒）
+     */
+    @Value("${feed.overlap:5000}")
+    private long overlap;
+
+    /**
+     * 订阅者失败后全量重放的最长退避（毫秒）
+     */
+    @Value("${feed.max-backoff:600000}")
+    private long maxBackoff;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    private final Map<String, String> fields = new HashMap<>();
+
+    private final Map<String, Feed> feeds = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (String pair : StringUtils.split(timestampFields, ',')) {
+            String[] parts = StringUtils.split(pair, ':');
+            if (parts.length == 2) {
+                fields.put(parts[0].trim(), parts[1].trim());
+            }
+        }
+    }
+
+    /**
+     * 订阅索引的变更，首个订阅者到来时开始拉取
+     * <p>
+     * 索引已经在同步时，下一次拉取改为全量同步，新订阅者从完整数据开始。
+     *
+     * @param index        索引或只指向一个实际索引的别名
+     * @param needsSource  只需要 id 时传 false
+     * @param needsDeletes 需要删除事件时传 true，该索引随之维护已知集合并定期对账；
+     *                     为 false 的订阅者只收到新增和修改，重叠窗口内的文档每次都会重复推送
+     * @param consumer
+     */
+    public void register(String index, boolean needsSource, boolean needsDeletes, ChangeConsumer consumer) {
+        Feed created = new Feed(index, fields.getOrDefault(index, defaultTimestampField));
+        Feed feed = feeds.putIfAbsent(index, created);
+        if (null == feed) {
+            feed = created;
+        }
+        synchronized (feed) {
+            feed.consumers.add(consumer);
+            if (needsSource) {
+                feed.needsSource = true;
+            }
+            if (needsDeletes && null == feed.versions) {
+                feed.versions = new ObjectLongHashMap<>();
+            }
+            if (feed.synced) {
+                feed.needsFull = true;
+            }
+        }
+        if (feed == created) {
+            Feed scheduled = created;
+            taskScheduler.scheduleWithFixedDelay(() -> safePoll(scheduled), pollInterval);
+            taskScheduler.scheduleWithFixedDelay(() -> safeReconcile(scheduled),
+                new Date(System.currentTimeMillis() + reconcileInterval), reconcileInterval);
+            log.info("变更订阅: {}，时间戳字段: {}", index, created.timestampField);
+        }
+    }
+
+    /**
+     * 立即全量同步，在调用线程中执行
+     *
+     * @param index
+     * @throws IOException
+     */
+    public void resync(String index) throws IOException {
+        Feed feed = feeds.get(index);
+        if (null == feed) {
+            throw new IllegalArgumentException("索引没有订阅者: " + index);
+        }
+        synchronized (feed) {
+            pull(feed, true);
+        }
+    }
+
+    /**
+     * 拉取一次变更：尚未同步或需要重放时全量，否则增量
+     *
+     * @param index
+     * @throws IOException
+     */
+    public void poll(String index) throws IOException {
+        Feed feed = feeds.get(index);
+        if (null != feed) {
+            poll(feed);
+        }
+    }
+
+    /**
+     * 立即执行一次 id 集合对账
+     *
+     * @param index
+     * @throws IOException
+     */
+    public void reconcile(String index) throws IOException {
+        Feed feed = feeds.get(index);
+        if (null != feed) {
+            reconcile(feed);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, Feed> entry : feeds.entrySet()) {
+            Feed feed = entry.getValue();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("timestampField", feed.timestampField);
+            stats.put("concreteIndex", feed.concreteIndex);
+            stats.put("consumers", feed.consumers.size());
+            stats.put("synced", feed.synced);
+            stats.put("highWater", feed.highWater == Long.MIN_VALUE ? -1 : feed.highWater);
+            stats.put("tracked", null != feed.versions);
+            stats.put("known", feed.known);
+            stats.put("fullPasses", feed.fullPasses.sum());
+            stats.put("deltaPasses", feed.deltaPasses.sum());
+            stats.put("reconciles", feed.reconciles.sum());
+            stats.put("fetched", feed.fetched.sum());
+            stats.put("upserts", feed.upserts.sum());
+            stats.put("deletes", feed.deletes.sum());
+            stats.put("consumerFailures", feed.consumerFailures.sum());
+            stats.put("retryAt", feed.retryAt);
+            stats.put("lastPassMillis", feed.lastPassMillis);
+            stats.put("lastPassTime", feed.lastPassTime);
+            stats.put("lastReconcileTime", feed.lastReconcileTime);
+            map.put(entry.getKey(), stats);
+        }
+        return map;
+    }
+
+    private void poll(Feed feed) throws IOException {
+        synchronized (feed) {
+            if (feed.needsFull && System.currentTimeMillis() < feed.retryAt) {
+                return;
+            }
+            pull(feed, !feed.synced || feed.needsFull);
+        }
+    }
+
+    /**
+     * 按分片拉取变更并投递，调用方持有 feed 锁
+     *
+     * @param feed
+     * @param full
+     * @throws IOException
+     */
+    private void pull(Feed feed, boolean full) throws IOException {
+        long start = System.currentTimeMillis();
+        String[] target = resolve(feed.index);
+        if (null == target) {
+            log.debug("变更订阅的索引尚不存在: {}", feed.index);
+            return;
+        }
+        String concreteIndex = target[0];
+        int shards = Integer.parseInt(target[1]);
+        if (!full && !concreteIndex.equals(feed.concreteIndex)) {
+            log.info("变更订阅 {} 的实际索引由 {} 变为 {}，改为全量同步", feed.index, feed.concreteIndex, concreteIndex);
+            full = true;
+        }
+        if (!full && feed.highWater == Long.MIN_VALUE) {
+            // 索引中没有带时间戳的文档，只能靠对账发现变更
+            return;
+        }
+        // 全量同步时重新建立已知集合，结束后与旧集合比对找出删除
+        ObjectLongHashMap<String> versions = null == feed.versions ? null : full ? new ObjectLongHashMap<>() : feed.versions;
+        QueryBuilder query = full ? QueryBuilders.matchAllQuery()
+            : QueryBuilders.rangeQuery(feed.timestampField).gte(feed.highWater - overlap).format("epoch_millis");
+        ChangeBatch.Type type = full ? ChangeBatch.Type.FULL : ChangeBatch.Type.DELTA;
+        feed.needsFull = false;
+        feed.passFailed = false;
+        long highWater = full ? Long.MIN_VALUE : feed.highWater;
+
+        for (int shard = 0; shard < shards; shard++) {
+            Object[] after = null;
+            while (true) {
+                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                    .query(query)
+                    .size(pageSize)
+                    .fetchSource(feed.needsSource)
+                    .seqNoAndPrimaryTerm(true)
+                    .trackTotalHits(false)
+                    .sort(SortBuilders.fieldSort(feed.timestampField).order(SortOrder.ASC).missing("_first").unmappedType("date"))
+                    .sort(SortBuilders.fieldSort("_seq_no").order(SortOrder.ASC));
+                if (null != after) {
+                    searchSourceBuilder.searchAfter(after);
+                }
+                SearchRequest searchRequest = new SearchRequest(concreteIndex).source(searchSourceBuilder).preference("_shards:" + shard);
+                SearchHit[] hits = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT).getHits().getHits();
+                feed.fetched.add(hits.length);
+
+                List<ChangedDocument> upserts = new ArrayList<>();
+                for (SearchHit hit : hits) {
+                    long timestamp = timestamp(hit);
+                    highWater = Math.max(highWater, timestamp);
+                    if (null != versions) {
+                        int slot = versions.indexOf(hit.getId());
+                        if (!full && versions.indexExists(slot) && versions.indexGet(slot) >= hit.getSeqNo()) {
+                            // 重叠窗口内重复拉到的文档
+                            continue;
+                        }
+                        versions.put(hit.getId(), hit.getSeqNo());
+                    }
+                    upserts.add(toChange(hit, timestamp));
+                }
+                publish(feed, type, upserts, Collections.emptyList());
+                if (hits.length < pageSize) {
+                    break;
+                }
+                after = hits[hits.length - 1].getSortValues();
+            }
+        }
+
+        if (full) {
+            if (null != versions) {
+                List<String> deleted = new ArrayList<>();
+                for (ObjectCursor<String> id : feed.versions.keys()) {
+                    if (!versions.containsKey(id.value)) {
+                        deleted.add(id.value);
+                    }
+                }
+                feed.versions = versions;
+                publishDeletes(feed, type, deleted);
+            }
+            feed.fullPasses.increment();
+        } else {
+            feed.deltaPasses.increment();
+        }
+        feed.concreteIndex = concreteIndex;
+        feed.highWater = highWater;
+        feed.known = null == feed.versions ? 0 : feed.versions.size();
+        feed.synced = true;
+        feed.lastPassTime = System.currentTimeMillis();
+        feed.lastPassMillis = feed.lastPassTime - start;
+        backoff(feed);
+        if (full) {
+            log.info("变更订阅 {} 全量同步完成，文档数: {}，高水位: {}，耗时: {} ms",
+                feed.index, feed.known, feed.highWater, feed.lastPassMillis);
+        }
+    }
+
+    /**
+     * 对账：找出已删除的文档，补拉 _seq_no 变化或未知的文档（时间戳在窗口之前的修改、没有时间戳的文档）
+     *
+     * @param feed
+     * @throws IOException
+     */
+    private void reconcile(Feed feed) throws IOException {
+        synchronized (feed) {
+            ObjectLongHashMap<String> versions = feed.versions;
+            if (null == versions || !feed.synced || feed.needsFull) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            feed.passFailed = false;
+            // 持有锁期间已知集合只在这里修改；扫描开始后才写入的文档两边都没有，留给下一次增量拉取。
+            // 扫到的已知文档把值改成 -seqNo-1 作为标记，扫描结束（或失败）后还原，不另建集合
+            List<String> stale = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .fetchSource(false)
+                .seqNoAndPrimaryTerm(true)
+                .size(pageSize)
+                .sort("_doc", SortOrder.ASC);
+            boolean scanned = false;
+            try {
+                ScrollUtils.scan(restHighLevelClient, new SearchRequest(feed.concreteIndex).source(searchSourceBuilder), hit -> {
+                    int slot = versions.indexOf(hit.getId());
+                    if (!versions.indexExists(slot)) {
+                        stale.add(hit.getId());
+                        return;
+                    }
+                    long seqNo = versions.indexGet(slot);
+                    if (seqNo < 0) {
+                        return;
+                    }
+                    if (seqNo != hit.getSeqNo()) {
+                        stale.add(hit.getId());
+                    }
+                    versions.indexReplace(slot, -seqNo - 1);
+                });
+                scanned = true;
+            } finally {
+                for (ObjectLongCursor<String> cursor : versions) {
+                    if (cursor.value < 0) {
+                        versions.values[cursor.index] = -cursor.value - 1;
+                    } else if (scanned) {
+                        deleted.add(cursor.key);
+                    }
+                }
+            }
+            for (String id : deleted) {
+                versions.remove(id);
+            }
+            publishDeletes(feed, ChangeBatch.Type.RECONCILE, deleted);
+
+            for (int from = 0; from < stale.size(); from += pageSize) {
+                List<String> ids = stale.subList(from, Math.min(from + pageSize, stale.size()));
+                SearchSourceBuilder fetch = new SearchSourceBuilder()
+                    .query(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0])))
+                    .size(ids.size())
+                    .fetchSource(feed.needsSource)
+                    .seqNoAndPrimaryTerm(true)
+                    .trackTotalHits(false);
+                SearchHit[] hits = restHighLevelClient.search(new SearchRequest(feed.concreteIndex).source(fetch),
+                    RequestOptions.DEFAULT).getHits().getHits();
+                feed.fetched.add(hits.length);
+                List<ChangedDocument> upserts = new ArrayList<>(hits.length);
+                for (SearchHit hit : hits) {
+                    versions.put(hit.getId(), hit.getSeqNo());
+                    upserts.add(toChange(hit, Long.MIN_VALUE));
+                }
+                publish(feed, ChangeBatch.Type.RECONCILE, upserts, Collections.emptyList());
+            }
+            feed.known = versions.size();
+            feed.reconciles.increment();
+            feed.lastReconcileTime = System.currentTimeMillis();
+            backoff(feed);
+            if (!deleted.isEmpty() || !stale.isEmpty()) {
+                log.info("变更订阅 {} 对账完成，删除: {}，补拉: {}，耗时: {} ms",
+                    feed.index, deleted.size(), stale.size(), feed.lastReconcileTime - start);
+            }
+        }
+    }
+
+    /**
+     * 本轮有订阅者失败时按连续失败次数计算下一次全量重放的时间，成功时清零
+     */
+    private void backoff(Feed feed) {
+        if (!feed.passFailed) {
+            feed.consecutiveFailures = 0;
+            feed.retryAt = 0;
+            return;
+        }
+        int failures = Math.min(++feed.consecutiveFailures, 20);
+        long delay = Math.min(maxBackoff, pollInterval << Math.min(failures - 1, 20));
+        feed.retryAt = System.currentTimeMillis() + delay;
+        log.warn("变更订阅 {} 的订阅者连续失败 {} 次，{} ms 后全量重放", feed.index, feed.consecutiveFailures, delay);
+    }
+
+    private void publishDeletes(Feed feed, ChangeBatch.Type type, List<String> deleted) {
+        for (int from = 0; from < deleted.size(); from += pageSize) {
+            publish(feed, type, Collections.emptyList(), deleted.subList(from, Math.min(from + pageSize, deleted.size())));
+        }
+    }
+
+    /**
+     * 同步投递给全部订阅者；任一订阅者失败时下一次拉取全量重放
+     */
+    private void publish(Feed feed, ChangeBatch.Type type, List<ChangedDocument> upserts, List<String> deletes) {
+        if (upserts.isEmpty() && deletes.isEmpty()) {
+            return;
+        }
+        ChangeBatch batch = new ChangeBatch(feed.index, type, Collections.unmodifiableList(upserts), Collections.unmodifiableList(deletes));
+        feed.upserts.add(upserts.size());
+        feed.deletes.add(deletes.size());
+        for (ChangeConsumer consumer : feed.consumers) {
+            try {
+                consumer.onChanges(batch);
+            } catch (Exception e) {
+                feed.consumerFailures.increment();
+                feed.needsFull = true;
+                feed.passFailed = true;
+                log.error("变更订阅 {} 的订阅者处理失败，下一次拉取全量同步", feed.index, e);
+            }
+        }
+    }
+
+    /**
+     * @param index
+     * @return [实际索引名, 主分片数]，索引不存在时返回 null
+     * @throws IOException
+     */
+    private String[] resolve(String index) throws IOException {
+        GetSettingsResponse response;
+        try {
+            response = restHighLevelClient.indices().getSettings(
+                new GetSettingsRequest().indices(index).names("index.number_of_shards"), RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (RestStatus.NOT_FOUND == e.status()) {
+                return null;
+            }
+            throw e;
+        }
+        Iterator<String> concreteIndices = response.getIndexToSettings().keysIt();
+        if (!concreteIndices.hasNext()) {
+            return null;
+        }
+        String concreteIndex = concreteIndices.next();
+        if (concreteIndices.hasNext()) {
+            // 多个实际索引的分片号和 _seq_no 会重复，search_after 无法唯一定位
+            throw new IllegalStateException("变更订阅要求别名只指向一个实际索引: " + index);
+        }
+        return new String[]{concreteIndex, response.getSetting(concreteIndex, "index.number_of_shards")};
+    }
+
+    private static long timestamp(SearchHit hit) {
+        Object[] sortValues = hit.getSortValues();
+        return sortValues.length > 0 && sortValues[0] instanceof Number ? ((Number) sortValues[0]).longValue() : Long.MIN_VALUE;
+    }
+
+    private static ChangedDocument toChange(SearchHit hit, long timestamp) {
+        boolean hasSource = hit.hasSource();
+        return new ChangedDocument(hit.getId(), hit.getSeqNo(), hit.getPrimaryTerm(), timestamp,
+            hasSource ? hit.getSourceAsMap() : null, hasSource ? hit.getSourceRef() : null);
+    }
+
+    private void safePoll(Feed feed) {
+        try {
+            poll(feed);
+        } catch (Exception e) {
+            log.error("变更订阅 {} 拉取失败", feed.index, e);
+        }
+    }
+
+    private void safeReconcile(Feed feed) {
+        try {
+            reconcile(feed);
+        } catch (Exception e) {
+            log.error("变更订阅 {} 对账失败", feed.index, e);
+        }
+    }
+
+    /**
+     * 单个索引的订阅状态，拉取与对账都在该对象上加锁串行执行
+     */
+    private static final class Feed {
+        private final String index;
+        private final String timestampField;
+        private final List<ChangeConsumer> consumers = new CopyOnWriteArrayList<>();
+        private boolean needsSource;
+        private volatile boolean synced;
+        private volatile boolean needsFull;
+        private volatile String concreteIndex;
+        /**
+         * 已拉取文档中时间戳的最大值
+         */
+        private volatile long highWater = Long.MIN_VALUE;
+        /**
+         * 已知文档 id -> 最后拉到的 _seq_no，同一文档始终在同一分片上，_seq_no 可以直接比较；
+         * 没有订阅者需要删除事件时为 null
+         */
+        private ObjectLongHashMap<String> versions;
+        private boolean passFailed;
+        private int consecutiveFailures;
+        private volatile long retryAt;
+        private volatile long known;
+        private volatile long lastPassMillis;
+        private volatile long lastPassTime;
+        private volatile long lastReconcileTime;
+        private final LongAdder fullPasses = new LongAdder();
+        private final LongAdder deltaPasses = new LongAdder();
+        private final LongAdder reconciles = new LongAdder();
+        private final LongAdder fetched = new LongAdder();
+        private final LongAdder upserts = new LongAdder();
+        private final LongAdder deletes = new LongAdder();
+        private final LongAdder consumerFailures = new LongAdder();
+
+        private Feed(String index, String timestampField) {
+            this.index = index;
+            this.timestampField = timestampField;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.steven.topsail.demo.quickstart.feed;
+
+import lombok.Data;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.util.Map;
+
+/**
+ * 变更订阅中新增或修改的文档
+ *
+ * @author Steven
+ * @date 2021-02-12
+ */
+@Data
+public final class ChangedDocument {
+
+    private final String id;
+
+    private final long seqNo;
+
+    private final long primaryTerm;
+
+    /**
+     * 时间戳字段的值（epoch 毫秒），文档没有该字段时为 Long.MIN_VALUE
+     */
+    private final long timestamp;
+
+    /**
+     * 没有订阅者需要 _source 时为 null
+     */
+    private final Map<String, Object> source;
+
+    private final BytesReference sourceRef;
+}
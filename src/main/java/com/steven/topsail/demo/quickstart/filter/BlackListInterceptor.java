@@ -0,0 +1,44 @@
+package com.steven.topsail.demo.quickstart.filter;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 黑名单拦截器，请求头或请求参数中的操作员在黑名单中时返回 403
+ * <p>
+ * 只查内存中的过滤器和确认结果，不等待 ES；过滤器的误判在后台确认后排除，确认完成前的少量请求可能被误拒
+ *
+ * @author Steven
+ * @date 2021-01-28
+ */
+@Slf4j
+@Component
+public class BlackListInterceptor implements HandlerInterceptor {
+
+    @Value("${filter.black-users.header:opId}")
+    private String opIdName;
+
+    @Autowired
+    private ListFilterService listFilterService;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String opId = request.getHeader(opIdName);
+        if (null == opId) {
+            opId = request.getParameter(opIdName);
+        }
+        if (null != opId && listFilterService.isBlack(opId)) {
+            log.warn("黑名单用户访问被拒绝，opId: {}，uri: {}", opId, request.getRequestURI());
+            response.setStatus(HttpStatus.FORBIDDEN.value());
+            return false;
+        }
+        return true;
+    }
+}
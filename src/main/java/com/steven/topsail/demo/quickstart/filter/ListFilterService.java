@@ -0,0 +1,395 @@
+package com.steven.topsail.demo.quickstart.filter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.steven.topsail.demo.quickstart.util.ScrollUtils;
+import com.carrotsearch.hppc.ObjectHashSet;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 黑白名单过滤服务
+ * <p>
+ * 名单来自 ES 索引的文档 id。每个名单的过滤器在后台整体构建，写成快照文件后内存映射，
+ * 再一次性替换当前代；读路径只读一个 volatile 引用，不加锁、不分配对象。
+ * 重启时直接映射已有快照，无需等待重新扫描即可提供服务。
+ * <p>
+ * 布隆过滤器命中只表示“可能在名单中”。元素数不超过 exact-max-size 的名单在重建时同时保存精确集合，
+ * 命中后直接查集合；更大的名单命中后在后台按文档 id 异步到 ES 确认，结果短时缓存，
+ * 确认完成前按过滤器的结果（在名单中）处理。读路径始终不等待 ES，未命中的绝大多数请求只查过滤器。
+ *
+ * @author Steven
+ * @date 2021-01-28
+ */
+@Slf4j
+@Service
+public class ListFilterService {
+
+    /**
+     * 黑名单用户
+     */
+    public static final String BLACK_USERS = "black-users";
+
+    /**
+     * 白名单服务
+     */
+    public static final String WHITE_SERVICE_NAME = "white-services";
+
+    @Value("${filter.black-users.index:black_users}")
+    private String blackUsersIndex;
+
+    @Value("${filter.white-services.index:white_services}")
+    private String whiteServicesIndex;
+
+    @Value("${filter.snapshot-dir:data/filter}")
+    private String snapshotDir;
+
+    @Value("${filter.fpp:0.01}")
+    private double fpp;
+
+    @Value("${filter.refresh-interval:600000}")
+    private long refreshInterval;
+
+    /**
+     * 确认结果的缓存时长，名单变更最多延迟这么久生效
+     */
+    @Value("${filter.confirm-ttl:60000}")
+    private long confirmTtl;
+
+    @Value("${filter.confirm-max-size:100000}")
+    private long confirmMaxSize;
+
+    /**
+     * 同时在途的异步确认数上限，超出时本次不确认
+     */
+    @Value("${filter.confirm-max-in-flight:64}")
+    private int confirmMaxInFlight;
+
+    /**
+     * 元素数不超过该值的名单保存精确集合，无需到 ES 确认
+     */
+    @Value("${filter.exact-max-size:20000}")
+    private long exactMaxSize;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    private final Map<String, Holder> holders = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        holders.put(BLACK_USERS, new Holder(BLACK_USERS, blackUsersIndex, 500000, confirmCache()));
+        holders.put(WHITE_SERVICE_NAME, new Holder(WHITE_SERVICE_NAME, whiteServicesIndex, 10000, confirmCache()));
+
+        for (Holder holder : holders.values()) {
+            Path snapshot = snapshot(holder.name);
+            if (Files.exists(snapshot)) {
+                try {
+                    holder.current = MappedBloomFilter.open(snapshot);
+                    log.info("加载名单快照: {}，元素数: {}", snapshot, holder.current.getInsertions());
+                } catch (IOException | RuntimeException e) {
+                    log.warn("名单快照不可用，等待重建: {}", snapshot, e);
+                }
+            }
+        }
+        taskScheduler.scheduleWithFixedDelay(this::rebuildAll, refreshInterval);
+    }
+
+    /**
+     * 是否黑名单用户
+     *
+     * @param opId
+     * @return
+     */
+    public boolean isBlack(String opId) {
+        return contains(BLACK_USERS, opId, false);
+    }
+
+    /**
+     * 是否白名单服务，名单尚未加载时一律放行
+     *
+     * @param serviceName
+     * @return
+     */
+    public boolean isWhiteService(String serviceName) {
+        return contains(WHITE_SERVICE_NAME, serviceName, true);
+    }
+
+    /**
+     * 判断值是否在名单中：过滤器未命中直接返回 false，命中后查精确集合或已缓存的确认结果，
+     * 都没有时发起异步确认并按命中处理，不阻塞调用线程
+     *
+     * @param name         名单名
+     * @param value        待检查的值
+     * @param defaultValue 名单尚未加载时的返回值
+     * @return
+     */
+    public boolean contains(String name, String value, boolean defaultValue) {
+        Holder holder = holders.get(name);
+        if (null == holder) {
+            throw new IllegalArgumentException("未知名单: " + name);
+        }
+        if (null == holder.current) {
+            return defaultValue;
+        }
+        if (!mightContain(name, value, defaultValue)) {
+            return false;
+        }
+        ObjectHashSet<String> exact = holder.exact;
+        if (null != exact) {
+            boolean exists = exact.contains(value);
+            if (!exists) {
+                holder.falsePositives.increment();
+            }
+            return exists;
+        }
+        Boolean exists = holder.confirmed.getIfPresent(value);
+        if (null != exists) {
+            return exists;
+        }
+        confirmAsync(holder, value);
+        return true;
+    }
+
+    /**
+     * 后台确认过滤器命中，同一个值同时只确认一次；确认期间名单重建过则丢弃结果
+     */
+    private void confirmAsync(Holder holder, String value) {
+        if (holder.confirming.size() >= confirmMaxInFlight || null != holder.confirming.putIfAbsent(value, Boolean.TRUE)) {
+            return;
+        }
+        long generation = holder.generation.get();
+        GetRequest request = new GetRequest(holder.index, value).fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
+        try {
+            restHighLevelClient.existsAsync(request, RequestOptions.DEFAULT, new ActionListener<Boolean>() {
+                @Override
+                public void onResponse(Boolean exists) {
+                    if (generation == holder.generation.get()) {
+                        holder.confirmed.put(value, exists);
+                        if (!exists) {
+                            holder.falsePositives.increment();
+                        }
+                    }
+                    holder.confirming.remove(value);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    holder.confirming.remove(value);
+                    log.warn("名单 {} 确认失败，value: {}，原因: {}", holder.name, value, e.toString());
+                }
+            });
+        } catch (RuntimeException e) {
+            holder.confirming.remove(value);
+            log.warn("名单 {} 确认失败，value: {}，原因: {}", holder.name, value, e.toString());
+        }
+    }
+
+    /**
+     * 判断值是否可能在名单中，只查过滤器，有误判
+     *
+     * @param name         名单名
+     * @param value        待检查的值
+     * @param defaultValue 名单尚未加载时的返回值
+     * @return
+     */
+    public boolean mightContain(String name, String value, boolean defaultValue) {
+        Holder holder = holders.get(name);
+        if (null == holder) {
+            throw new IllegalArgumentException("未知名单: " + name);
+        }
+        MappedBloomFilter filter = holder.current;
+        if (null == filter) {
+            return defaultValue;
+        }
+        long start = System.nanoTime();
+        boolean might = filter.mightContain(value);
+        holder.record(System.nanoTime() - start, might);
+        return might;
+    }
+
+    public void rebuildAll() {
+        for (Holder holder : holders.values()) {
+            try {
+                rebuild(holder.name);
+            } catch (Exception e) {
+                log.error("重建名单失败: {}", holder.name, e);
+            }
+        }
+    }
+
+    /**
+     * 后台构建新一代过滤器，写快照、映射后原子替换
+     *
+     * @param name
+     * @throws IOException
+     */
+    public synchronized void rebuild(String name) throws IOException {
+        Holder holder = holders.get(name);
+        if (null == holder) {
+            throw new IllegalArgumentException("未知名单: " + name);
+        }
+        long start = System.currentTimeMillis();
+        long count = restHighLevelClient.count(new CountRequest(holder.index), RequestOptions.DEFAULT).getCount();
+        MappedBloomFilter.Builder builder = MappedBloomFilter.builder(Math.max(holder.expectedInsertions, count), fpp);
+        ObjectHashSet<String> exact = count <= exactMaxSize ? new ObjectHashSet<>((int) count) : null;
+        ScrollUtils.scanIds(restHighLevelClient, holder.index, id -> {
+            builder.put(id);
+            if (null != exact) {
+                exact.add(id);
+            }
+        });
+
+        MappedBloomFilter filter = builder.writeTo(snapshot(name));
+        holder.exact = exact;
+        holder.current = filter;
+        holder.generation.incrementAndGet();
+        holder.confirmed.invalidateAll();
+        log.info("名单 {} 重建完成，元素数: {}，填充率: {}，耗时: {} ms",
+            name, holder.current.getInsertions(), holder.current.getFillRatio(), System.currentTimeMillis() - start);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Holder holder : holders.values()) {
+            map.put(holder.name, holder.stats());
+        }
+        return map;
+    }
+
+    private Cache<String, Boolean> confirmCache() {
+        return Caffeine.newBuilder()
+            .maximumSize(confirmMaxSize)
+            .expireAfterWrite(confirmTtl, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    private Path snapshot(String name) {
+        return Paths.get(snapshotDir, name + ".bloom");
+    }
+
+    private static final class Holder {
+
+        /**
+         * 延迟分布，按 2 的幂分桶（纳秒）
+         */
+        private static final int BUCKETS = 32;
+
+        private final String name;
+        private final String index;
+        private final long expectedInsertions;
+        private final AtomicLong generation = new AtomicLong();
+        private volatile MappedBloomFilter current;
+
+        /**
+         * 小名单的精确集合，发布后只读；大名单或快照刚恢复尚未重建时为 null
+         */
+        private volatile ObjectHashSet<String> exact;
+
+        /**
+         * 在途的异步确认
+         */
+        private final Map<String, Boolean> confirming = new ConcurrentHashMap<>();
+
+        /**
+         * 过滤器命中后到 ES 确认的结果
+         */
+        private final Cache<String, Boolean> confirmed;
+        private final LongAdder falsePositives = new LongAdder();
+
+        private final LongAdder checks = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        private Holder(String name, String index, long expectedInsertions, Cache<String, Boolean> confirmed) {
+            this.name = name;
+            this.index = index;
+            this.expectedInsertions = expectedInsertions;
+            this.confirmed = confirmed;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos, boolean hit) {
+            checks.increment();
+            if (hit) {
+                hits.increment();
+            }
+            totalNanos.add(nanos);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        private Map<String, Object> stats() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            MappedBloomFilter filter = current;
+            map.put("ready", null != filter);
+            map.put("generation", generation.get());
+            map.put("exact", null != exact);
+            map.put("confirming", confirming.size());
+            if (null != filter) {
+                map.put("insertions", filter.getInsertions());
+                map.put("numBits", filter.getNumBits());
+                map.put("numHashes", filter.getNumHashes());
+                map.put("fillRatio", filter.getFillRatio());
+                map.put("expectedFpp", filter.getExpectedFpp());
+                map.put("buildTime", filter.getBuildTime());
+            }
+            long n = checks.sum();
+            map.put("checks", n);
+            map.put("hits", hits.sum());
+            map.put("falsePositives", falsePositives.sum());
+            map.put("avgNanos", n == 0 ? 0 : (double) totalNanos.sum() / n);
+            map.put("maxNanos", maxNanos.get());
+            map.put("p50Nanos", percentile(n, 0.50));
+            map.put("p99Nanos", percentile(n, 0.99));
+            map.put("p999Nanos", percentile(n, 0.999));
+            return map;
+        }
+
+        /**
+         * 按分桶估算百分位，返回所在桶的上界
+         */
+        private long percentile(long total, double p) {
+            long threshold = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= threshold && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.steven.topsail.demo.quickstart.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 只读布隆过滤器，位数组存放在 ByteBuffer（通常是内存映射的快照文件）中
+ * <p>
+ * 构建完成后不再修改，多线程读无需加锁；mightContain 直接按字符计算哈希，不产生任何临时对象。
+ * 快照文件格式：40 字节文件头（魔数、版本、哈希函数个数、位数、元素数、构建时间），后接位数组。
+ *
+ * @author Steven
+ * @date 2021-01-28
+ */
+public final class MappedBloomFilter {
+
+    private static final int MAGIC = 0x424C4F4D;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    private final ByteBuffer buffer;
+    private final long numBits;
+    private final int numHashes;
+    private final long insertions;
+    private final long buildTime;
+    private final double fillRatio;
+
+    private MappedBloomFilter(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("不是有效的布隆过滤器快照");
+        }
+        this.buffer = buffer;
+        this.numHashes = buffer.getInt(8);
+        this.numBits = buffer.getLong(16);
+        this.insertions = buffer.getLong(24);
+        this.buildTime = buffer.getLong(32);
+
+        long setBits = 0;
+        long words = numBits >>> 6;
+        for (long i = 0; i < words; i++) {
+            setBits += Long.bitCount(buffer.getLong((int) (HEADER_SIZE + i * 8)));
+        }
+        this.fillRatio = (double) setBits / numBits;
+    }
+
+    public boolean mightContain(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+        long combined = hash1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = (combined & Long.MAX_VALUE) % numBits;
+            long word = buffer.getLong((int) (HEADER_SIZE + (bit >>> 6) * 8));
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public long getInsertions() {
+        return insertions;
+    }
+
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * 位数组中置 1 的比例
+     */
+    public double getFillRatio() {
+        return fillRatio;
+    }
+
+    /**
+     * 按当前填充率估算的误判率
+     */
+    public double getExpectedFpp() {
+        return Math.pow(fillRatio, numHashes);
+    }
+
+    /**
+     * 打开快照文件，以只读方式映射到内存
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MappedBloomFilter open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedBloomFilter(buffer);
+        }
+    }
+
+    /**
+     * 构建器，非线程安全，构建完成后写成快照文件
+     *
+     * @param expectedInsertions
+     * @param fpp
+     * @return
+     */
+    public static Builder builder(long expectedInsertions, double fpp) {
+        return new Builder(expectedInsertions, fpp);
+    }
+
+    public static final class Builder {
+
+        private final long[] bits;
+        private final long numBits;
+        private final int numHashes;
+        private long insertions;
+
+        private Builder(long expectedInsertions, double fpp) {
+            long n = Math.max(expectedInsertions, 1);
+            long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            // 位数按 64 对齐，位数组整字存放
+            long words = Math.max((m + 63) >>> 6, 1);
+            if (words * 8 + HEADER_SIZE > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("布隆过滤器过大: " + expectedInsertions);
+            }
+            this.bits = new long[(int) words];
+            this.numBits = words << 6;
+            this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        }
+
+        public Builder put(String value) {
+            long hash1 = hash(value);
+            long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+            long combined = hash1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = (combined & Long.MAX_VALUE) % numBits;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+                combined += hash2;
+            }
+            insertions++;
+            return this;
+        }
+
+        /**
+         * 写入快照文件（先写临时文件再原子替换），并返回映射该文件的过滤器
+         *
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        public MappedBloomFilter writeTo(Path file) throws IOException {
+            if (null != file.getParent()) {
+                Files.createDirectories(file.getParent());
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(numHashes).putInt(0)
+                    .putLong(numBits).putLong(insertions).putLong(System.currentTimeMillis());
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+
+                ByteBuffer block = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+                for (long word : bits) {
+                    if (!block.hasRemaining()) {
+                        block.flip();
+                        while (block.hasRemaining()) {
+                            channel.write(block);
+                        }
+                        block.clear();
+                    }
+                    block.putLong(word);
+                }
+                block.flip();
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return open(file);
+        }
+    }
+
+    /**
+     * 64 位 FNV-1a 逐字符哈希，再经 murmur3 fmix64 打散
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, len = value.length(); i < len; i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
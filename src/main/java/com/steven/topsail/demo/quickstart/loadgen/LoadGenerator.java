@@ -0,0 +1,131 @@
+package com.steven.topsail.demo.quickstart.loadgen;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.steven.topsail.demo.quickstart.model.WorkloadReport;
+import com.steven.topsail.demo.quickstart.model.WorkloadSpec;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * 压测命令行入口，不启动 Spring，直接连接目标地址
+ * <p>
+ * 用法：LoadGenerator &lt;目标地址 | stub[:延迟毫秒[:抖动毫秒]]&gt; &lt;输出报告 .json&gt; [负载定义 .json]
+ * <p>
+ * 负载定义为 {@link WorkloadSpec} 的 JSON，省略的字段取默认值；目标为 stub 时启动本地模拟服务离线运行。
+ * 结果不满足可持续条件时以退出码 2 结束，便于在升级或修改映射前的流水线中使用。
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+@Slf4j
+public class LoadGenerator {
+
+    public static final String STUB = "stub";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    public static void main(String[] args) throws Exception {
+        // 必须在首次创建 HttpServer 之前设置，只在独立进程中修改，避免影响应用内的其他 HttpServer
+        if (null == System.getProperty("sun.net.httpserver.nodelay")) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        if (args.length < 2) {
+            System.err.println("用法: LoadGenerator <目标地址 | stub[:延迟毫秒[:抖动毫秒]]> <输出报告 .json> [负载定义 .json]");
+            System.exit(1);
+        }
+        WorkloadSpec spec = args.length > 2 ? MAPPER.readValue(Paths.get(args[2]).toFile(), WorkloadSpec.class) : new WorkloadSpec();
+        spec.setTarget(args[0]);
+
+        WorkloadReport report;
+        try (Target target = open(args[0])) {
+            report = new WorkloadDriver(target.getClient(), spec, target.getUrl()).run();
+        }
+        MAPPER.writeValue(Paths.get(args[1]).toFile(), report);
+        log.info("报告已写入: {}", args[1]);
+        System.exit(report.isSustainable() ? 0 : 2);
+    }
+
+    /**
+     * 按目标地址创建客户端，stub 时同时启动模拟服务，关闭时一并停止
+     *
+     * @param target http://host:port 或 stub[:延迟毫秒[:抖动毫秒]]
+     * @return
+     * @throws IOException
+     */
+    public static Target open(String target) throws IOException {
+        return open(target, null, null);
+    }
+
+    /**
+     * 按目标地址创建独立的客户端，不与应用共用连接池
+     *
+     * @param target   http://host:port 或 stub[:延迟毫秒[:抖动毫秒]]
+     * @param username 为空时不携带认证信息
+     * @param password
+     * @return
+     * @throws IOException
+     */
+    public static Target open(String target, String username, String password) throws IOException {
+        StubEsServer stub = null;
+        String url = target;
+        if (target.startsWith(STUB)) {
+            String[] parts = target.split(":");
+            long latency = parts.length > 1 ? Long.parseLong(parts[1]) : 2;
+            long jitter = parts.length > 2 ? Long.parseLong(parts[2]) : 3;
+            stub = new StubEsServer(0, latency, jitter, 256);
+            url = stub.url();
+        }
+        boolean authenticate = null != username && null == stub;
+        RestClient client = RestClient.builder(HttpHost.create(url))
+            .setHttpClientConfigCallback(builder -> {
+                if (authenticate) {
+                    CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                    credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+                    builder.setDefaultCredentialsProvider(credentialsProvider);
+                }
+                return builder.setMaxConnTotal(256).setMaxConnPerRoute(256);
+            })
+            .build();
+        return new Target(client, url, stub);
+    }
+
+    public static final class Target implements AutoCloseable {
+
+        private final RestClient client;
+
+        private final String url;
+
+        private final StubEsServer stub;
+
+        private Target(RestClient client, String url, StubEsServer stub) {
+            this.client = client;
+            this.url = url;
+            this.stub = stub;
+        }
+
+        public RestClient getClient() {
+            return client;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+            if (null != stub) {
+                stub.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.steven.topsail.demo.quickstart.loadgen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地模拟 ES 服务，用于离线运行压测
+ * <p>
+ * 按路径返回 index、_bulk、_doc、_mget、_search、_update 的最小合法响应，
+ * 每个请求先等待 latency + [0, jitter) 毫秒，可用于验证压测工具本身的开销和延迟统计是否正确。
+ * <p>
+ * HttpServer 默认不开启 TCP_NODELAY，小响应会被 Nagle 与延迟确认拖慢约 40ms。该开关是 JVM 全局的系统属性，
+ * 这里不做设置：命令行入口会在启动时打开，应用内使用时需以 -Dsun.net.httpserver.nodelay=true 启动。
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+@Slf4j
+public class StubEsServer implements AutoCloseable {
+
+    private static final byte[] ROOT = "{\"name\":\"stub\",\"cluster_name\":\"stub\",\"version\":{\"number\":\"7.10.2\"},\"tagline\":\"You Know, for Search\"}"
+        .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BULK = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEARCH = "{\"took\":1,\"timed_out\":false,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},\"hits\":{\"total\":{\"value\":0,\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]}}"
+        .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MGET = "{\"docs\":[]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GET = "{\"_index\":\"stub\",\"_id\":\"0\",\"found\":false}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WRITE = "{\"_index\":\"stub\",\"_id\":\"0\",\"_version\":1,\"result\":\"updated\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0}}"
+        .getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long latencyMillis;
+
+    private final long jitterMillis;
+
+    /**
+     * @param port          0 表示随机端口
+     * @param latencyMillis 固定延迟
+     * @param jitterMillis  随机附加延迟的上限
+     * @param threads       处理线程数，决定模拟服务的并发能力
+     * @throws IOException
+     */
+    public StubEsServer(int port, long latencyMillis, long jitterMillis, int threads) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "StubEs-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+        log.info("模拟 ES 服务启动: {}，延迟: {} + [0, {}) ms，线程数: {}", url(), latencyMillis, jitterMillis, threads);
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] discard = new byte[8192];
+            while (in.read(discard) >= 0) {
+                // 读完请求体，连接才能复用
+            }
+        }
+        long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        byte[] body;
+        int status = 200;
+        if (path.endsWith("/_bulk")) {
+            body = BULK;
+        } else if (path.endsWith("/_search")) {
+            body = SEARCH;
+        } else if (path.endsWith("/_mget")) {
+            body = MGET;
+        } else if (path.contains("/_doc/") && "GET".equals(method)) {
+            body = GET;
+            status = 404;
+        } else if (path.contains("/_doc/") || path.contains("/_update/")) {
+            body = WRITE;
+        } else {
+            body = ROOT;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.steven.topsail.demo.quickstart.loadgen;
+
+import com.steven.topsail.demo.quickstart.codec.JsonDocumentWriter;
+import com.steven.topsail.demo.quickstart.model.WorkloadReport;
+import com.steven.topsail.demo.quickstart.model.WorkloadSpec;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 开环压测驱动
+ * <p>
+ * 第 i 个请求的计划发送时刻固定为 start + i / rate，发送线程按计划时刻逐个发出异步请求，不等待响应。
+ * 延迟从计划时刻算起（corrected），服务端变慢、在途请求达到上限导致发送推迟时，推迟的时间同样计入，
+ * 不会像闭环压测那样因为少发请求而低估尾延迟；从实际发出时刻算起的延迟另记为 service。
+ * <p>
+ * 文档预先生成一批重复使用，发送线程只做拼装，不成为瓶颈。只依赖低级 RestClient，
+ * 可以指向真实集群，也可以指向 {@link StubEsServer} 离线运行。
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+@Slf4j
+public class WorkloadDriver {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private static final int DOCUMENT_POOL_SIZE = 256;
+
+    private static final String[] WORDS = {
+        "elasticsearch", "lucene", "shard", "replica", "segment", "merge", "refresh", "translog",
+        "mapping", "analyzer", "query", "filter", "aggregation", "cluster", "node", "index"
+    };
+
+    private static final JsonDocumentWriter.Field USER = JsonDocumentWriter.Field.of("user");
+    private static final JsonDocumentWriter.Field DATE = JsonDocumentWriter.Field.of("date");
+    private static final JsonDocumentWriter.Field MESSAGE = JsonDocumentWriter.Field.of("message");
+    private static final JsonDocumentWriter.Field COUNTER = JsonDocumentWriter.Field.of("counter");
+
+    private final RestClient client;
+
+    private final WorkloadSpec spec;
+
+    private final String target;
+
+    private final Random random;
+
+    private final String[] operations;
+
+    /**
+     * 累计权重，与 operations 一一对应
+     */
+    private final int[] weights;
+
+    private final byte[][] documents;
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+
+    private final Semaphore outstanding;
+
+    private volatile boolean stopped;
+
+    private volatile long startNanos;
+
+    private volatile long measureFromNanos;
+
+    private volatile long endNanos;
+
+    private final long startedAt = System.currentTimeMillis();
+
+    public WorkloadDriver(RestClient client, WorkloadSpec spec, String target) {
+        if (spec.getRate() <= 0 || spec.getDurationSeconds() <= 0 || spec.getIndices().isEmpty() || spec.getIdSpace() <= 0) {
+            throw new IllegalArgumentException("rate、durationSeconds、idSpace 必须大于 0，indices 不能为空");
+        }
+        this.client = client;
+        this.spec = spec;
+        this.target = target;
+        this.random = new Random(spec.getSeed());
+        this.outstanding = new Semaphore(spec.getMaxOutstanding());
+
+        List<String> names = new ArrayList<>();
+        List<Integer> cumulative = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<String, Integer> entry : spec.getMix().entrySet()) {
+            if (null == entry.getValue() || entry.getValue() <= 0) {
+                continue;
+            }
+            total += entry.getValue();
+            names.add(entry.getKey());
+            cumulative.add(total);
+            stats.put(entry.getKey(), new Stats());
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("mix 中至少要有一种操作的权重大于 0");
+        }
+        this.operations = names.toArray(new String[0]);
+        this.weights = cumulative.stream().mapToInt(Integer::intValue).toArray();
+        this.documents = new byte[DOCUMENT_POOL_SIZE][];
+        JsonDocumentWriter writer = new JsonDocumentWriter(spec.getDocBytes() * 2);
+        for (int i = 0; i < DOCUMENT_POOL_SIZE; i++) {
+            documents[i] = document(writer, i);
+        }
+    }
+
+    /**
+     * 按计划发出全部请求，等待在途请求完成后返回结果，在调用线程上运行
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public WorkloadReport run() throws InterruptedException {
+        startNanos = System.nanoTime();
+        measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(spec.getWarmupSeconds());
+        endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(spec.getDurationSeconds());
+        log.info("压测开始，目标: {}，速率: {}/s，预热: {} s，时长: {} s，mix: {}",
+            target, spec.getRate(), spec.getWarmupSeconds(), spec.getDurationSeconds(), spec.getMix());
+
+        for (long i = 0; !stopped; i++) {
+            long intended = startNanos + i * TimeUnit.SECONDS.toNanos(1) / spec.getRate();
+            if (intended >= endNanos) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            outstanding.acquire();
+            send(pick(), intended);
+        }
+        if (stopped) {
+            endNanos = Math.min(endNanos, System.nanoTime());
+        }
+        if (!outstanding.tryAcquire(spec.getMaxOutstanding(), 30, TimeUnit.SECONDS)) {
+            log.warn("等待在途请求超时，剩余 {} 个未完成", spec.getMaxOutstanding() - outstanding.availablePermits());
+        }
+        WorkloadReport report = report(true);
+        log.info("压测结束，请求: {}，错误: {}，吞吐: {}/s，p99: {} ms，可持续: {}", report.getRequests(), report.getErrors(),
+            String.format("%.1f", report.getThroughput()), report.getCorrected().getP99(), report.isSustainable());
+        return report;
+    }
+
+    /**
+     * 停止发送新请求，已发出的请求照常计入
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * 截至当前的结果
+     *
+     * @param finished
+     * @return
+     */
+    public synchronized WorkloadReport report(boolean finished) {
+        WorkloadReport report = new WorkloadReport();
+        report.setSpec(spec);
+        report.setTarget(target);
+        report.setStartedAt(startedAt);
+        report.setFinished(finished);
+        long now = finished ? endNanos : Math.min(endNanos, System.nanoTime());
+        long measuredNanos = Math.max(0, now - measureFromNanos);
+        report.setMeasuredMillis(TimeUnit.NANOSECONDS.toMillis(measuredNanos));
+
+        Histogram allCorrected = newHistogram();
+        Histogram allService = newHistogram();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            s.corrected.add(s.correctedRecorder.getIntervalHistogram());
+            s.service.add(s.serviceRecorder.getIntervalHistogram());
+            allCorrected.add(s.corrected);
+            allService.add(s.service);
+
+            WorkloadReport.Operation operation = new WorkloadReport.Operation();
+            operation.setRequests(s.corrected.getTotalCount());
+            operation.setErrors(s.errors.sum());
+            operation.setThroughput(throughput(operation.getRequests(), measuredNanos));
+            operation.setCorrected(latency(s.corrected));
+            operation.setService(latency(s.service));
+            report.getOperations().put(entry.getKey(), operation);
+            report.setErrors(report.getErrors() + operation.getErrors());
+        }
+        report.setRequests(allCorrected.getTotalCount());
+        report.setThroughput(throughput(report.getRequests(), measuredNanos));
+        report.setCorrected(latency(allCorrected));
+        report.setService(latency(allService));
+        report.setSustainable(report.getRequests() > 0
+            && report.getThroughput() >= spec.getRate() * 0.99
+            && report.getCorrected().getP99() <= spec.getTargetP99Millis()
+            && report.getErrors() < report.getRequests() * 0.01);
+        return report;
+    }
+
+    private String pick() {
+        int n = random.nextInt(weights[weights.length - 1]);
+        for (int i = 0; i < weights.length; i++) {
+            if (n < weights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    private void send(String operation, long intended) {
+        Request request;
+        try {
+            request = request(operation);
+        } catch (RuntimeException e) {
+            outstanding.release();
+            throw e;
+        }
+        boolean measured = intended >= measureFromNanos;
+        long sent = System.nanoTime();
+        client.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                boolean failed = false;
+                if (WorkloadSpec.BULK.equals(operation)) {
+                    try {
+                        failed = EntityUtils.toString(response.getEntity()).contains("\"errors\":true");
+                    } catch (Exception e) {
+                        failed = true;
+                    }
+                }
+                complete(operation, measured, intended, sent, failed);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                log.debug("压测请求失败，{}: {}", operation, exception.toString());
+                complete(operation, measured, intended, sent, true);
+            }
+        });
+    }
+
+    private void complete(String operation, boolean measured, long intended, long sent, boolean failed) {
+        long now = System.nanoTime();
+        try {
+            if (!measured) {
+                return;
+            }
+            Stats s = stats.get(operation);
+            s.correctedRecorder.recordValue(micros(now - intended));
+            s.serviceRecorder.recordValue(micros(now - sent));
+            if (failed) {
+                s.errors.increment();
+            }
+        } finally {
+            outstanding.release();
+        }
+    }
+
+    private Request request(String operation) {
+        String index = spec.getIndices().get(random.nextInt(spec.getIndices().size()));
+        Request request;
+        switch (operation) {
+            case WorkloadSpec.INDEX:
+                request = new Request("PUT", "/" + index + "/_doc/" + nextId());
+                request.setEntity(new ByteArrayEntity(nextDocument(), ContentType.APPLICATION_JSON));
+                return request;
+            case WorkloadSpec.BULK:
+                request = new Request("POST", "/" + index + "/_bulk");
+                request.setEntity(new ByteArrayEntity(bulkBody(), ContentType.create("application/x-ndjson")));
+                return request;
+            case WorkloadSpec.GET:
+                request = new Request("GET", "/" + index + "/_doc/" + nextId());
+                request.addParameter("ignore", "404");
+                return request;
+            case WorkloadSpec.MGET:
+                request = new Request("POST", "/" + index + "/_mget");
+                request.setJsonEntity(mgetBody());
+                return request;
+            case WorkloadSpec.SEARCH:
+                request = new Request("POST", "/" + index + "/_search");
+                request.setJsonEntity(searchBody());
+                return request;
+            case WorkloadSpec.UPDATE:
+                request = new Request("POST", "/" + index + "/_update/" + nextId());
+                request.addParameter("retry_on_conflict", "3");
+                request.setJsonEntity("{\"doc\":{\"counter\":" + random.nextInt(1000000) + ",\"date\":"
+                    + System.currentTimeMillis() + "},\"doc_as_upsert\":true}");
+                return request;
+            default:
+                throw new IllegalArgumentException("不支持的操作类型: " + operation);
+        }
+    }
+
+    private String nextId() {
+        return Integer.toString(random.nextInt(spec.getIdSpace()));
+    }
+
+    private byte[] nextDocument() {
+        return documents[random.nextInt(DOCUMENT_POOL_SIZE)];
+    }
+
+    private byte[] bulkBody() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(spec.getBulkSize() * (spec.getDocBytes() + 32));
+        for (int i = 0; i < spec.getBulkSize(); i++) {
+            byte[] action = ("{\"index\":{\"_id\":\"" + nextId() + "\"}}\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] document = nextDocument();
+            out.write(action, 0, action.length);
+            out.write(document, 0, document.length);
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    private String mgetBody() {
+        StringBuilder body = new StringBuilder("{\"ids\":[");
+        for (int i = 0; i < spec.getMgetSize(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append('"').append(nextId()).append('"');
+        }
+        return body.append("]}").toString();
+    }
+
+    /**
+     * 全文匹配、精确匹配、时间范围三类查询轮流出现，比例相同
+     */
+    private String searchBody() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return "{\"size\":10,\"query\":{\"match\":{\"message\":\"" + word() + " " + word() + "\"}}}";
+            case 1:
+                return "{\"size\":10,\"query\":{\"term\":{\"user\":\"user" + random.nextInt(1000) + "\"}}}";
+            default:
+                long to = System.currentTimeMillis();
+                return "{\"size\":10,\"sort\":[{\"date\":\"desc\"}],\"query\":{\"range\":{\"date\":{\"gte\":"
+                    + (to - TimeUnit.HOURS.toMillis(1)) + ",\"lte\":" + to + "}}}}";
+        }
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    /**
+     * 文档大小在 docBytes 的 0.5 ~ 1.5 倍之间，message 由词表中的词拼成，可被全文查询命中
+     */
+    private byte[] document(JsonDocumentWriter writer, int n) {
+        int size = spec.getDocBytes() / 2 + random.nextInt(Math.max(1, spec.getDocBytes()));
+        StringBuilder message = new StringBuilder(size);
+        while (message.length() < size) {
+            message.append(word()).append(' ');
+        }
+        return writer.start()
+            .field(USER, "user" + n % 1000)
+            .dateField(DATE, System.currentTimeMillis())
+            .field(COUNTER, n)
+            .field(MESSAGE, message.toString())
+            .toBytes();
+    }
+
+    private static long micros(long nanos) {
+        return Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_TRACKABLE_MICROS);
+    }
+
+    private static double throughput(long requests, long nanos) {
+        return 0 == nanos ? 0 : requests * 1e9 / nanos;
+    }
+
+    private static Histogram newHistogram() {
+        return new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    }
+
+    private static WorkloadReport.Latency latency(Histogram histogram) {
+        WorkloadReport.Latency latency = new WorkloadReport.Latency();
+        latency.setP50(millis(histogram.getValueAtPercentile(50)));
+        latency.setP90(millis(histogram.getValueAtPercentile(90)));
+        latency.setP99(millis(histogram.getValueAtPercentile(99)));
+        latency.setP999(millis(histogram.getValueAtPercentile(99.9)));
+        latency.setMax(millis(histogram.getMaxValue()));
+        latency.setMean(histogram.getTotalCount() == 0 ? 0 : histogram.getMean() / 1000);
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        latency.setHdr(Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length)));
+        return latency;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static final class Stats {
+        private final Recorder correctedRecorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+        private final Recorder serviceRecorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+        private final Histogram corrected = newHistogram();
+        private final Histogram service = newHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+}
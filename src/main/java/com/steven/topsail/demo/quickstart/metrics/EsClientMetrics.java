@@ -0,0 +1,394 @@
+package com.steven.topsail.demo.quickstart.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ES 客户端调用指标
+ * <p>
+ * 包装 RestClient 底层的 HttpAsyncClient，同步、异步调用都会经过。计时从提交给 HttpAsyncClient 开始、
+ * 到回调完成、失败或取消为止，包含在连接池中排队的时间；在途请求数在同一处增减，每个请求恰好扣减一次。
+ * 请求拦截器只在请求真正发出时补充 操作 + 索引 和请求字节数，未发出就结束的请求（租用连接超时、连接失败、
+ * 排队中被取消）计入 unsent。按 操作 + 索引 统计 HdrHistogram 延迟分布、请求/响应字节数、错误数、
+ * 拒绝（429）数和取消数，操作数超过上限后新的索引归入 操作|_other，避免索引名无界增长时直方图占满内存。
+ * 记录走 Recorder 的无等待写入，不会阻塞 I/O 线程；读取时再把区间直方图累加到总直方图。
+ *
+ * @author Steven
+ * @date 2021-01-31
+ */
+@Component
+public class EsClientMetrics {
+
+    private static final String CONTEXT_KEY = EsClientMetrics.class.getName();
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private static final String OTHER_INDEX = "_other";
+
+    /**
+     * 按 操作|索引 统计的上限，每项两个直方图
+     */
+    @Value("${metrics.es.max-operations:256}")
+    private int maxOperations;
+
+    private final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+
+    private final AtomicLong inFlight = new AtomicLong();
+
+    private final LongAdder transportFailures = new LongAdder();
+
+    private final LongAdder unsent = new LongAdder();
+
+    private final Map<String, LongAdder> nodeFailures = new ConcurrentHashMap<>();
+
+    /**
+     * 包装 RestClientBuilder 配置好的 HttpAsyncClientBuilder，在 HttpClientConfigCallback 的最后调用
+     *
+     * @param builder
+     * @return
+     */
+    public HttpAsyncClientBuilder instrument(HttpAsyncClientBuilder builder) {
+        return new HttpAsyncClientBuilder() {
+            @Override
+            public CloseableHttpAsyncClient build() {
+                return new InstrumentedClient(builder.build());
+            }
+        };
+    }
+
+    /**
+     * 请求发出前补充 操作|索引 和请求字节数
+     */
+    public HttpRequestInterceptor requestInterceptor() {
+        return (HttpRequest request, HttpContext context) -> {
+            Object attribute = context.getAttribute(CONTEXT_KEY);
+            if (!(attribute instanceof Timing)) {
+                return;
+            }
+            String uri = request.getRequestLine().getUri();
+            String method = request.getRequestLine().getMethod();
+            long requestBytes = 0;
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (null != entity && entity.getContentLength() > 0) {
+                    requestBytes = entity.getContentLength();
+                }
+            }
+            Timing timing = (Timing) attribute;
+            timing.requestBytes = requestBytes;
+            timing.stats = stats(method, uri);
+        };
+    }
+
+    /**
+     * 收到响应头时记录响应字节数和状态码，延迟在回调时记录
+     */
+    public HttpResponseInterceptor responseInterceptor() {
+        return (HttpResponse response, HttpContext context) -> {
+            Object attribute = context.getAttribute(CONTEXT_KEY);
+            if (!(attribute instanceof Timing)) {
+                return;
+            }
+            Timing timing = (Timing) attribute;
+            timing.responseBytes = null == response.getEntity() ? 0 : Math.max(response.getEntity().getContentLength(), 0);
+            timing.status = response.getStatusLine().getStatusCode();
+        };
+    }
+
+    /**
+     * 节点故障（连接失败、超时或 502/503/504），在途数由回调扣减
+     */
+    public RestClient.FailureListener failureListener() {
+        return new RestClient.FailureListener() {
+            @Override
+            public void onFailure(Node node) {
+                transportFailures.increment();
+                nodeFailures.computeIfAbsent(node.getHost().toHostString(), k -> new LongAdder()).increment();
+            }
+        };
+    }
+
+    /**
+     * 指标快照，按 操作|索引 排序
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("inFlight", inFlight.get());
+        map.put("transportFailures", transportFailures.sum());
+        map.put("unsent", unsent.sum());
+        Map<String, Long> nodes = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : nodeFailures.entrySet()) {
+            nodes.put(entry.getKey(), entry.getValue().sum());
+        }
+        map.put("nodeFailures", nodes);
+
+        Map<String, Object> ops = new TreeMap<>();
+        for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+            ops.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        map.put("operations", ops);
+        return map;
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getTransportFailures() {
+        return transportFailures.sum();
+    }
+
+    /**
+     * 清空累计的延迟分布
+     */
+    public void reset() {
+        for (OperationStats stats : operations.values()) {
+            stats.reset();
+        }
+    }
+
+    private OperationStats stats(String method, String uri) {
+        String key = operationKey(method, uri);
+        OperationStats stats = operations.get(key);
+        if (null == stats) {
+            if (operations.size() >= maxOperations) {
+                key = key.substring(0, key.indexOf('|') + 1) + OTHER_INDEX;
+            }
+            stats = operations.computeIfAbsent(key, k -> new OperationStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 请求结束，只会调用一次
+     *
+     * @param timing
+     * @param failed    请求异常结束（连接失败、超时等）
+     * @param cancelled 调用方取消
+     */
+    private void finish(Timing timing, boolean failed, boolean cancelled) {
+        inFlight.decrementAndGet();
+        OperationStats stats = timing.stats;
+        if (null == stats) {
+            unsent.increment();
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - timing.startNanos);
+        stats.record(micros, timing.requestBytes, timing.responseBytes, timing.status, failed, cancelled);
+    }
+
+    /**
+     * 由请求路径推断 操作|索引，例如 POST /posts/_doc/1 -> index|posts，POST /_bulk -> bulk|_all
+     */
+    static String operationKey(String method, String uri) {
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        String[] segments = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+
+        String index = "_all";
+        int opPos = 0;
+        if (segments.length > 0 && !segments[0].isEmpty() && !segments[0].startsWith("_")) {
+            index = segments[0];
+            opPos = 1;
+        }
+
+        String op;
+        if (segments.length <= opPos || !segments[opPos].startsWith("_")) {
+            op = "indices." + method.toLowerCase();
+        } else {
+            op = segments[opPos].substring(1);
+            if ("doc".equals(op) || "create".equals(op)) {
+                switch (method) {
+                    case "GET":
+                        op = "get";
+                        break;
+                    case "HEAD":
+                        op = "exists";
+                        break;
+                    case "DELETE":
+                        op = "delete";
+                        break;
+                    default:
+                        op = "index";
+                }
+            } else if ("search".equals(op) && segments.length > opPos + 1 && "scroll".equals(segments[opPos + 1])) {
+                op = "scroll";
+            }
+        }
+        return op + "|" + index;
+    }
+
+    /**
+     * 一次请求尝试的计时，由提交线程创建，拦截器在 I/O 线程上补充，回调时读取
+     */
+    private static final class Timing {
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile OperationStats stats;
+        private volatile long requestBytes;
+        private volatile long responseBytes;
+        private volatile int status;
+    }
+
+    /**
+     * RestClient 每次尝试都通过四参数的 execute 提交，在这里开始计时并包装回调
+     */
+    private final class InstrumentedClient extends CloseableHttpAsyncClient {
+
+        private final CloseableHttpAsyncClient delegate;
+
+        private InstrumentedClient(CloseableHttpAsyncClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return delegate.isRunning();
+        }
+
+        @Override
+        public void start() {
+            delegate.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer, HttpAsyncResponseConsumer<T> responseConsumer,
+                                     HttpContext context, FutureCallback<T> callback) {
+            HttpContext httpContext = null == context ? HttpClientContext.create() : context;
+            Timing timing = new Timing();
+            httpContext.setAttribute(CONTEXT_KEY, timing);
+            inFlight.incrementAndGet();
+            FutureCallback<T> wrapped = new FutureCallback<T>() {
+                @Override
+                public void completed(T result) {
+                    if (timing.finished.compareAndSet(false, true)) {
+                        finish(timing, false, false);
+                    }
+                    if (null != callback) {
+                        callback.completed(result);
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    if (timing.finished.compareAndSet(false, true)) {
+                        finish(timing, true, false);
+                    }
+                    if (null != callback) {
+                        callback.failed(ex);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (timing.finished.compareAndSet(false, true)) {
+                        finish(timing, false, true);
+                    }
+                    if (null != callback) {
+                        callback.cancelled();
+                    }
+                }
+            };
+            try {
+                return delegate.execute(requestProducer, responseConsumer, httpContext, wrapped);
+            } catch (RuntimeException e) {
+                if (timing.finished.compareAndSet(false, true)) {
+                    finish(timing, true, false);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static final class OperationStats {
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+        private final Histogram cumulative = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        private Histogram interval;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder cancellations = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+
+        private void record(long micros, long reqBytes, long respBytes, int status, boolean failed, boolean cancelled) {
+            if (cancelled) {
+                // 取消的请求由调用方放弃，耗时不代表集群延迟
+                cancellations.increment();
+                return;
+            }
+            recorder.recordValue(Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+            count.increment();
+            requestBytes.add(reqBytes);
+            responseBytes.add(respBytes);
+            if (429 == status) {
+                rejections.increment();
+            } else if (failed || status >= 400) {
+                errors.increment();
+            }
+        }
+
+        private synchronized Map<String, Object> snapshot() {
+            interval = recorder.getIntervalHistogram(interval);
+            cumulative.add(interval);
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count.sum());
+            map.put("errors", errors.sum());
+            map.put("rejections", rejections.sum());
+            map.put("cancellations", cancellations.sum());
+            map.put("requestBytes", requestBytes.sum());
+            map.put("responseBytes", responseBytes.sum());
+            map.put("meanMicros", cumulative.getMean());
+            map.put("p50Micros", cumulative.getValueAtPercentile(50));
+            map.put("p90Micros", cumulative.getValueAtPercentile(90));
+            map.put("p99Micros", cumulative.getValueAtPercentile(99));
+            map.put("p999Micros", cumulative.getValueAtPercentile(99.9));
+            map.put("maxMicros", cumulative.getMaxValue());
+            map.put("intervalCount", interval.getTotalCount());
+            map.put("intervalP99Micros", interval.getValueAtPercentile(99));
+            return map;
+        }
+
+        private synchronized void reset() {
+            interval = recorder.getIntervalHistogram(interval);
+            cumulative.reset();
+        }
+    }
+}
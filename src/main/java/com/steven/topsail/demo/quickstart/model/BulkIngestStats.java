@@ -0,0 +1,76 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量写入统计
+ *
+ * @author Steven
+ * @date 2021-01-22
+ */
+@Data
+public class BulkIngestStats {
+
+    /**
+     * 已提交文档数
+     */
+    private long submitted;
+
+    /**
+     * 写入成功文档数
+     */
+    private long succeeded;
+
+    /**
+     * 最终失败文档数
+     */
+    private long failed;
+
+    /**
+     * 因拒绝而重试的文档数
+     */
+    private long retried;
+
+    /**
+     * 已发送的 bulk 请求数
+     */
+    private long bulks;
+
+    /**
+     * 尚未完成的文档数（排队 + 在途）
+     */
+    private long pending;
+
+    /**
+     * 在途 bulk 请求数
+     */
+    private int inFlightBulks;
+
+    /**
+     * 排队 + 在途的数据量（字节）
+     */
+    private long queuedBytes;
+
+    /**
+     * 启动以来的平均写入速率
+     */
+    private double docsPerSecond;
+
+    /**
+     * 最近一个统计周期的写入速率
+     */
+    private double recentDocsPerSecond;
+
+    /**
+     * 最近的失败明细
+     */
+    private List<String> recentFailures;
+
+    /**
+     * 自适应控制器的当前批大小、并发数、最近的调整及字节吞吐
+     */
+    private Map<String, Object> controller;
+}
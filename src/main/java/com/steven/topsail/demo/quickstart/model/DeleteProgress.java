@@ -0,0 +1,75 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量删除进度，计数在删除过程中持续更新，可随时轮询
+ *
+ * @author Steven
+ * @date 2021-01-26
+ */
+@Getter
+public class DeleteProgress {
+
+    public enum Status {
+        RUNNING, DONE, CANCELLED, FAILED
+    }
+
+    private final String taskId;
+
+    private final String index;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile Status status = Status.RUNNING;
+
+    private volatile long endTime;
+
+    private volatile String error;
+
+    /**
+     * 查询命中并提交删除的文档数
+     */
+    private final AtomicLong matched = new AtomicLong();
+
+    /**
+     * 删除成功的文档数
+     */
+    private final AtomicLong deleted = new AtomicLong();
+
+    /**
+     * 删除时已不存在的文档数
+     */
+    private final AtomicLong missing = new AtomicLong();
+
+    /**
+     * 删除失败的文档数
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    @JsonIgnore
+    private volatile boolean cancelRequested;
+
+    @JsonIgnore
+    private final CompletableFuture<DeleteProgress> completion = new CompletableFuture<>();
+
+    public DeleteProgress(String taskId, String index) {
+        this.taskId = taskId;
+        this.index = index;
+    }
+
+    public void cancel() {
+        this.cancelRequested = true;
+    }
+
+    public void finish(Status status, String error) {
+        this.status = status;
+        this.error = error;
+        this.endTime = System.currentTimeMillis();
+        completion.complete(this);
+    }
+}
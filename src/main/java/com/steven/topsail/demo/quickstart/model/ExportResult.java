@@ -0,0 +1,34 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import lombok.Data;
+
+/**
+ * 索引导出结果
+ *
+ * @author Steven
+ * @date 2021-01-23
+ */
+@Data
+public class ExportResult {
+
+    private String index;
+
+    private String file;
+
+    private int slices;
+
+    /**
+     * 导出文档数
+     */
+    private long docs;
+
+    /**
+     * 写入字节数
+     */
+    private long bytes;
+
+    /**
+     * 耗时（毫秒）
+     */
+    private long cost;
+}
@@ -0,0 +1,23 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import lombok.Data;
+
+/**
+ * 菜单联想结果
+ *
+ * @author Steven
+ * @date 2021-01-30
+ */
+@Data
+public final class FunctionSuggestion {
+
+    private final String funcId;
+
+    private final String funcName;
+
+    private final String viewName;
+
+    private final long funcLevel;
+
+    private final long funSeq;
+}
@@ -0,0 +1,143 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 重建索引进度，复制阶段的计数取自 ES 的 reindex 任务状态，可随时轮询
+ *
+ * @author Steven
+ * @date 2021-02-06
+ */
+@Getter
+public class ReindexProgress {
+
+    public enum Status {
+        RUNNING, DONE, CANCELLED, FAILED
+    }
+
+    public enum Phase {
+        /**
+         * 创建新版本索引
+         */
+        CREATE,
+        /**
+         * 并行全量复制
+         */
+        COPY,
+        /**
+         * 追平复制期间的写入
+         */
+        CATCH_UP,
+        /**
+         * 旧索引禁写后做最后一次追平
+         */
+        FINAL_CATCH_UP,
+        /**
+         * 原子切换读别名并删除旧索引
+         */
+        SWAP,
+        /**
+         * 切换后删除复制期间已在旧索引删除、仍留在新索引中的文档
+         */
+        RECONCILE,
+        FINISHED
+    }
+
+    private final String taskId;
+
+    /**
+     * 读别名，查询方始终使用这个名字
+     */
+    private final String alias;
+
+    private final long startTime = System.currentTimeMillis();
+
+    @Setter
+    private volatile String source;
+
+    @Setter
+    private volatile String target;
+
+    @Setter
+    private volatile Phase phase = Phase.CREATE;
+
+    /**
+     * 当前阶段对应的 ES 任务 id（node:id）
+     */
+    @Setter
+    private volatile String esTaskId;
+
+    /**
+     * 当前阶段需要复制的文档数
+     */
+    @Setter
+    private volatile long total;
+
+    @Setter
+    private volatile long created;
+
+    @Setter
+    private volatile long updated;
+
+    @Setter
+    private volatile long batches;
+
+    /**
+     * 全量复制的文档数，阶段切换后保留
+     */
+    @Setter
+    private volatile long copied;
+
+    /**
+     * 追平阶段复制的文档数
+     */
+    @Setter
+    private volatile long caughtUp;
+
+    /**
+     * 切换后从新索引删除的文档数
+     */
+    @Setter
+    private volatile long reconciled;
+
+    /**
+     * 旧索引禁写的开始、结束时间，0 表示尚未发生；期间应用写入旧索引会收到 403，批量写入会排队重试
+     */
+    @Setter
+    private volatile long writeBlockedAt;
+
+    @Setter
+    private volatile long writeUnblockedAt;
+
+    private volatile Status status = Status.RUNNING;
+
+    private volatile long endTime;
+
+    private volatile String error;
+
+    @JsonIgnore
+    private volatile boolean cancelRequested;
+
+    @JsonIgnore
+    private final CompletableFuture<ReindexProgress> completion = new CompletableFuture<>();
+
+    public ReindexProgress(String taskId, String alias) {
+        this.taskId = taskId;
+        this.alias = alias;
+    }
+
+    public void cancel() {
+        this.cancelRequested = true;
+    }
+
+    public void finish(Status status, String error) {
+        this.status = status;
+        this.error = error;
+        this.endTime = System.currentTimeMillis();
+        completion.complete(this);
+    }
+}
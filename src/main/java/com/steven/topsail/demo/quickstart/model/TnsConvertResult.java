@@ -0,0 +1,47 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import lombok.Data;
+
+/**
+ * TNS 描述文件转换结果
+ *
+ * @author Steven
+ * @date 2021-02-03
+ */
+@Data
+public class TnsConvertResult {
+
+    private String input;
+
+    private String output;
+
+    /**
+     * 输入字节数
+     */
+    private long bytes;
+
+    /**
+     * 并行解析的块数
+     */
+    private int chunks;
+
+    /**
+     * 生成的行数
+     */
+    private long entries;
+
+    /**
+     * 无法解析而跳过的条目数
+     */
+    private long skipped;
+
+    /**
+     * INSERT 语句数
+     */
+    private long statements;
+
+    /**
+     * 耗时（毫秒）
+     */
+    private long cost;
+}
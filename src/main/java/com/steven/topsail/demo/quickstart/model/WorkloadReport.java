@@ -0,0 +1,73 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 压测结果
+ * <p>
+ * corrected 为从计划发送时刻到收到响应的延迟，已消除协调遗漏（coordinated omission）：
+ * 服务端变慢导致请求没能按时发出时，排队等待的时间同样计入；service 为从实际发出到收到响应的延迟，
+ * 两者差距越大说明发送端积压越严重。延迟单位为毫秒，hdr 为压缩后 Base64 编码的直方图，可用于跨次合并对比。
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+@Data
+public class WorkloadReport {
+
+    private WorkloadSpec spec;
+
+    private String target;
+
+    private long startedAt;
+
+    /**
+     * 运行中查询时为 false，结果为截至当前的统计
+     */
+    private boolean finished;
+
+    /**
+     * 计入结果的时长（不含预热）
+     */
+    private long measuredMillis;
+
+    private long requests;
+
+    private long errors;
+
+    private double throughput;
+
+    private Latency corrected;
+
+    private Latency service;
+
+    /**
+     * 达到目标速率、corrected p99 不超过目标值且错误率低于 1% 时为 true
+     */
+    private boolean sustainable;
+
+    private Map<String, Operation> operations = new LinkedHashMap<>();
+
+    @Data
+    public static class Operation {
+        private long requests;
+        private long errors;
+        private double throughput;
+        private Latency corrected;
+        private Latency service;
+    }
+
+    @Data
+    public static class Latency {
+        private double p50;
+        private double p90;
+        private double p99;
+        private double p999;
+        private double max;
+        private double mean;
+        private String hdr;
+    }
+}
@@ -0,0 +1,86 @@
+package com.steven.topsail.demo.quickstart.model;
+
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 压测负载定义
+ * <p>
+ * 请求按固定速率（开环）发出，与响应快慢无关；每个请求按 mix 中的权重随机选择操作类型，
+ * 按 indices 随机选择索引，文档 id 在 [0, idSpace) 内均匀分布，写入与读取落在同一个 id 空间。
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+@Data
+public class WorkloadSpec {
+
+    public static final String INDEX = "index";
+    public static final String BULK = "bulk";
+    public static final String GET = "get";
+    public static final String MGET = "mget";
+    public static final String SEARCH = "search";
+    public static final String UPDATE = "update";
+
+    /**
+     * 目标地址，为空时使用应用配置的 ES 集群，"stub" 表示本地模拟服务；经接口提交时其他地址须在 loadtest.targets 中配置
+     */
+    private String target;
+
+    /**
+     * 每秒发出的请求数
+     */
+    private int rate = 200;
+
+    private int durationSeconds = 60;
+
+    /**
+     * 预热时长，期间的请求不计入结果
+     */
+    private int warmupSeconds = 10;
+
+    /**
+     * 操作类型 -> 权重
+     */
+    private Map<String, Integer> mix = defaultMix();
+
+    private List<String> indices = Collections.singletonList("loadtest");
+
+    /**
+     * 文档 JSON 的平均字节数，实际大小在 0.5 ~ 1.5 倍之间均匀分布
+     */
+    private int docBytes = 1024;
+
+    private int bulkSize = 500;
+
+    private int mgetSize = 20;
+
+    private int idSpace = 1000000;
+
+    /**
+     * 在途请求上限，达到上限时发送线程等待；延迟从计划发送时刻算起，等待时间同样计入
+     */
+    private int maxOutstanding = 1000;
+
+    /**
+     * 判定可持续的 p99（毫秒）
+     */
+    private double targetP99Millis = 100;
+
+    private long seed = 42;
+
+    private static Map<String, Integer> defaultMix() {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        mix.put(INDEX, 10);
+        mix.put(BULK, 2);
+        mix.put(GET, 40);
+        mix.put(MGET, 10);
+        mix.put(SEARCH, 30);
+        mix.put(UPDATE, 8);
+        return mix;
+    }
+}
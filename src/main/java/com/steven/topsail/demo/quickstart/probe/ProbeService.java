@@ -0,0 +1,273 @@
+package com.steven.topsail.demo.quickstart.probe;
+
+import com.steven.topsail.demo.quickstart.async.EsAsyncExecutor;
+import com.steven.topsail.demo.quickstart.metrics.EsClientMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 探活
+ * <p>
+ * 负载均衡每分钟调用数千次，请求线程上不做任何检查：后台任务按固定间隔采集 ES 集群健康、
+ * 连接池和异步名额的状态，生成不可变快照并预先渲染好响应体，通过 volatile 引用整体发布。
+ * 探活请求只读取引用并写出字节，不阻塞、除响应外不分配对象。
+ * <p>
+ * 采集使用独立的单线程调度器，不与共用 TaskScheduler 上的长时间扫描任务争抢线程；_cluster/health
+ * 异步发出，由回调或超时任务发布快照，不阻塞调度线程。集群 red 或不可达对所有节点同时成立，
+ * 只报 DEGRADED，避免负载均衡一次摘除全部节点；只有本节点自身的问题（启动中、快照超过 3 个
+ * 采集间隔未更新）才报 DOWN。
+ *
+ * @author Steven
+ * @date 2021-02-05
+ */
+@Slf4j
+@Component
+public class ProbeService {
+
+    private static final String SERVER_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").format(LocalDateTime.now());
+
+    private static final String UNREACHABLE = "unreachable";
+
+    @Value("${probe.refresh-interval:2000}")
+    private long refreshInterval;
+
+    @Value("${probe.es-timeout:1000}")
+    private long esTimeout;
+
+    /**
+     * 异步在途请求占上限的比例超过该值时降级
+     */
+    @Value("${probe.async-degraded-ratio:0.9}")
+    private double asyncDegradedRatio;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private PoolingNHttpClientConnectionManager esConnectionManager;
+
+    @Autowired
+    private EsClientMetrics esClientMetrics;
+
+    @Autowired
+    private EsAsyncExecutor esAsyncExecutor;
+
+    private ScheduledExecutorService probeScheduler;
+
+    /**
+     * 上一次采集尚未发布时跳过本次
+     */
+    private final AtomicBoolean collecting = new AtomicBoolean();
+
+    private final LongAdder probes = new LongAdder();
+
+    private volatile Published published;
+
+    /**
+     * 快照过期时返回的响应，启动时生成一次
+     */
+    private Published stale;
+
+    @PostConstruct
+    public void init() {
+        stale = new Published(null, ProbeSnapshot.Status.DOWN, "snapshot stale", 0);
+        published = new Published(null, ProbeSnapshot.Status.DOWN, "starting", System.currentTimeMillis());
+        probeScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        probeScheduler.scheduleWithFixedDelay(this::safeRefresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        probeScheduler.shutdownNow();
+    }
+
+    /**
+     * 探活响应，供 /probe.jsp 直接写出
+     *
+     * @return
+     */
+    public Published current() {
+        probes.increment();
+        Published current = published;
+        if (System.currentTimeMillis() - current.publishedAt > refreshInterval * 3) {
+            return stale;
+        }
+        return current;
+    }
+
+    public ProbeSnapshot snapshot() {
+        return published.snapshot;
+    }
+
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    /**
+     * 发出一次 _cluster/health，收到响应、失败或超过 esTimeout 毫秒时发布快照，先到者生效
+     */
+    public void refresh() {
+        if (!collecting.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        AtomicBoolean done = new AtomicBoolean();
+        ClusterHealthRequest request = new ClusterHealthRequest().timeout(esTimeout + "ms");
+        Cancellable cancellable;
+        try {
+            cancellable = restHighLevelClient.cluster().healthAsync(request, RequestOptions.DEFAULT,
+                new ActionListener<ClusterHealthResponse>() {
+                    @Override
+                    public void onResponse(ClusterHealthResponse response) {
+                        if (done.compareAndSet(false, true)) {
+                            publish(response, start);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        if (done.compareAndSet(false, true)) {
+                            log.warn("_cluster/health 失败: {}", e.toString());
+                            publish(null, start);
+                        }
+                    }
+                });
+        } catch (RuntimeException e) {
+            collecting.set(false);
+            throw e;
+        }
+        probeScheduler.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                cancellable.cancel();
+                log.warn("_cluster/health 超过 {} ms 未返回", esTimeout);
+                publish(null, start);
+            }
+        }, esTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void publish(ClusterHealthResponse health, long start) {
+        try {
+            doPublish(health, start);
+        } catch (Exception e) {
+            log.error("探活快照发布失败", e);
+        } finally {
+            collecting.set(false);
+        }
+    }
+
+    private void doPublish(ClusterHealthResponse health, long start) {
+        String clusterStatus = UNREACHABLE;
+        int numberOfNodes = 0;
+        double activeShardsPercent = 0;
+        if (null != health) {
+            clusterStatus = health.getStatus().name().toLowerCase();
+            numberOfNodes = health.getNumberOfNodes();
+            activeShardsPercent = health.getActiveShardsPercent();
+        }
+        long esLatency = System.currentTimeMillis() - start;
+
+        PoolStats pool = esConnectionManager.getTotalStats();
+        int asyncOutstanding = esAsyncExecutor.getOutstanding();
+        int asyncMaxOutstanding = esAsyncExecutor.getMaxOutstanding();
+
+        ProbeSnapshot.Status status = ProbeSnapshot.Status.UP;
+        String reason = "";
+        if (null == health) {
+            status = ProbeSnapshot.Status.DEGRADED;
+            reason = "es " + UNREACHABLE;
+        } else if (ClusterHealthStatus.RED == health.getStatus()) {
+            status = ProbeSnapshot.Status.DEGRADED;
+            reason = "cluster red";
+        } else if (ClusterHealthStatus.YELLOW == health.getStatus()) {
+            status = ProbeSnapshot.Status.DEGRADED;
+            reason = "cluster yellow";
+        } else if (pool.getPending() > 0) {
+            status = ProbeSnapshot.Status.DEGRADED;
+            reason = "connection pool pending " + pool.getPending();
+        } else if (asyncOutstanding > asyncMaxOutstanding * asyncDegradedRatio) {
+            status = ProbeSnapshot.Status.DEGRADED;
+            reason = "async outstanding " + asyncOutstanding + "/" + asyncMaxOutstanding;
+        }
+
+        long now = System.currentTimeMillis();
+        ProbeSnapshot snapshot = new ProbeSnapshot(status, reason, clusterStatus, numberOfNodes, activeShardsPercent,
+            esLatency, pool.getLeased(), pool.getPending(), pool.getAvailable(), pool.getMax(),
+            esClientMetrics.getInFlight(), asyncOutstanding, asyncMaxOutstanding, now);
+
+        Published previous = published;
+        published = new Published(snapshot, status, reason, now);
+        if (null == previous.snapshot || previous.status != status) {
+            log.info("探活状态: {} {}，集群: {}，节点数: {}，ES 耗时: {} ms", status, reason, clusterStatus, numberOfNodes, esLatency);
+        }
+    }
+
+    private void safeRefresh() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("探活采集失败", e);
+        }
+    }
+
+    /**
+     * 已发布的快照及预先渲染的响应
+     */
+    public static final class Published {
+
+        private final ProbeSnapshot snapshot;
+
+        private final ProbeSnapshot.Status status;
+
+        private final long publishedAt;
+
+        /**
+         * 响应体，沿用原来的格式：状态 | 启动时间，UP 时状态为 OK
+         */
+        private final byte[] body;
+
+        private Published(ProbeSnapshot snapshot, ProbeSnapshot.Status status, String reason, long publishedAt) {
+            this.snapshot = snapshot;
+            this.status = status;
+            this.publishedAt = publishedAt;
+            String word = ProbeSnapshot.Status.UP == status ? "OK" : status + " " + reason;
+            this.body = String.format("%-30s | %s", word, SERVER_TIME).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * DOWN（只由本节点自身的问题导致）时返回 503，负载均衡据此摘除节点；DEGRADED 仍返回 200
+         */
+        public int httpStatus() {
+            return ProbeSnapshot.Status.DOWN == status ? 503 : 200;
+        }
+
+        public byte[] body() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.steven.topsail.demo.quickstart.probe;
+
+import lombok.Data;
+
+/**
+ * 探活快照，由后台任务定期生成，生成后不再修改
+ *
+ * @author Steven
+ * @date 2021-02-05
+ */
+@Data
+public class ProbeSnapshot {
+
+    public enum Status {
+        /**
+         * 可正常服务
+         */
+        UP,
+        /**
+         * 可服务但已降级：集群 red / yellow / 不可达、连接池有等待、异步名额接近上限
+         */
+        DEGRADED,
+        /**
+         * 本节点不可服务：启动中或采集停滞
+         */
+        DOWN
+    }
+
+    private final Status status;
+
+    /**
+     * 判定依据，UP 时为空
+     */
+    private final String reason;
+
+    /**
+     * 集群状态 green / yellow / red，不可达时为 unreachable
+     */
+    private final String clusterStatus;
+
+    private final int numberOfNodes;
+
+    private final double activeShardsPercent;
+
+    /**
+     * 本次 _cluster/health 耗时（毫秒），超时时约为 probe.es-timeout
+     */
+    private final long esLatency;
+
+    private final int poolLeased;
+
+    private final int poolPending;
+
+    private final int poolAvailable;
+
+    private final int poolMax;
+
+    private final long clientInFlight;
+
+    private final int asyncOutstanding;
+
+    private final int asyncMaxOutstanding;
+
+    private final long collectedAt;
+}
@@ -0,0 +1,403 @@
+package com.steven.topsail.demo.quickstart.replica;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.time.DateFormatter;
+import org.elasticsearch.common.time.DateMathParser;
+
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 本地副本的字段映射
+ * <p>
+ * 由 ES 的 _mapping 转换而来，只保留能在 Lucene 中等价表达的类型：text 分词索引，keyword、boolean 整体索引，
+ * 整数、浮点、日期写成 Point 并带 doc values 以支持范围查询和排序。其余类型的字段只保存在 _source 中，
+ * 对它们的查询交回 ES 执行。多字段（如 FUNC_ID.keyword）与对象字段按点分路径展开。
+ * <p>
+ * text 字段记录索引和查询时的分析器，只有 standard 能在本地等价还原（StandardAnalyzer，无停用词），
+ * 其余分析器（ik_* 等）的字段只保存在 _source 中，不建索引，对它们的查询和高亮交回 ES。
+ * 带 normalizer 的 keyword 字段同样不建索引。另外记录影响查询结果的索引设置 max_result_window。
+ *
+ * @author Steven
+ * @date 2021-02-11
+ */
+public final class LocalMapping {
+
+    public static final String ID = "_id";
+    public static final String SOURCE = "_source";
+    public static final String FIELD_NAMES = "_field_names";
+
+    private static final String DEFAULT_DATE_FORMAT = "strict_date_optional_time||epoch_millis";
+
+    public static final String STANDARD = "standard";
+
+    private static final int DEFAULT_MAX_RESULT_WINDOW = 10000;
+
+    private static final String DEFAULT_ANALYZER = "index.analysis.analyzer.default.";
+    private static final String DEFAULT_SEARCH_ANALYZER = "index.analysis.analyzer.default_search.";
+
+    public enum Type {
+        TEXT, KEYWORD, LONG, DOUBLE, DATE, BOOLEAN
+    }
+
+    /**
+     * 字段路径 -> 类型
+     */
+    private final Map<String, Type> types;
+
+    /**
+     * 日期字段路径 -> 格式
+     */
+    private final Map<String, String> formats;
+
+    private final Map<String, DateFormatter> formatters = new LinkedHashMap<>();
+
+    /**
+     * text 字段路径 -> 分析器，索引与查询分析器不同时为 "索引/查询"
+     */
+    private final Map<String, String> analyzers;
+
+    private final int maxResultWindow;
+
+    private LocalMapping(Map<String, Type> types, Map<String, String> formats, Map<String, String> analyzers, int maxResultWindow) {
+        this.types = types;
+        this.formats = formats;
+        this.analyzers = analyzers;
+        this.maxResultWindow = maxResultWindow;
+        for (Map.Entry<String, String> entry : formats.entrySet()) {
+            formatters.put(entry.getKey(), DateFormatter.forPattern(entry.getValue()));
+        }
+    }
+
+    /**
+     * 解析 _mapping 响应中某个索引的 mappings
+     *
+     * @param mappings 形如 {"properties": {...}}
+     * @param settings 同一索引 flat_settings=true 的 settings，用于取默认分析器和 max_result_window
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static LocalMapping fromEs(Map<String, Object> mappings, Map<String, Object> settings) {
+        Map<String, Type> types = new LinkedHashMap<>();
+        Map<String, String> formats = new LinkedHashMap<>();
+        Map<String, String> analyzers = new LinkedHashMap<>();
+        // 自定义的 default / default_search 分析器同样无法在本地还原
+        String defaultAnalyzer = STANDARD;
+        String defaultSearchAnalyzer = null;
+        for (String key : settings.keySet()) {
+            if (key.startsWith(DEFAULT_ANALYZER)) {
+                defaultAnalyzer = "default";
+            } else if (key.startsWith(DEFAULT_SEARCH_ANALYZER)) {
+                defaultSearchAnalyzer = "default_search";
+            }
+        }
+        Object properties = mappings.get("properties");
+        if (properties instanceof Map) {
+            Parser parser = new Parser(types, formats, analyzers, defaultAnalyzer,
+                null == defaultSearchAnalyzer ? defaultAnalyzer : defaultSearchAnalyzer);
+            parser.parse("", (Map<String, Object>) properties);
+        }
+        Object maxResultWindow = settings.get("index.max_result_window");
+        return new LocalMapping(types, formats, analyzers,
+            null == maxResultWindow ? DEFAULT_MAX_RESULT_WINDOW : Integer.parseInt(maxResultWindow.toString()));
+    }
+
+    /**
+     * 从本地提交中保存的映射恢复
+     *
+     * @param saved {@link #toMap()} 的结果
+     * @return 早期版本保存的映射没有分析器信息，本地内容按其他分词方式建立，返回 null，需重新全量加载
+     */
+    @SuppressWarnings("unchecked")
+    public static LocalMapping fromSaved(Map<String, Object> saved) {
+        if (!saved.containsKey("analyzers")) {
+            return null;
+        }
+        Map<String, Type> types = new LinkedHashMap<>();
+        Map<String, String> formats = new LinkedHashMap<>();
+        Map<String, String> analyzers = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) saved.get("types")).entrySet()) {
+            types.put(entry.getKey(), Type.valueOf(entry.getValue().toString()));
+        }
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) saved.get("formats")).entrySet()) {
+            formats.put(entry.getKey(), entry.getValue().toString());
+        }
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) saved.get("analyzers")).entrySet()) {
+            analyzers.put(entry.getKey(), entry.getValue().toString());
+        }
+        return new LocalMapping(types, formats, analyzers, ((Number) saved.get("maxResultWindow")).intValue());
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> types = new LinkedHashMap<>();
+        for (Map.Entry<String, Type> entry : this.types.entrySet()) {
+            types.put(entry.getKey(), entry.getValue().name());
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("types", types);
+        map.put("formats", new LinkedHashMap<>(formats));
+        map.put("analyzers", new LinkedHashMap<>(analyzers));
+        map.put("maxResultWindow", maxResultWindow);
+        return map;
+    }
+
+    /**
+     * @param field
+     * @return 未映射或类型不支持时返回 null
+     */
+    public Type type(String field) {
+        return types.get(field);
+    }
+
+    /**
+     * @param field text 字段
+     * @return 索引和查询分析器都是 standard，本地分词与 ES 一致
+     */
+    public boolean isAnalyzable(String field) {
+        return STANDARD.equals(analyzers.get(field));
+    }
+
+    /**
+     * @param field
+     * @return 分析器名，非 text 字段返回 null
+     */
+    public String analyzer(String field) {
+        return analyzers.get(field);
+    }
+
+    /**
+     * 索引的 index.max_result_window，from + size 超过时 ES 返回 400
+     */
+    public int getMaxResultWindow() {
+        return maxResultWindow;
+    }
+
+    public int size() {
+        return types.size();
+    }
+
+    /**
+     * 按字段的日期格式解析，支持 now-1d/d 等日期运算
+     *
+     * @param field
+     * @param value
+     * @param roundUp 取整方向，作为上界（含）或下界（不含）时为 true
+     * @return epoch 毫秒
+     */
+    public long parseDate(String field, Object value, boolean roundUp) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        DateFormatter formatter = formatters.get(field);
+        if (null == formatter) {
+            formatter = DateFormatter.forPattern(DEFAULT_DATE_FORMAT);
+        }
+        DateMathParser parser = formatter.toDateMathParser();
+        return parser.parse(value.toString(), System::currentTimeMillis, roundUp, ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * 生成 Lucene 文档，_source 原样保存
+     *
+     * @param id
+     * @param source 解析后的文档
+     * @param sourceBytes 原始 JSON
+     * @return
+     */
+    public Document toDocument(String id, Map<String, Object> source, BytesReference sourceBytes) {
+        Document document = new Document();
+        document.add(new StringField(ID, id, Field.Store.YES));
+        document.add(new StoredField(SOURCE, BytesReference.toBytes(sourceBytes)));
+        for (Map.Entry<String, Type> entry : types.entrySet()) {
+            String path = entry.getKey();
+            Collection<Object> values = values(source, path);
+            if (values.isEmpty()) {
+                continue;
+            }
+            document.add(new StringField(FIELD_NAMES, path, Field.Store.NO));
+            for (Object value : values) {
+                addField(document, path, entry.getValue(), value);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * 按点分路径取值，数组展开；多字段（如 FUNC_ID.keyword）取父字段的值
+     *
+     * @param source
+     * @param path
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static Collection<Object> values(Map<String, Object> source, String path) {
+        Object current = source;
+        String[] parts = path.split("\\.");
+        for (String part : parts) {
+            if (!(current instanceof Map)) {
+                break;
+            }
+            Object next = ((Map<String, Object>) current).get(part);
+            if (null == next) {
+                // 多字段不在 _source 中出现，停在父字段
+                break;
+            }
+            current = next;
+        }
+        if (current == source || null == current || current instanceof Map) {
+            return Collections.emptyList();
+        }
+        if (current instanceof Collection) {
+            return (Collection<Object>) current;
+        }
+        return Collections.singletonList(current);
+    }
+
+    private void addField(Document document, String path, Type type, Object value) {
+        if (null == value) {
+            return;
+        }
+        switch (type) {
+            case TEXT:
+                // 分析器无法还原的字段不建索引，查询交回 ES
+                if (isAnalyzable(path)) {
+                    document.add(new TextField(path, value.toString(), Field.Store.NO));
+                }
+                break;
+            case KEYWORD:
+                document.add(new StringField(path, value.toString(), Field.Store.NO));
+                document.add(new SortedSetDocValuesField(path, new BytesRef(value.toString())));
+                break;
+            case BOOLEAN:
+                document.add(new StringField(path, value.toString(), Field.Store.NO));
+                break;
+            case LONG:
+                long longValue = value instanceof Number ? ((Number) value).longValue() : (long) Double.parseDouble(value.toString());
+                document.add(new LongPoint(path, longValue));
+                document.add(new SortedNumericDocValuesField(path, longValue));
+                break;
+            case DOUBLE:
+                double doubleValue = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+                document.add(new DoublePoint(path, doubleValue));
+                document.add(new SortedNumericDocValuesField(path, NumericUtils.doubleToSortableLong(doubleValue)));
+                break;
+            case DATE:
+                long millis = parseDate(path, value, false);
+                document.add(new LongPoint(path, millis));
+                document.add(new SortedNumericDocValuesField(path, millis));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static final class Parser {
+        private final Map<String, Type> types;
+        private final Map<String, String> formats;
+        private final Map<String, String> analyzers;
+        private final String defaultAnalyzer;
+        private final String defaultSearchAnalyzer;
+
+        private Parser(Map<String, Type> types, Map<String, String> formats, Map<String, String> analyzers,
+                       String defaultAnalyzer, String defaultSearchAnalyzer) {
+            this.types = types;
+            this.formats = formats;
+            this.analyzers = analyzers;
+            this.defaultAnalyzer = defaultAnalyzer;
+            this.defaultSearchAnalyzer = defaultSearchAnalyzer;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void parse(String prefix, Map<String, Object> properties) {
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                String path = prefix + entry.getKey();
+                Map<String, Object> definition = (Map<String, Object>) entry.getValue();
+                Object nested = definition.get("properties");
+                if (nested instanceof Map) {
+                    parse(path + ".", (Map<String, Object>) nested);
+                    continue;
+                }
+                put(path, definition);
+                Object fields = definition.get("fields");
+                if (fields instanceof Map) {
+                    for (Map.Entry<String, Object> field : ((Map<String, Object>) fields).entrySet()) {
+                        put(path + "." + field.getKey(), (Map<String, Object>) field.getValue());
+                    }
+                }
+            }
+        }
+
+        private void put(String path, Map<String, Object> definition) {
+            Type type = toType(String.valueOf(definition.get("type")));
+            if (null == type) {
+                return;
+            }
+            if (Type.KEYWORD == type && null != definition.get("normalizer")) {
+                return;
+            }
+            types.put(path, type);
+            if (Type.DATE == type) {
+                Object format = definition.get("format");
+                formats.put(path, null == format ? DEFAULT_DATE_FORMAT : format.toString());
+            } else if (Type.TEXT == type) {
+                analyzers.put(path, analyzer(definition));
+            }
+        }
+
+        /**
+         * 与 ES 相同的取值顺序：查询分析器为 search_analyzer、analyzer、default_search、default、standard
+         */
+        private String analyzer(Map<String, Object> definition) {
+            Object analyzer = definition.get("analyzer");
+            Object searchAnalyzer = definition.get("search_analyzer");
+            Object quoteAnalyzer = definition.get("search_quote_analyzer");
+            String index = null == analyzer ? defaultAnalyzer : analyzer.toString();
+            String search = null != searchAnalyzer ? searchAnalyzer.toString()
+                : null != analyzer ? analyzer.toString() : defaultSearchAnalyzer;
+            if (null != quoteAnalyzer && !STANDARD.equals(quoteAnalyzer.toString())) {
+                search = search + "," + quoteAnalyzer;
+            }
+            return index.equals(search) ? index : index + "/" + search;
+        }
+    }
+
+    private static Type toType(String esType) {
+        switch (esType) {
+            case "text":
+                return Type.TEXT;
+            case "keyword":
+            case "constant_keyword":
+                return Type.KEYWORD;
+            case "long":
+            case "integer":
+            case "short":
+            case "byte":
+                return Type.LONG;
+            case "double":
+            case "float":
+            case "half_float":
+            case "scaled_float":
+                return Type.DOUBLE;
+            case "date":
+                return Type.DATE;
+            case "boolean":
+                return Type.BOOLEAN;
+            default:
+                return null;
+        }
+    }
+}
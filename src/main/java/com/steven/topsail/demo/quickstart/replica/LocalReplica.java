@@ -0,0 +1,631 @@
+package com.steven.topsail.demo.quickstart.replica;
+
+import com.steven.topsail.demo.quickstart.feed.ChangeBatch;
+import com.steven.topsail.demo.quickstart.feed.ChangeFeed;
+import com.steven.topsail.demo.quickstart.feed.ChangedDocument;
+import com.steven.topsail.demo.quickstart.util.ScrollUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
+import org.apache.lucene.search.highlight.NullFragmenter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleFragmenter;
+import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个索引的本地 Lucene 副本
+ * <p>
+ * 全量扫描 ES 建立本地索引，之后由变更订阅（{@link ChangeFeed}）推送的批次增量更新，新增、修改、删除
+ * 都在批次内应用。每次更新后提交到本地磁盘，映射一并写入提交数据，重启后打开目录即可查询。
+ * 全量加载先把文档全部读到内存，再在同一次提交中替换旧内容，查询始终看到完整的某一版数据。
+ * <p>
+ * 本服务写入覆盖的索引后，副本标记为脏，查询交回 ES（读己之写）：按 id 写入的文档由 {@link #catchUp} 实时读取后
+ * 补到副本上，补上之前的旧批次不会覆盖它；按条件的批量写入只能等下一次全量加载。
+ * <p>
+ * 只有使用 standard 分析器的 text 字段在本地分词（StandardAnalyzer，与 ES 一致），ik_* 等分析器的字段
+ * 不建本地索引，涉及它们的查询和高亮交回 ES；from + size 超过索引的 max_result_window 时同样交回 ES，由 ES 返回 400。
+ *
+ * @author Steven
+ * @date 2021-02-11
+ */
+@Slf4j
+public class LocalReplica implements Closeable {
+
+    private static final String COMMIT_MAPPING = "mapping";
+    private static final String COMMIT_LOADED_AT = "loaded_at";
+
+    /**
+     * 补写文档后，这段时间内拉取时间更早的变更批次不覆盖它
+     */
+    private static final long PIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String[] DEFAULT_PRE_TAGS = {"<em>"};
+    private static final String[] DEFAULT_POST_TAGS = {"</em>"};
+
+    private final String index;
+
+    private final Path path;
+
+    /**
+     * ES 的 standard 分析器不带停用词
+     */
+    private final Analyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+
+    private Directory directory;
+
+    private IndexWriter writer;
+
+    private SearcherManager searcherManager;
+
+    private volatile LuceneQueryTranslator translator;
+
+    private volatile LocalMapping mapping;
+
+    private volatile long loadedAt;
+
+    /**
+     * 本地写入后尚未补到副本的 id -> 标记序号，同一 id 再次写入时序号变大，补写只移除序号未变的标记
+     */
+    private final Map<String, Long> dirtyIds = new ConcurrentHashMap<>();
+
+    private final AtomicLong dirtySequence = new AtomicLong();
+
+    private final AtomicBoolean catchUpPending = new AtomicBoolean();
+
+    /**
+     * 按条件批量写入的时间，之后开始的全量加载完成前副本不可用，0 表示没有
+     */
+    private final AtomicLong staleSince = new AtomicLong();
+
+    /**
+     * 补写的文档 id -> 补写时的 _seq_no 和时间，只在持有 this 锁时访问
+     */
+    private final Map<String, long[]> pinned = new HashMap<>();
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder deltaDocs = new LongAdder();
+    private final LongAdder deltaDeletes = new LongAdder();
+    private final LongAdder caughtUpDocs = new LongAdder();
+
+    public LocalReplica(String index, Path path) {
+        this.index = index;
+        this.path = path;
+    }
+
+    /**
+     * 打开本地目录，有上次提交的数据时立即可查询
+     *
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        directory = FSDirectory.open(path);
+        writer = new IndexWriter(directory, new IndexWriterConfig(analyzer).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+        searcherManager = new SearcherManager(writer, null);
+
+        Map<String, String> commitData = new HashMap<>();
+        Iterable<Map.Entry<String, String>> live = writer.getLiveCommitData();
+        if (null != live) {
+            for (Map.Entry<String, String> entry : live) {
+                commitData.put(entry.getKey(), entry.getValue());
+            }
+        }
+        String savedMapping = commitData.get(COMMIT_MAPPING);
+        if (null != savedMapping) {
+            LocalMapping saved = LocalMapping.fromSaved(XContentHelper.convertToMap(JsonXContent.jsonXContent, savedMapping, false));
+            if (null == saved) {
+                log.info("本地副本 {} 的数据由旧版本建立，等待全量加载", index);
+                return;
+            }
+            setMapping(saved);
+            loadedAt = Long.parseLong(commitData.getOrDefault(COMMIT_LOADED_AT, "0"));
+            log.info("本地副本 {} 从磁盘恢复，文档数: {}", index, writer.getDocStats().numDocs);
+        }
+    }
+
+    public boolean isReady() {
+        return null != translator;
+    }
+
+    /**
+     * 副本已加载且没有未补上的本地写入
+     *
+     * @return
+     */
+    public boolean isCurrent() {
+        return isReady() && dirtyIds.isEmpty() && 0 == staleSince.get();
+    }
+
+    /**
+     * 本服务按 id 写入了该索引
+     *
+     * @param id
+     * @return 需要安排一次 {@link #catchUp} 时返回 true
+     */
+    public boolean markDirty(String id) {
+        dirtyIds.put(id, dirtySequence.incrementAndGet());
+        return catchUpPending.compareAndSet(false, true);
+    }
+
+    /**
+     * 本服务按条件批量写入了该索引，副本在写入后开始的全量加载完成前不用于查询
+     */
+    public void markStale() {
+        staleSince.set(System.currentTimeMillis());
+    }
+
+    /**
+     * 补写失败后重新安排
+     *
+     * @return 尚未安排时返回 true
+     */
+    public boolean requestCatchUp() {
+        return !dirtyIds.isEmpty() && catchUpPending.compareAndSet(false, true);
+    }
+
+    /**
+     * 按 id 实时读取本地写入过的文档并补到副本上；实时 get 不受 refresh 间隔影响，读到的一定是写入之后的版本
+     *
+     * @param client
+     * @throws IOException
+     */
+    public void catchUp(RestHighLevelClient client) throws IOException {
+        catchUpPending.set(false);
+        Map<String, Long> snapshot = new HashMap<>(dirtyIds);
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        MultiGetRequest request = new MultiGetRequest();
+        for (String id : snapshot.keySet()) {
+            request.add(new MultiGetRequest.Item(index, id));
+        }
+        MultiGetResponse response = client.mget(request, RequestOptions.DEFAULT);
+        List<ChangedDocument> upserts = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed()) {
+                throw new IOException("本地副本 " + index + " 补写失败，id: " + item.getId(), item.getFailure().getFailure());
+            }
+            GetResponse getResponse = item.getResponse();
+            if (getResponse.isExists()) {
+                upserts.add(new ChangedDocument(getResponse.getId(), getResponse.getSeqNo(), getResponse.getPrimaryTerm(),
+                    Long.MIN_VALUE, getResponse.getSourceAsMap(), getResponse.getSourceInternal()));
+            } else {
+                deletes.add(getResponse.getId());
+            }
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (ChangedDocument document : upserts) {
+                pinned.put(document.getId(), new long[]{document.getSeqNo(), now});
+            }
+            write(upserts, deletes, "LOCAL");
+        }
+        caughtUpDocs.add(snapshot.size());
+        for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+            dirtyIds.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 全量加载：读取映射和全部文档后整体替换本地内容
+     *
+     * @param client
+     * @param visibilityDelay 写入到可被搜索到的最长间隔（refresh 间隔），用于判断加载是否已包含之前的批量写入
+     * @throws IOException
+     */
+    public synchronized void fullLoad(RestHighLevelClient client, long visibilityDelay) throws IOException {
+        long start = System.currentTimeMillis();
+        LocalMapping loadedMapping = fetchMapping(client);
+        List<Document> documents = new ArrayList<>();
+        scan(client, loadedMapping, documents);
+
+        writer.deleteAll();
+        writer.addDocuments(documents);
+        commit(loadedMapping);
+        setMapping(loadedMapping);
+        searcherManager.maybeRefreshBlocking();
+        pinned.clear();
+        // 批量写入在扫描开始前已可见（refresh 之后）时，本次加载已包含它
+        staleSince.updateAndGet(since -> since + visibilityDelay <= start ? 0 : since);
+        log.info("本地副本 {} 全量加载完成，文档数: {}，耗时: {} ms", index, documents.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 应用变更订阅推送的一批变更；尚未全量加载时忽略，由全量加载覆盖
+     *
+     * @param batch
+     * @throws IOException
+     */
+    public synchronized void apply(ChangeBatch batch) throws IOException {
+        if (pinned.isEmpty()) {
+            write(batch.getUpserts(), batch.getDeletes(), batch.getType().name());
+            return;
+        }
+        // 补写过的文档，以补写时的 _seq_no 为准，拉取得更早的批次不覆盖、不删除
+        long now = System.currentTimeMillis();
+        pinned.values().removeIf(pin -> now - pin[1] > PIN_MILLIS);
+        List<ChangedDocument> upserts = new ArrayList<>(batch.getUpserts().size());
+        for (ChangedDocument change : batch.getUpserts()) {
+            long[] pin = pinned.get(change.getId());
+            if (null == pin || change.getSeqNo() >= pin[0]) {
+                pinned.remove(change.getId());
+                upserts.add(change);
+            }
+        }
+        List<String> deletes = new ArrayList<>(batch.getDeletes().size());
+        for (String id : batch.getDeletes()) {
+            if (!pinned.containsKey(id)) {
+                deletes.add(id);
+            }
+        }
+        write(upserts, deletes, batch.getType().name());
+    }
+
+    private void write(List<ChangedDocument> upserts, List<String> deletes, String type) throws IOException {
+        LocalMapping current = mapping;
+        if (null == current) {
+            return;
+        }
+        int updated = 0;
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            for (ChangedDocument change : upserts) {
+                Document document = current.toDocument(change.getId(), change.getSource(), change.getSourceRef());
+                // 全量同步和重叠窗口会重复推送文档，内容未变的跳过
+                if (!unchanged(searcher, change.getId(), document)) {
+                    writer.updateDocument(new Term(LocalMapping.ID, change.getId()), document);
+                    updated++;
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+        for (String id : deletes) {
+            writer.deleteDocuments(new Term(LocalMapping.ID, id));
+        }
+        if (updated > 0 || !deletes.isEmpty()) {
+            commit(current);
+            searcherManager.maybeRefreshBlocking();
+            deltaDocs.add(updated);
+            deltaDeletes.add(deletes.size());
+            log.debug("本地副本 {} 增量更新，{} 文档数: {}，删除数: {}", index, type, updated, deletes.size());
+        }
+    }
+
+    /**
+     * 在本地执行查询，生成与 ES 相同结构的响应体
+     *
+     * @param source     查询条件
+     * @param filterPath 响应字段过滤，语义同 ES 的 filter_path，为空时返回完整响应
+     * @return JSON 响应体
+     * @throws UnsupportedOperationException 查询中有本地无法等价执行的部分，应交回 ES
+     * @throws IOException
+     */
+    public byte[] search(SearchSourceBuilder source, String filterPath) throws IOException {
+        LuceneQueryTranslator current = translator;
+        if (null == current) {
+            throw new UnsupportedOperationException("本地副本尚未加载: " + index);
+        }
+        long start = System.nanoTime();
+        Query query;
+        Sort sort;
+        try {
+            if (!isCurrent()) {
+                throw new UnsupportedOperationException("本地副本有尚未同步的本地写入: " + index);
+            }
+            if (null != source.aggregations() || null != source.suggest() || null != source.collapse()
+                || null != source.postFilter() || null != source.searchAfter() || null != source.scriptFields()) {
+                throw new UnsupportedOperationException("不支持聚合、建议、折叠、post_filter、search_after、脚本字段");
+            }
+            // 这些参数会改变命中集合、得分或返回的字段，本地忽略会得到与 ES 不同的结果
+            if (null != source.minScore() || (null != source.rescores() && !source.rescores().isEmpty())
+                || source.terminateAfter() > 0 || null != source.storedFields() || null != source.docValueFields()
+                || null != source.fetchFields() || null != source.slice() || !source.indexBoosts().isEmpty()
+                || Boolean.TRUE.equals(source.explain()) || null != source.pointInTimeBuilder()) {
+                throw new UnsupportedOperationException("不支持 min_score、rescore、terminate_after、stored_fields、docvalue_fields、"
+                    + "fields、slice、indices_boost、explain、pit");
+            }
+            query = current.toQuery(source.query());
+            sort = current.toSort(source.sorts());
+            checkHighlight(source.highlighter());
+        } catch (UnsupportedOperationException e) {
+            fallbacks.increment();
+            throw e;
+        }
+        int from = Math.max(0, source.from());
+        int size = source.size() < 0 ? 10 : source.size();
+        // 收集器按 topN 预分配，不能让请求参数决定堆占用；超出窗口时 ES 返回 400，交给 ES 处理
+        if ((long) from + size > mapping.getMaxResultWindow()) {
+            fallbacks.increment();
+            throw new UnsupportedOperationException("from + size 超过 max_result_window: " + mapping.getMaxResultWindow());
+        }
+        int topN = Math.max(1, from + size);
+
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopDocs topDocs;
+            boolean scored = null == sort;
+            if (scored) {
+                TopScoreDocCollector collector = TopScoreDocCollector.create(topN, Integer.MAX_VALUE);
+                searcher.search(query, collector);
+                topDocs = collector.topDocs();
+            } else {
+                TopFieldCollector collector = TopFieldCollector.create(sort, topN, Integer.MAX_VALUE);
+                searcher.search(query, collector);
+                topDocs = collector.topDocs();
+            }
+            searches.increment();
+            return render(searcher, query, source, filterPath, topDocs, from, scored, start);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", isReady());
+        map.put("current", isCurrent());
+        map.put("dirtyIds", dirtyIds.size());
+        map.put("staleSince", staleSince.get());
+        map.put("docs", null == writer ? 0 : writer.getDocStats().numDocs);
+        map.put("fields", null == mapping ? 0 : mapping.size());
+        map.put("loadedAt", loadedAt);
+        map.put("searches", searches.sum());
+        map.put("fallbacks", fallbacks.sum());
+        map.put("deltaDocs", deltaDocs.sum());
+        map.put("deltaDeletes", deltaDeletes.sum());
+        map.put("caughtUpDocs", caughtUpDocs.sum());
+        return map;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (null != searcherManager) {
+            searcherManager.close();
+        }
+        if (null != writer) {
+            writer.close();
+        }
+        if (null != directory) {
+            directory.close();
+        }
+    }
+
+    /**
+     * 高亮字段的分析器必须能在本地还原，否则片段与 ES 不同
+     */
+    private void checkHighlight(HighlightBuilder highlight) {
+        if (null == highlight) {
+            return;
+        }
+        for (HighlightBuilder.Field field : highlight.fields()) {
+            if (LocalMapping.Type.TEXT == mapping.type(field.name()) && !mapping.isAnalyzable(field.name())) {
+                throw new UnsupportedOperationException("高亮字段的分析器无法在本地还原: " + field.name());
+            }
+        }
+    }
+
+    private void setMapping(LocalMapping loaded) {
+        mapping = loaded;
+        translator = new LuceneQueryTranslator(loaded, analyzer);
+    }
+
+    private void commit(LocalMapping committed) throws IOException {
+        Map<String, String> commitData = new HashMap<>();
+        commitData.put(COMMIT_MAPPING, Strings.toString(XContentBuilder.builder(JsonXContent.jsonXContent).map(committed.toMap())));
+        commitData.put(COMMIT_LOADED_AT, Long.toString(System.currentTimeMillis()));
+        writer.setLiveCommitData(commitData.entrySet());
+        writer.commit();
+        loadedAt = System.currentTimeMillis();
+    }
+
+    @SuppressWarnings("unchecked")
+    private LocalMapping fetchMapping(RestHighLevelClient client) throws IOException {
+        Map<String, Object> mappings = fetch(client, "/" + index + "/_mapping");
+        Map<String, Object> settings = fetch(client, "/" + index + "/_settings?flat_settings=true");
+        return LocalMapping.fromEs((Map<String, Object>) mappings.get("mappings"), (Map<String, Object>) settings.get("settings"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> fetch(RestHighLevelClient client, String endpoint) throws IOException {
+        Response response = client.getLowLevelClient().performRequest(new Request("GET", endpoint));
+        Map<String, Object> body;
+        try (InputStream in = response.getEntity().getContent()) {
+            body = XContentHelper.convertToMap(XContentType.JSON.xContent(), in, false);
+        }
+        if (body.isEmpty()) {
+            throw new IOException("索引不存在: " + index);
+        }
+        // 别名时响应的键是实际索引名，取第一个
+        return (Map<String, Object>) body.values().iterator().next();
+    }
+
+    private void scan(RestHighLevelClient client, LocalMapping scanMapping, List<Document> documents) throws IOException {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+            .query(QueryBuilders.matchAllQuery())
+            .size(2000)
+            .sort("_doc", SortOrder.ASC);
+        ScrollUtils.scan(client, new SearchRequest(index).source(searchSourceBuilder),
+            hit -> documents.add(scanMapping.toDocument(hit.getId(), hit.getSourceAsMap(), hit.getSourceRef())));
+    }
+
+    private static boolean unchanged(IndexSearcher searcher, String id, Document document) throws IOException {
+        TopDocs existing = searcher.search(new TermQuery(new Term(LocalMapping.ID, id)), 1);
+        if (0 == existing.scoreDocs.length) {
+            return false;
+        }
+        BytesRef stored = searcher.doc(existing.scoreDocs[0].doc).getBinaryValue(LocalMapping.SOURCE);
+        return stored.equals(document.getBinaryValue(LocalMapping.SOURCE));
+    }
+
+    private byte[] render(IndexSearcher searcher, Query query, SearchSourceBuilder source, String filterPath,
+                          TopDocs topDocs, int from, boolean scored, long start) throws IOException {
+        Set<String> includes = StringUtils.isEmpty(filterPath)
+            ? Collections.emptySet() : new HashSet<>(Arrays.asList(filterPath.split(",")));
+        FetchSourceContext fetchSource = source.fetchSource();
+        HighlightBuilder highlight = source.highlighter();
+        Query highlightQuery = null == highlight ? null : searcher.rewrite(query);
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+
+        XContentBuilder builder = XContentBuilder.builder(JsonXContent.jsonXContent, includes, Collections.emptySet());
+        builder.startObject();
+        builder.field("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        builder.field("timed_out", false);
+        builder.startObject("_shards").field("total", 1).field("successful", 1).field("skipped", 0).field("failed", 0).endObject();
+        builder.startObject("hits");
+        builder.startObject("total").field("value", topDocs.totalHits.value).field("relation", "eq").endObject();
+        if (scored && scoreDocs.length > 0) {
+            builder.field("max_score", scoreDocs[0].score);
+        } else {
+            builder.nullField("max_score");
+        }
+        builder.startArray("hits");
+        for (int i = from; i < scoreDocs.length; i++) {
+            Document document = searcher.doc(scoreDocs[i].doc);
+            BytesRef sourceBytes = document.getBinaryValue(LocalMapping.SOURCE);
+            builder.startObject();
+            builder.field("_index", index);
+            builder.field("_type", "_doc");
+            builder.field("_id", document.get(LocalMapping.ID));
+            if (scored) {
+                builder.field("_score", scoreDocs[i].score);
+            } else {
+                builder.nullField("_score");
+            }
+
+            Map<String, Object> sourceMap = null;
+            boolean filterSource = null != fetchSource && (fetchSource.includes().length > 0 || fetchSource.excludes().length > 0);
+            if (filterSource || null != highlight) {
+                sourceMap = XContentHelper.convertToMap(JsonXContent.jsonXContent,
+                    new ByteArrayInputStream(sourceBytes.bytes, sourceBytes.offset, sourceBytes.length), false);
+            }
+            if (null == fetchSource || fetchSource.fetchSource()) {
+                if (filterSource) {
+                    builder.field("_source", XContentMapValues.filter(sourceMap, fetchSource.includes(), fetchSource.excludes()));
+                } else {
+                    builder.rawField("_source", new ByteArrayInputStream(sourceBytes.bytes, sourceBytes.offset, sourceBytes.length),
+                        XContentType.JSON);
+                }
+            }
+            if (null != highlight) {
+                writeHighlight(builder, highlight, highlightQuery, sourceMap);
+            }
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        builder.endObject();
+        return BytesReference.toBytes(BytesReference.bytes(builder));
+    }
+
+    private void writeHighlight(XContentBuilder builder, HighlightBuilder highlight, Query query, Map<String, Object> sourceMap)
+        throws IOException {
+        Map<String, List<String>> fragments = new LinkedHashMap<>();
+        for (HighlightBuilder.Field field : highlight.fields()) {
+            String name = field.name();
+            if (LocalMapping.Type.TEXT != mapping.type(name)) {
+                continue;
+            }
+            String[] preTags = firstNonNull(field.preTags(), highlight.preTags(), DEFAULT_PRE_TAGS);
+            String[] postTags = firstNonNull(field.postTags(), highlight.postTags(), DEFAULT_POST_TAGS);
+            int fragmentSize = firstNonNull(field.fragmentSize(), highlight.fragmentSize(), 100);
+            int numberOfFragments = firstNonNull(field.numOfFragments(), highlight.numOfFragments(), 5);
+
+            Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter(preTags[0], postTags[0]), new QueryScorer(query, name));
+            highlighter.setTextFragmenter(0 == numberOfFragments ? new NullFragmenter() : new SimpleFragmenter(fragmentSize));
+            int max = 0 == numberOfFragments ? 1 : numberOfFragments;
+            List<String> found = new ArrayList<>();
+            for (Object value : LocalMapping.values(sourceMap, name)) {
+                if (null == value || found.size() >= max) {
+                    continue;
+                }
+                String text = value.toString();
+                try {
+                    for (String fragment : highlighter.getBestFragments(analyzer, name, text, max - found.size())) {
+                        found.add(fragment);
+                    }
+                } catch (InvalidTokenOffsetsException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (!found.isEmpty()) {
+                fragments.put(name, found);
+            }
+        }
+        if (!fragments.isEmpty()) {
+            builder.field("highlight", fragments);
+        }
+    }
+
+    @SafeVarargs
+    private static <T> T firstNonNull(T... values) {
+        for (T value : values) {
+            if (null != value) {
+                return value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,198 @@
+package com.steven.topsail.demo.quickstart.replica;
+
+import com.steven.topsail.demo.quickstart.cache.CachedSearchResponse;
+import com.steven.topsail.demo.quickstart.feed.ChangeFeed;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 小型参考数据索引的本地副本
+ * <p>
+ * replica.local.indices 中的索引在进程内各保存一份 Lucene 副本，查询（{@code cachedSearch} / {@code cachedSearchAsync}）
+ * 直接在本地执行，不访问集群。副本订阅索引的变更增量更新（时间戳字段由 feed.timestamp-fields 配置），
+ * 按 full-refresh-interval 全量重建以跟上映射变化，保存在 replica.local.path 下，重启后立即可用，
+ * 全量重建推迟到下一个周期（停机期间删除的文档在此之前仍可查到）。副本尚未就绪或查询中有本地不支持的部分时
+ * 返回 null，调用方照常查询 ES。
+ * <p>
+ * 本服务的写入路径在写入成功后调用 {@link #written} / {@link #writtenAll}，副本在补上这些写入之前同样返回 null，
+ * 保证写入返回之后的查询能读到写入的内容。
+ *
+ * @author Steven
+ * @date 2021-02-11
+ */
+@Slf4j
+@Component
+public class LocalReplicaService {
+
+    /**
+     * 逗号分隔，为空时不启用
+     */
+    @Value("${replica.local.indices:}")
+    private String[] indices;
+
+    @Value("${replica.local.path:data/replica}")
+    private String path;
+
+    @Value("${replica.local.full-refresh-interval:3600000}")
+    private long fullRefreshInterval;
+
+    /**
+     * 补写失败后的重试间隔
+     */
+    @Value("${replica.local.catch-up-retry:1000}")
+    private long catchUpRetry;
+
+    /**
+     * 写入到可被搜索到的最长间隔，按条件批量写入后等这么久再全量加载
+     */
+    @Value("${replica.local.visibility-delay:2000}")
+    private long visibilityDelay;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    private final Map<String, LocalReplica> replicas = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (String index : indices) {
+            if (index.trim().isEmpty()) {
+                continue;
+            }
+            LocalReplica replica = new LocalReplica(index.trim(), Paths.get(path, index.trim()));
+            try {
+                replica.open();
+            } catch (Exception e) {
+                log.error("本地副本 {} 打开失败，查询仍走 ES", index, e);
+                continue;
+            }
+            replicas.put(index.trim(), replica);
+            // 磁盘上已有副本时由变更订阅追平，全量重建推迟一个周期
+            long firstFull = replica.isReady() ? fullRefreshInterval : 0;
+            taskScheduler.scheduleWithFixedDelay(() -> safeFullLoad(replica),
+                new Date(System.currentTimeMillis() + firstFull), fullRefreshInterval);
+            changeFeed.register(index.trim(), true, true, replica::apply);
+        }
+        if (!replicas.isEmpty()) {
+            log.info("本地副本: {}，目录: {}", replicas.keySet(), path);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (Map.Entry<String, LocalReplica> entry : replicas.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (Exception e) {
+                log.warn("本地副本 {} 关闭失败", entry.getKey(), e);
+            }
+        }
+    }
+
+    public boolean covers(String index) {
+        LocalReplica replica = replicas.get(index);
+        return null != replica && replica.isReady();
+    }
+
+    /**
+     * 本服务按 id 写入（新增、修改、删除）成功后调用，失败但状态不明的写入同样调用
+     *
+     * @param index 请求中的索引名
+     * @param id
+     */
+    public void written(String index, String id) {
+        LocalReplica replica = replicas.get(index);
+        if (null == replica || null == id) {
+            return;
+        }
+        if (replica.markDirty(id)) {
+            scheduleCatchUp(replica, 0);
+        }
+    }
+
+    /**
+     * 本服务按条件批量写入（delete_by_query、重建索引切换别名）后调用
+     *
+     * @param index 请求中的索引名
+     */
+    public void writtenAll(String index) {
+        LocalReplica replica = replicas.get(index);
+        if (null == replica) {
+            return;
+        }
+        replica.markStale();
+        taskScheduler.schedule(() -> safeFullLoad(replica), new Date(System.currentTimeMillis() + visibilityDelay));
+    }
+
+    /**
+     * 在本地副本上执行查询
+     *
+     * @param index
+     * @param searchSource
+     * @param filterPath
+     * @return 没有副本、副本未就绪或查询不能在本地执行时返回 null
+     */
+    public CachedSearchResponse search(String index, SearchSourceBuilder searchSource, String filterPath) {
+        LocalReplica replica = replicas.get(index);
+        if (null == replica || !replica.isReady()) {
+            return null;
+        }
+        try {
+            byte[] body = replica.search(searchSource, filterPath);
+            return new CachedSearchResponse(200, "application/json; charset=UTF-8", body, 0);
+        } catch (UnsupportedOperationException e) {
+            log.debug("本地副本 {} 不支持该查询，转发 ES: {}", index, e.getMessage());
+            return null;
+        } catch (Exception e) {
+            log.warn("本地副本 {} 查询失败，转发 ES", index, e);
+            return null;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, LocalReplica> entry : replicas.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().stats());
+        }
+        return map;
+    }
+
+    private void safeFullLoad(LocalReplica replica) {
+        try {
+            replica.fullLoad(restHighLevelClient, visibilityDelay);
+        } catch (Exception e) {
+            log.error("本地副本全量加载失败", e);
+        }
+    }
+
+    private void scheduleCatchUp(LocalReplica replica, long delay) {
+        taskScheduler.schedule(() -> {
+            try {
+                replica.catchUp(restHighLevelClient);
+            } catch (Exception e) {
+                log.warn("本地副本补写失败，{} ms 后重试", catchUpRetry, e);
+                if (replica.requestCatchUp()) {
+                    scheduleCatchUp(replica, catchUpRetry);
+                }
+            }
+        }, new Date(System.currentTimeMillis() + delay));
+    }
+}
@@ -0,0 +1,402 @@
+package com.steven.topsail.demo.quickstart.replica;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.IdsQueryBuilder;
+import org.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.elasticsearch.index.query.MatchPhraseQueryBuilder;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.ScoreSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把 ES 的查询构造器翻译成 Lucene 查询，调用方沿用同一套 QueryBuilders / SearchSourceBuilder
+ * <p>
+ * 支持 match_all、match（operator、fuzziness、prefix_length、max_expansions、minimum_should_match 为整数时）、
+ * match_phrase、term、terms、range、bool、constant_score、prefix、wildcard、exists、ids，以及按字段、按得分排序。
+ * 遇到其他查询类型、未映射的字段、分析器无法在本地还原的 text 字段（见 {@link LocalMapping#isAnalyzable}）
+ * 或不支持的参数时抛出 {@link UnsupportedOperationException}，由调用方交回 ES 执行，不会返回与 ES 语义不一致的结果。
+ *
+ * @author Steven
+ * @date 2021-02-11
+ */
+public final class LuceneQueryTranslator {
+
+    private final LocalMapping mapping;
+
+    /**
+     * 与 ES 的 standard 分析器等价，只用于 {@link LocalMapping#isAnalyzable} 的字段
+     */
+    private final Analyzer analyzer;
+
+    public LuceneQueryTranslator(LocalMapping mapping, Analyzer analyzer) {
+        this.mapping = mapping;
+        this.analyzer = analyzer;
+    }
+
+    public Query toQuery(QueryBuilder builder) {
+        if (null == builder) {
+            return new MatchAllDocsQuery();
+        }
+        Query query = translate(builder);
+        float boost = builder.boost();
+        return 1.0f == boost ? query : new BoostQuery(query, boost);
+    }
+
+    /**
+     * @param sorts SearchSourceBuilder.sorts()，为空时按得分排序
+     * @return 按得分排序时返回 null
+     */
+    public Sort toSort(List<SortBuilder<?>> sorts) {
+        if (null == sorts || sorts.isEmpty()) {
+            return null;
+        }
+        List<SortField> fields = new ArrayList<>(sorts.size());
+        for (SortBuilder<?> sort : sorts) {
+            boolean reverse = SortOrder.DESC == sort.order();
+            if (sort instanceof ScoreSortBuilder) {
+                // 得分默认降序，与 ES 一致
+                fields.add(new SortField(null, SortField.Type.SCORE, !reverse));
+            } else if (sort instanceof FieldSortBuilder) {
+                fields.add(sortField(((FieldSortBuilder) sort).getFieldName(), reverse));
+            } else {
+                throw new UnsupportedOperationException("不支持的排序: " + sort.getWriteableName());
+            }
+        }
+        if (1 == fields.size() && SortField.Type.SCORE == fields.get(0).getType() && !fields.get(0).getReverse()) {
+            return null;
+        }
+        return new Sort(fields.toArray(new SortField[0]));
+    }
+
+    private Query translate(QueryBuilder builder) {
+        if (builder instanceof MatchAllQueryBuilder) {
+            return new MatchAllDocsQuery();
+        }
+        if (builder instanceof MatchQueryBuilder) {
+            return match((MatchQueryBuilder) builder);
+        }
+        if (builder instanceof MatchPhraseQueryBuilder) {
+            MatchPhraseQueryBuilder phrase = (MatchPhraseQueryBuilder) builder;
+            return phrase(phrase.fieldName(), phrase.value(), phrase.slop());
+        }
+        if (builder instanceof TermQueryBuilder) {
+            TermQueryBuilder term = (TermQueryBuilder) builder;
+            return term(term.fieldName(), term.value());
+        }
+        if (builder instanceof TermsQueryBuilder) {
+            return terms((TermsQueryBuilder) builder);
+        }
+        if (builder instanceof RangeQueryBuilder) {
+            return range((RangeQueryBuilder) builder);
+        }
+        if (builder instanceof BoolQueryBuilder) {
+            return bool((BoolQueryBuilder) builder);
+        }
+        if (builder instanceof ConstantScoreQueryBuilder) {
+            return new ConstantScoreQuery(toQuery(((ConstantScoreQueryBuilder) builder).innerQuery()));
+        }
+        if (builder instanceof PrefixQueryBuilder) {
+            PrefixQueryBuilder prefix = (PrefixQueryBuilder) builder;
+            requireStringField(prefix.fieldName());
+            return new PrefixQuery(new Term(prefix.fieldName(), prefix.value()));
+        }
+        if (builder instanceof WildcardQueryBuilder) {
+            WildcardQueryBuilder wildcard = (WildcardQueryBuilder) builder;
+            requireStringField(wildcard.fieldName());
+            return new WildcardQuery(new Term(wildcard.fieldName(), wildcard.value()));
+        }
+        if (builder instanceof ExistsQueryBuilder) {
+            String field = ((ExistsQueryBuilder) builder).fieldName();
+            requireMapped(field);
+            return new ConstantScoreQuery(new TermQuery(new Term(LocalMapping.FIELD_NAMES, field)));
+        }
+        if (builder instanceof IdsQueryBuilder) {
+            List<BytesRef> ids = new ArrayList<>();
+            for (String id : ((IdsQueryBuilder) builder).ids()) {
+                ids.add(new BytesRef(id));
+            }
+            return new ConstantScoreQuery(new TermInSetQuery(LocalMapping.ID, ids));
+        }
+        throw new UnsupportedOperationException("不支持的查询: " + builder.getWriteableName());
+    }
+
+    private Query match(MatchQueryBuilder match) {
+        String field = match.fieldName();
+        LocalMapping.Type type = requireMapped(field);
+        if (LocalMapping.Type.TEXT != type) {
+            return term(field, match.value());
+        }
+        if (null != match.analyzer()) {
+            throw new UnsupportedOperationException("不支持指定 analyzer");
+        }
+        List<String> tokens = analyze(field, match.value().toString());
+        if (tokens.isEmpty()) {
+            return new MatchNoDocsQuery();
+        }
+        BooleanClause.Occur occur = Operator.AND == match.operator() ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD;
+        BooleanQuery.Builder bool = new BooleanQuery.Builder();
+        for (String token : tokens) {
+            Query termQuery;
+            int edits = null == match.fuzziness() ? 0 : match.fuzziness().asDistance(token);
+            if (edits > 0) {
+                termQuery = new FuzzyQuery(new Term(field, token), Math.min(edits, 2), match.prefixLength(),
+                    match.maxExpansions(), match.fuzzyTranspositions());
+            } else {
+                termQuery = new TermQuery(new Term(field, token));
+            }
+            bool.add(termQuery, occur);
+        }
+        if (BooleanClause.Occur.SHOULD == occur && null != match.minimumShouldMatch()) {
+            try {
+                bool.setMinimumNumberShouldMatch(Integer.parseInt(match.minimumShouldMatch().trim()));
+            } catch (NumberFormatException e) {
+                throw new UnsupportedOperationException("不支持的 minimum_should_match: " + match.minimumShouldMatch());
+            }
+        }
+        return bool.build();
+    }
+
+    private Query phrase(String field, Object value, int slop) {
+        if (LocalMapping.Type.TEXT != requireMapped(field)) {
+            return term(field, value);
+        }
+        PhraseQuery.Builder phrase = new PhraseQuery.Builder().setSlop(slop);
+        int position = -1;
+        try (TokenStream stream = analyzer.tokenStream(field, value.toString())) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute increment = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                position += increment.getPositionIncrement();
+                phrase.add(new Term(field, term.toString()), position);
+            }
+            stream.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return position < 0 ? new MatchNoDocsQuery() : phrase.build();
+    }
+
+    private Query term(String field, Object value) {
+        LocalMapping.Type type = requireMapped(field);
+        switch (type) {
+            case LONG:
+                return LongPoint.newExactQuery(field, toLong(value));
+            case DOUBLE:
+                return DoublePoint.newExactQuery(field, toDouble(value));
+            case DATE:
+                long lower = mapping.parseDate(field, value, false);
+                long upper = mapping.parseDate(field, value, true);
+                return LongPoint.newRangeQuery(field, lower, upper);
+            default:
+                return new TermQuery(new Term(field, value.toString()));
+        }
+    }
+
+    private Query terms(TermsQueryBuilder terms) {
+        String field = terms.fieldName();
+        LocalMapping.Type type = requireMapped(field);
+        if (null == terms.values()) {
+            throw new UnsupportedOperationException("不支持 terms lookup");
+        }
+        if (LocalMapping.Type.TEXT == type || LocalMapping.Type.KEYWORD == type || LocalMapping.Type.BOOLEAN == type) {
+            List<BytesRef> values = new ArrayList<>();
+            for (Object value : terms.values()) {
+                values.add(new BytesRef(value.toString()));
+            }
+            return new ConstantScoreQuery(new TermInSetQuery(field, values));
+        }
+        BooleanQuery.Builder bool = new BooleanQuery.Builder();
+        for (Object value : terms.values()) {
+            bool.add(term(field, value), BooleanClause.Occur.SHOULD);
+        }
+        return new ConstantScoreQuery(bool.build());
+    }
+
+    private Query range(RangeQueryBuilder range) {
+        String field = range.fieldName();
+        LocalMapping.Type type = requireMapped(field);
+        if (null != range.format() || null != range.timeZone() || null != range.relation()) {
+            throw new UnsupportedOperationException("不支持 range 的 format / time_zone / relation");
+        }
+        Object from = range.from();
+        Object to = range.to();
+        switch (type) {
+            case LONG:
+            case DATE: {
+                long lower = Long.MIN_VALUE;
+                long upper = Long.MAX_VALUE;
+                if (null != from) {
+                    lower = LocalMapping.Type.DATE == type ? mapping.parseDate(field, from, !range.includeLower()) : toLong(from);
+                    if (!range.includeLower()) {
+                        lower = lower == Long.MAX_VALUE ? lower : lower + 1;
+                    }
+                }
+                if (null != to) {
+                    upper = LocalMapping.Type.DATE == type ? mapping.parseDate(field, to, range.includeUpper()) : toLong(to);
+                    if (!range.includeUpper()) {
+                        upper = upper == Long.MIN_VALUE ? upper : upper - 1;
+                    }
+                }
+                return new ConstantScoreQuery(LongPoint.newRangeQuery(field, lower, upper));
+            }
+            case DOUBLE: {
+                double lower = null == from ? Double.NEGATIVE_INFINITY : toDouble(from);
+                double upper = null == to ? Double.POSITIVE_INFINITY : toDouble(to);
+                if (null != from && !range.includeLower()) {
+                    lower = Math.nextUp(lower);
+                }
+                if (null != to && !range.includeUpper()) {
+                    upper = Math.nextDown(upper);
+                }
+                return new ConstantScoreQuery(DoublePoint.newRangeQuery(field, lower, upper));
+            }
+            case KEYWORD:
+                return new ConstantScoreQuery(TermRangeQuery.newStringRange(field,
+                    null == from ? null : from.toString(), null == to ? null : to.toString(),
+                    range.includeLower(), range.includeUpper()));
+            default:
+                throw new UnsupportedOperationException("不支持对 " + type + " 字段做范围查询: " + field);
+        }
+    }
+
+    private Query bool(BoolQueryBuilder bool) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (QueryBuilder clause : bool.must()) {
+            builder.add(toQuery(clause), BooleanClause.Occur.MUST);
+        }
+        for (QueryBuilder clause : bool.filter()) {
+            builder.add(toQuery(clause), BooleanClause.Occur.FILTER);
+        }
+        for (QueryBuilder clause : bool.should()) {
+            builder.add(toQuery(clause), BooleanClause.Occur.SHOULD);
+        }
+        for (QueryBuilder clause : bool.mustNot()) {
+            builder.add(toQuery(clause), BooleanClause.Occur.MUST_NOT);
+        }
+        String minimumShouldMatch = bool.minimumShouldMatch();
+        if (null != minimumShouldMatch) {
+            try {
+                builder.setMinimumNumberShouldMatch(Integer.parseInt(minimumShouldMatch.trim()));
+            } catch (NumberFormatException e) {
+                throw new UnsupportedOperationException("不支持的 minimum_should_match: " + minimumShouldMatch);
+            }
+        } else if (!bool.should().isEmpty() && bool.must().isEmpty() && bool.filter().isEmpty()) {
+            // 与 ES 一致：只有 should 时至少匹配一个
+            builder.setMinimumNumberShouldMatch(1);
+        }
+        if (bool.must().isEmpty() && bool.should().isEmpty() && bool.filter().isEmpty()) {
+            builder.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        }
+        return builder.build();
+    }
+
+    private SortField sortField(String field, boolean reverse) {
+        if ("_score".equals(field)) {
+            return new SortField(null, SortField.Type.SCORE, !reverse);
+        }
+        LocalMapping.Type type = requireMapped(field);
+        SortField sortField;
+        switch (type) {
+            case LONG:
+            case DATE:
+                sortField = new SortedNumericSortField(field, SortField.Type.LONG, reverse);
+                // 与 ES 一致，缺失值总在最后
+                sortField.setMissingValue(reverse ? Long.MIN_VALUE : Long.MAX_VALUE);
+                return sortField;
+            case DOUBLE:
+                sortField = new SortedNumericSortField(field, SortField.Type.DOUBLE, reverse);
+                sortField.setMissingValue(reverse ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+                return sortField;
+            case KEYWORD:
+                sortField = new SortedSetSortField(field, reverse);
+                sortField.setMissingValue(reverse ? SortField.STRING_FIRST : SortField.STRING_LAST);
+                return sortField;
+            default:
+                throw new UnsupportedOperationException("不支持按 " + type + " 字段排序: " + field);
+        }
+    }
+
+    private List<String> analyze(String field, String text) {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return tokens;
+    }
+
+    private LocalMapping.Type requireMapped(String field) {
+        LocalMapping.Type type = mapping.type(field);
+        if (null == type) {
+            throw new UnsupportedOperationException("字段未映射或类型不支持: " + field);
+        }
+        if (LocalMapping.Type.TEXT == type && !mapping.isAnalyzable(field)) {
+            throw new UnsupportedOperationException("字段的分析器无法在本地还原: " + field + "（" + mapping.analyzer(field) + "）");
+        }
+        return type;
+    }
+
+    private void requireStringField(String field) {
+        LocalMapping.Type type = requireMapped(field);
+        if (LocalMapping.Type.TEXT != type && LocalMapping.Type.KEYWORD != type) {
+            throw new UnsupportedOperationException("只支持对 text / keyword 字段做前缀、通配符查询: " + field);
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+    }
+
+    private static double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString().trim());
+    }
+}
@@ -0,0 +1,38 @@
+package com.steven.topsail.demo.quickstart.service;
+
+import com.steven.topsail.demo.quickstart.model.DeleteProgress;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * 批量删除服务
+ *
+ * @author Steven
+ * @date 2021-01-26
+ */
+public interface IBulkDeleteService {
+
+    /**
+     * 异步删除索引中所有匹配查询的文档
+     *
+     * @param index 索引名
+     * @param query 查询条件
+     * @return 删除进度，可通过 {@link DeleteProgress#getCompletion()} 等待完成
+     */
+    DeleteProgress submit(String index, QueryBuilder query);
+
+    /**
+     * 查询删除进度
+     *
+     * @param taskId
+     * @return 任务不存在或已过期时返回 null
+     */
+    DeleteProgress progress(String taskId);
+
+    /**
+     * 取消删除任务，已提交的 bulk 仍会执行完
+     *
+     * @param taskId
+     * @return
+     */
+    boolean cancel(String taskId);
+}
@@ -0,0 +1,46 @@
+package com.steven.topsail.demo.quickstart.service;
+
+import com.steven.topsail.demo.quickstart.model.BulkIngestStats;
+import org.elasticsearch.action.DocWriteRequest;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 批量写入服务
+ *
+ * @author Steven
+ * @date 2021-01-22
+ */
+public interface IBulkIngestService {
+
+    /**
+     * 提交一条写请求，排队数据超过上限时阻塞调用方
+     *
+     * @param request
+     * @throws InterruptedException
+     */
+    void add(DocWriteRequest<?> request) throws InterruptedException;
+
+    /**
+     * 等待已提交的请求全部处理完毕
+     *
+     * @param timeoutMillis 最长等待时间
+     * @return 是否在超时前全部完成
+     * @throws InterruptedException
+     */
+    boolean flush(long timeoutMillis) throws InterruptedException;
+
+    /**
+     * 已提交的请求全部处理完毕时完成，不阻塞调用方
+     *
+     * @return
+     */
+    CompletableFuture<Void> flushAsync();
+
+    /**
+     * 写入统计
+     *
+     * @return
+     */
+    BulkIngestStats stats();
+}
@@ -0,0 +1,39 @@
+package com.steven.topsail.demo.quickstart.service;
+
+import com.steven.topsail.demo.quickstart.model.ExportResult;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 索引导出服务
+ *
+ * @author Steven
+ * @date 2021-01-23
+ */
+public interface IExportService {
+
+    /**
+     * 以 sliced scroll 并行读取整个索引，按 NDJSON 格式写入本地文件
+     *
+     * @param index    索引名
+     * @param file     输出文件名，相对于 export.dir，不能是绝对路径或跳出该目录
+     * @param slices   切片数，不超过 export.threads
+     * @param pageSize 每页文档数
+     * @return
+     * @throws IllegalArgumentException 文件名或切片数、页大小不合法
+     * @throws IOException
+     */
+    ExportResult export(String index, String file, int slices, int pageSize) throws IOException;
+
+    /**
+     * 在 jobExecutor 中执行导出，不阻塞调用方
+     *
+     * @param index
+     * @param file
+     * @param slices
+     * @param pageSize
+     * @return
+     */
+    CompletableFuture<ExportResult> exportAsync(String index, String file, int slices, int pageSize);
+}
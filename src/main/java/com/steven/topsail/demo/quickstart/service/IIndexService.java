@@ -3,6 +3,7 @@ package com.steven.topsail.demo.quickstart.service;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Steven
@@ -17,6 +18,22 @@ public interface IIndexService {
      */
     void createIndex(String index) throws IOException;
 
+    /**
+     * 异步创建索引，已存在时不创建
+     *
+     * @param index
+     * @return 是否新建了索引
+     */
+    CompletableFuture<Boolean> createIndexAsync(String index);
+
+    /**
+     * 按代码中当前的设置和映射生成建索引请求，修改映射后通过重建索引生效
+     *
+     * @param index
+     * @return
+     */
+    CreateIndexRequest createIndexRequest(String index);
+
     /**
      * 判断索引是否存在
      *
@@ -33,4 +50,56 @@ public interface IIndexService {
      * @throws IOException
      */
     void deleteIndex(String index) throws IOException;
+
+    /**
+     * 异步删除索引
+     *
+     * @param index
+     * @return 是否删除了索引
+     */
+    CompletableFuture<Boolean> deleteIndexAsync(String index);
+
+    /**
+     * 创建按时间分桶的滚动索引：写入模板（匹配 alias-*，自动挂读别名 alias），
+     * 以 alias-yyyy.MM.dd.HH-000001 创建第一个分桶并挂上写别名，之后由后台任务按大小、文档数、时长滚动
+     *
+     * @param alias 读别名，查询通过它覆盖全部分桶
+     * @return 第一个分桶的索引名，写别名已存在时返回当前写入的分桶
+     * @throws IOException
+     */
+    String createRollingIndex(String alias) throws IOException;
+
+    /**
+     * 写别名，只指向当前写入的分桶
+     *
+     * @param alias
+     * @return
+     */
+    String writeAlias(String alias);
+
+    /**
+     * 满足任一滚动条件时切换到新分桶，旧分桶在没有批量导入时随即合并段
+     *
+     * @param alias
+     * @param force 忽略滚动条件
+     * @return 新分桶的索引名，未滚动时返回 null
+     * @throws IOException
+     */
+    String rollover(String alias, boolean force) throws IOException;
+
+    /**
+     * 进入批量导入模式：当前分桶（及导入期间滚动出的新分桶）关闭刷新、副本数置 0、translog 异步落盘
+     *
+     * @param alias
+     * @throws IOException
+     */
+    void beginBulkLoad(String alias) throws IOException;
+
+    /**
+     * 退出批量导入模式：恢复刷新、副本和 translog 设置并刷新一次，已不再写入的分桶合并段
+     *
+     * @param alias
+     * @throws IOException
+     */
+    void endBulkLoad(String alias) throws IOException;
 }
@@ -0,0 +1,37 @@
+package com.steven.topsail.demo.quickstart.service;
+
+import com.steven.topsail.demo.quickstart.model.WorkloadReport;
+import com.steven.topsail.demo.quickstart.model.WorkloadSpec;
+
+/**
+ * 压测：按固定速率发出混合读写请求，统计消除协调遗漏后的延迟分布
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+public interface ILoadTestService {
+
+    /**
+     * 提交压测，同一时间只允许一个压测运行
+     *
+     * @param spec 负载定义，target 为空时压测应用配置的 ES 集群
+     * @return 任务 id
+     */
+    String submit(WorkloadSpec spec);
+
+    /**
+     * 查询结果，运行中时返回截至当前的统计
+     *
+     * @param taskId
+     * @return 任务不存在或已过期时返回 null
+     */
+    WorkloadReport report(String taskId);
+
+    /**
+     * 停止发送新请求，已发出的请求完成后生成结果
+     *
+     * @param taskId
+     * @return
+     */
+    boolean cancel(String taskId);
+}
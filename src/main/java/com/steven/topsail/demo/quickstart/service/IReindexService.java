@@ -0,0 +1,44 @@
+package com.steven.topsail.demo.quickstart.service;
+
+import com.steven.topsail.demo.quickstart.model.ReindexProgress;
+
+/**
+ * 不停机重建索引
+ *
+ * @author Steven
+ * @date 2021-02-06
+ */
+public interface IReindexService {
+
+    /**
+     * 按代码中当前的映射创建新版本索引，复制数据、追平增量后原子切换读别名并删除旧索引
+     *
+     * @param alias 对外使用的索引名，首次执行时可以是实际的索引，切换后变为别名
+     * @return 重建进度，可通过 {@link ReindexProgress#getCompletion()} 等待完成
+     */
+    ReindexProgress submit(String alias);
+
+    /**
+     * 查询重建进度
+     *
+     * @param taskId
+     * @return 任务不存在或已过期时返回 null
+     */
+    ReindexProgress progress(String taskId);
+
+    /**
+     * 取消重建，切换别名之前均可取消，新索引会被删除，旧索引不受影响
+     *
+     * @param taskId
+     * @return
+     */
+    boolean cancel(String taskId);
+
+    /**
+     * 索引当前是否处于重建最后阶段的禁写窗口，写入会被 ES 以 403 拒绝，窗口结束后重试即可
+     *
+     * @param index 别名或旧索引名
+     * @return
+     */
+    boolean isWriteBlocked(String index);
+}
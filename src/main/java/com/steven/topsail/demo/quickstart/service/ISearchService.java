@@ -1,6 +1,10 @@
 package com.steven.topsail.demo.quickstart.service;
 
+import com.steven.topsail.demo.quickstart.model.BulkIngestStats;
+
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Steven
@@ -19,17 +23,38 @@ public interface ISearchService {
     void update() throws IOException;
 
     /**
-     * 创建模拟数据
+     * 局部更新文档
+     *
+     * @param indexName
+     * @param id
+     * @param fields 要修改的字段
+     * @return 更新被 ES 确认时完成
+     */
+    CompletableFuture<Void> partialUpdate(String indexName, String id, Map<String, Object> fields);
+
+    /**
+     * 创建模拟数据，只用于准备数据；容量评估使用压测（/loadtest/run 或 LoadGenerator）
      *
-     * @throws Exception
+     * @return 写入成功的文档数
      */
-    void createDemoData() throws Exception;
+    CompletableFuture<Integer> createDemoData();
 
     void multiGet() throws IOException;
 
-    void createDemoDataBulk() throws Exception;
+    /**
+     * 通过批量写入服务创建模拟数据
+     *
+     * @return 写入统计
+     */
+    CompletableFuture<BulkIngestStats> createDemoDataBulk();
 
-    void deleteRecord(String indexName) throws IOException;
+    /**
+     * 按查询删除索引中的历史数据
+     *
+     * @param indexName
+     * @return 删除的文档数
+     */
+    CompletableFuture<Long> deleteRecord(String indexName);
 
     void search() throws IOException;
 }
@@ -0,0 +1,280 @@
+package com.steven.topsail.demo.quickstart.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.steven.topsail.demo.quickstart.cache.DocumentCache;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
+import com.steven.topsail.demo.quickstart.model.DeleteProgress;
+import com.steven.topsail.demo.quickstart.replica.LocalReplicaService;
+import com.steven.topsail.demo.quickstart.service.IBulkDeleteService;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量删除服务
+ * <p>
+ * 用 scroll 按 _doc 顺序遍历全部命中文档：scroll 固定了开始时的快照，删除不会打乱后续分页，
+ * 也不需要按 _id 排序（_id 没有 doc values，排序要把全部 id 加载进 fielddata）。
+ * 每页组装成一个 bulk delete，最多 concurrent-requests 个 bulk 同时在途；任务结束前等待在途 bulk 完成，计数才是最终值。
+ *
+ * @author Steven
+ * @date 2021-01-26
+ */
+@Slf4j
+@Service
+public class BulkDeleteServiceImpl implements IBulkDeleteService {
+
+    @Value("${bulk.delete.page-size:1000}")
+    private int pageSize;
+
+    @Value("${bulk.delete.concurrent-requests:4}")
+    private int concurrentRequests;
+
+    @Value("${bulk.delete.scroll-keep-alive:5m}")
+    private String scrollKeepAlive;
+
+    /**
+     * 失败或取消后等待在途 bulk 完成的最长时间
+     */
+    @Value("${bulk.delete.drain-timeout:60000}")
+    private long drainTimeout;
+
+    /**
+     * 同时执行的删除任务数，每个任务最多 concurrent-requests 个 bulk 在途
+     */
+    @Value("${bulk.delete.threads:2}")
+    private int threads;
+
+    /**
+     * 等待执行的删除任务数上限，超出时提交返回 503
+     */
+    @Value("${bulk.delete.queue-capacity:8}")
+    private int queueCapacity;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    @Autowired
+    private LocalReplicaService localReplicaService;
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    /**
+     * 删除任务，完成后保留一小时供查询
+     */
+    private final Cache<String, DeleteProgress> tasks = Caffeine.newBuilder()
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .build();
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> new Thread(r, "BulkDelete-" + threadNumber.incrementAndGet()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public DeleteProgress submit(String index, QueryBuilder query) {
+        DeleteProgress progress = new DeleteProgress(UUID.randomUUID().toString(), index);
+        tasks.put(progress.getTaskId(), progress);
+        try {
+            executor.execute(() -> run(progress, query));
+        } catch (RejectedExecutionException e) {
+            tasks.invalidate(progress.getTaskId());
+            throw new RejectedExecutionException("删除任务已满，执行中 " + threads + " 个、排队 " + queueCapacity + " 个，请稍后重试");
+        }
+        return progress;
+    }
+
+    @Override
+    public DeleteProgress progress(String taskId) {
+        return tasks.getIfPresent(taskId);
+    }
+
+    @Override
+    public boolean cancel(String taskId) {
+        DeleteProgress progress = tasks.getIfPresent(taskId);
+        if (null == progress || progress.getStatus() != DeleteProgress.Status.RUNNING) {
+            return false;
+        }
+        progress.cancel();
+        return true;
+    }
+
+    private void run(DeleteProgress progress, QueryBuilder query) {
+        Semaphore inFlight = new Semaphore(concurrentRequests);
+        DeleteProgress.Status status = DeleteProgress.Status.DONE;
+        String error = null;
+        boolean drained = false;
+        TimeValue keepAlive = TimeValue.parseTimeValue(scrollKeepAlive, "bulk.delete.scroll-keep-alive");
+        String scrollId = null;
+        try {
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .query(query)
+                .size(pageSize)
+                .fetchSource(false)
+                .sort("_doc", SortOrder.ASC);
+            SearchRequest searchRequest = new SearchRequest(progress.getIndex()).source(searchSourceBuilder).scroll(keepAlive);
+            SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+            scrollId = searchResponse.getScrollId();
+            SearchHit[] hits = searchResponse.getHits().getHits();
+            while (hits.length > 0) {
+                BulkRequest bulkRequest = new BulkRequest();
+                for (SearchHit hit : hits) {
+                    bulkRequest.add(new DeleteRequest(hit.getIndex(), hit.getId()));
+                }
+                progress.getMatched().addAndGet(hits.length);
+
+                inFlight.acquire();
+                sendBulk(bulkRequest, progress, inFlight);
+
+                if (progress.isCancelRequested()) {
+                    status = DeleteProgress.Status.CANCELLED;
+                    break;
+                }
+                searchResponse = restHighLevelClient.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), RequestOptions.DEFAULT);
+                scrollId = searchResponse.getScrollId();
+                hits = searchResponse.getHits().getHits();
+            }
+
+            inFlight.acquire(concurrentRequests);
+            drained = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = DeleteProgress.Status.CANCELLED;
+        } catch (Exception e) {
+            log.error("批量删除失败，index: {}", progress.getIndex(), e);
+            status = DeleteProgress.Status.FAILED;
+            error = e.getMessage();
+        } finally {
+            clearScroll(scrollId);
+        }
+
+        if (!drained && !awaitInFlight(inFlight)) {
+            log.warn("批量删除结束时仍有 bulk 在途，计数可能不完整，index: {}", progress.getIndex());
+        }
+        progress.finish(status, error);
+        log.info("批量删除结束，index: {}，状态: {}，命中: {}，删除: {}，不存在: {}，失败: {}，耗时: {} ms",
+            progress.getIndex(), status, progress.getMatched(), progress.getDeleted(), progress.getMissing(),
+            progress.getFailed(), progress.getEndTime() - progress.getStartTime());
+    }
+
+    /**
+     * 失败或取消后等待在途 bulk 完成，最多等 drainTimeout；等待期间的中断推迟到返回后恢复
+     *
+     * @param inFlight
+     * @return 全部完成时返回 true
+     */
+    private boolean awaitInFlight(Semaphore inFlight) {
+        boolean interrupted = Thread.interrupted();
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    return inFlight.tryAcquire(concurrentRequests, remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void clearScroll(String scrollId) {
+        if (null == scrollId) {
+            return;
+        }
+        try {
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            restHighLevelClient.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+        } catch (Exception e) {
+            log.warn("清除 scroll 失败", e);
+        }
+    }
+
+    private void sendBulk(BulkRequest bulkRequest, DeleteProgress progress, Semaphore inFlight) {
+        int size = bulkRequest.numberOfActions();
+        restHighLevelClient.bulkAsync(bulkRequest, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse bulkResponse) {
+                try {
+                    for (BulkItemResponse item : bulkResponse.getItems()) {
+                        if (item.isFailed()) {
+                            log.warn("删除失败，index: {}，id: {}，原因: {}", item.getIndex(), item.getId(), item.getFailureMessage());
+                            progress.getFailed().incrementAndGet();
+                            continue;
+                        }
+                        if (DocWriteResponse.Result.NOT_FOUND == item.getResponse().getResult()) {
+                            progress.getMissing().incrementAndGet();
+                        } else {
+                            progress.getDeleted().incrementAndGet();
+                        }
+                        // 按任务的索引名（可能是别名）剔除，与读路径的缓存键一致
+                        documentCache.evict(progress.getIndex(), item.getId(), item.getVersion());
+                        localReplicaService.written(progress.getIndex(), item.getId());
+                    }
+                    searchResultCache.invalidate(progress.getIndex());
+                } finally {
+                    inFlight.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                log.warn("bulk 删除请求失败，{} 个文档", size, e);
+                progress.getFailed().addAndGet(size);
+                inFlight.release();
+            }
+        });
+    }
+}
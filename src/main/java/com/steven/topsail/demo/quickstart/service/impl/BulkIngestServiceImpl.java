@@ -0,0 +1,482 @@
+package com.steven.topsail.demo.quickstart.service.impl;
+
+import com.steven.topsail.demo.quickstart.batch.AdaptiveBulkController;
+import com.steven.topsail.demo.quickstart.bloom.IdBloomFilter;
+import com.steven.topsail.demo.quickstart.cache.DocumentCache;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
+import com.steven.topsail.demo.quickstart.model.BulkIngestStats;
+import com.steven.topsail.demo.quickstart.replica.LocalReplicaService;
+import com.steven.topsail.demo.quickstart.service.IBulkIngestService;
+import com.steven.topsail.demo.quickstart.service.IReindexService;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 批量写入服务
+ * <p>
+ * 按文档数、字节数、时间三个条件触发 bulk，多个 bulk 并行在途；
+ * 被集群拒绝（429）的条目按指数退避重新入队，排队数据超过上限时阻塞生产者。
+ * <p>
+ * 批大小（文档数、字节数）和并发数不是固定值，由 {@link AdaptiveBulkController} 根据每个 bulk 的
+ * 往返耗时、被拒绝的条目数和请求失败按 AIMD 在配置的上下界之间调整；actions、bytes、concurrent-requests 是初始值。
+ *
+ * @author Steven
+ * @date 2021-01-22
+ */
+@Slf4j
+@Service
+public class BulkIngestServiceImpl implements IBulkIngestService {
+
+    /**
+     * 单条请求在 bulk 报文中的额外开销（action 行）
+     */
+    private static final int REQUEST_OVERHEAD = 50;
+
+    private static final int MAX_RECENT_FAILURES = 100;
+
+    @Value("${bulk.ingest.actions:5000}")
+    private int bulkActions;
+
+    @Value("${bulk.ingest.bytes:5242880}")
+    private long bulkBytes;
+
+    @Value("${bulk.ingest.flush-interval:1000}")
+    private long flushInterval;
+
+    @Value("${bulk.ingest.concurrent-requests:4}")
+    private int concurrentRequests;
+
+    @Value("${bulk.ingest.min-actions:100}")
+    private int minActions;
+
+    @Value("${bulk.ingest.max-actions:10000}")
+    private int maxActions;
+
+    @Value("${bulk.ingest.min-bytes:524288}")
+    private long minBytes;
+
+    @Value("${bulk.ingest.max-bytes:15728640}")
+    private long maxBytes;
+
+    @Value("${bulk.ingest.min-concurrent-requests:1}")
+    private int minConcurrentRequests;
+
+    @Value("${bulk.ingest.max-concurrent-requests:8}")
+    private int maxConcurrentRequests;
+
+    /**
+     * bulk 往返耗时超过该值时减小批大小
+     */
+    @Value("${bulk.ingest.target-latency:1000}")
+    private long targetLatency;
+
+    @Value("${bulk.ingest.queue-bytes:52428800}")
+    private int queueBytes;
+
+    @Value("${bulk.ingest.max-retries:5}")
+    private int maxRetries;
+
+    @Value("${bulk.ingest.backoff:100}")
+    private long initialBackoff;
+
+    /**
+     * 重建索引禁写窗口内被拒绝（403）的条目重新入队的间隔，不计入重试次数
+     */
+    @Value("${bulk.ingest.blocked-retry:500}")
+    private long blockedRetry;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    @Autowired
+    private LocalReplicaService localReplicaService;
+
+    @Autowired
+    private IReindexService reindexService;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedDeque<String> recentFailures = new ConcurrentLinkedDeque<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder bulks = new LongAdder();
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * 等待 pending 归零的 flushAsync 调用，在 pending 的锁内增删
+     */
+    private final List<CompletableFuture<Void>> flushWaiters = new ArrayList<>();
+
+    private Semaphore queuedBytes;
+    private AdaptiveBulkController controller;
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    private long startNanos;
+    private long lastStatsNanos;
+    private long lastSucceeded;
+
+    @PostConstruct
+    public void start() {
+        queuedBytes = new Semaphore(queueBytes);
+        controller = new AdaptiveBulkController(minActions, maxActions, bulkActions, minBytes, maxBytes, bulkBytes,
+            minConcurrentRequests, maxConcurrentRequests, concurrentRequests, targetLatency);
+        startNanos = lastStatsNanos = System.nanoTime();
+        running = true;
+        dispatcher = new Thread(this::dispatch, "BulkIngest-Dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        log.info("批量写入服务启动，actions: {} ({}~{})，bytes: {} ({}~{})，flushInterval: {} ms，concurrentRequests: {} ({}~{})",
+            bulkActions, minActions, maxActions, bulkBytes, minBytes, maxBytes, flushInterval,
+            concurrentRequests, minConcurrentRequests, maxConcurrentRequests);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flush(TimeUnit.SECONDS.toMillis(30));
+        running = false;
+        dispatcher.interrupt();
+    }
+
+    @Override
+    public void add(DocWriteRequest<?> request) throws InterruptedException {
+        int bytes = estimateSize(request);
+        queuedBytes.acquire(bytes);
+        pending.incrementAndGet();
+        submitted.increment();
+        queue.add(new Pending(request, bytes));
+    }
+
+    @Override
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                pending.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (pending) {
+            if (pending.get() > 0) {
+                flushWaiters.add(future);
+                return future;
+            }
+        }
+        future.complete(null);
+        return future;
+    }
+
+    @Override
+    public synchronized BulkIngestStats stats() {
+        long now = System.nanoTime();
+        long ok = succeeded.sum();
+
+        BulkIngestStats stats = new BulkIngestStats();
+        stats.setSubmitted(submitted.sum());
+        stats.setSucceeded(ok);
+        stats.setFailed(failed.sum());
+        stats.setRetried(retried.sum());
+        stats.setBulks(bulks.sum());
+        stats.setPending(pending.get());
+        stats.setInFlightBulks(controller.inFlight());
+        stats.setQueuedBytes(queueBytes - queuedBytes.availablePermits());
+        stats.setDocsPerSecond(rate(ok, now - startNanos));
+        stats.setRecentDocsPerSecond(rate(ok - lastSucceeded, now - lastStatsNanos));
+        stats.setRecentFailures(new ArrayList<>(recentFailures));
+        stats.setController(controller.snapshot());
+
+        lastStatsNanos = now;
+        lastSucceeded = ok;
+        return stats;
+    }
+
+    /**
+     * 从队列中攒批并发送，直到达到控制器给出的文档数、字节数，或距首条到达超过 flushInterval
+     */
+    private void dispatch() {
+        while (running) {
+            try {
+                Pending first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (null == first) {
+                    continue;
+                }
+
+                int maxBatchActions = controller.batchActions();
+                long maxBatchBytes = controller.batchBytes();
+                List<Pending> batch = new ArrayList<>(Math.min(maxBatchActions, 1024));
+                batch.add(first);
+                long batchBytes = first.bytes;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < maxBatchActions && batchBytes < maxBatchBytes) {
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (null == next) {
+                        break;
+                    }
+                    batch.add(next);
+                    batchBytes += next.bytes;
+                }
+
+                boolean full = batch.size() >= maxBatchActions || batchBytes >= maxBatchBytes;
+                long epoch = controller.acquire();
+                send(batch, epoch, full);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        log.info("批量写入分发线程退出");
+    }
+
+    private void send(List<Pending> batch, long epoch, boolean full) {
+        BulkRequest bulkRequest = new BulkRequest();
+        for (Pending p : batch) {
+            // 发送前加入过滤器，写入可见之后的读请求不会被过滤器误判为不存在
+            if (DocWriteRequest.OpType.DELETE != p.request.opType()) {
+                idBloomFilter.put(p.request.index(), p.request.id());
+            }
+            bulkRequest.add(p.request);
+        }
+        long payloadBytes = bulkRequest.estimatedSizeInBytes();
+        bulks.increment();
+        long start = System.nanoTime();
+
+        restHighLevelClient.bulkAsync(bulkRequest, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse bulkResponse) {
+                try {
+                    List<Pending> retries = new ArrayList<>();
+                    List<Pending> blocked = new ArrayList<>();
+                    Set<String> indices = new HashSet<>();
+                    BulkItemResponse[] items = bulkResponse.getItems();
+                    for (int i = 0; i < items.length; i++) {
+                        BulkItemResponse item = items[i];
+                        Pending p = batch.get(i);
+                        if (!item.isFailed()) {
+                            // 响应中是实际索引名，缓存按请求中的索引名（可能是别名）记录
+                            documentCache.evict(p.request.index(), p.request.id(), item.getVersion());
+                            localReplicaService.written(p.request.index(), item.getId());
+                            indices.add(p.request.index());
+                            complete(p, true);
+                        } else if (isRejected(item.getFailure()) && p.attempt < maxRetries) {
+                            retries.add(p);
+                        } else if (isWriteBlocked(p, item)) {
+                            blocked.add(p);
+                        } else {
+                            recordFailure(item.getIndex(), item.getId(), item.getFailureMessage());
+                            complete(p, false);
+                        }
+                    }
+                    indices.forEach(searchResultCache::invalidate);
+                    controller.onResult(epoch, items.length, rejected(items), false, full, payloadBytes, System.nanoTime() - start);
+                    retry(retries);
+                    requeueBlocked(blocked);
+                } finally {
+                    controller.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                try {
+                    if (ExceptionsHelper.status(e) == RestStatus.TOO_MANY_REQUESTS) {
+                        controller.onResult(epoch, batch.size(), batch.size(), false, full, payloadBytes, System.nanoTime() - start);
+                        List<Pending> retries = new ArrayList<>();
+                        for (Pending p : batch) {
+                            if (p.attempt < maxRetries) {
+                                retries.add(p);
+                            } else {
+                                recordFailure(p.request.index(), p.request.id(), e.getMessage());
+                                complete(p, false);
+                            }
+                        }
+                        retry(retries);
+                    } else {
+                        // 连接失败、超时同样说明集群或网络吃紧，计入控制器
+                        controller.onResult(epoch, batch.size(), 0, true, full, payloadBytes, System.nanoTime() - start);
+                        log.error("bulk 请求失败，{} 条文档丢弃", batch.size(), e);
+                        for (Pending p : batch) {
+                            recordFailure(p.request.index(), p.request.id(), e.getMessage());
+                            complete(p, false);
+                        }
+                    }
+                } finally {
+                    controller.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * 条目是否因集群写线程池满而被拒绝（429），这类失败可以重试
+     * <p>
+     * 客户端侧的 cause 是由响应解析出的 ElasticsearchException，不会是 EsRejectedExecutionException，只能看状态码
+     */
+    private static boolean isRejected(BulkItemResponse.Failure failure) {
+        return RestStatus.TOO_MANY_REQUESTS == failure.getStatus();
+    }
+
+    /**
+     * 条目是否因重建索引的禁写窗口被拒绝，窗口结束后重写即可成功
+     */
+    private boolean isWriteBlocked(Pending p, BulkItemResponse item) {
+        return RestStatus.FORBIDDEN == item.getFailure().getStatus()
+            && (reindexService.isWriteBlocked(p.request.index()) || reindexService.isWriteBlocked(item.getIndex()));
+    }
+
+    private static int rejected(BulkItemResponse[] items) {
+        int rejected = 0;
+        for (BulkItemResponse item : items) {
+            if (item.isFailed() && isRejected(item.getFailure())) {
+                rejected++;
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * 被拒绝的条目按指数退避后重新入队，重试期间仍占用排队字节数
+     *
+     * @param retries
+     */
+    private void retry(List<Pending> retries) {
+        if (retries.isEmpty()) {
+            return;
+        }
+        int attempt = retries.get(0).attempt;
+        for (Pending p : retries) {
+            p.attempt++;
+        }
+        retried.add(retries.size());
+        long delay = initialBackoff << Math.min(attempt, 16);
+        log.debug("{} 条文档被拒绝，{} ms 后第 {} 次重试", retries.size(), delay, attempt + 1);
+        taskScheduler.schedule(() -> queue.addAll(retries), new Date(System.currentTimeMillis() + delay));
+    }
+
+    /**
+     * 禁写窗口内被拒绝的条目按固定间隔重新入队，不消耗重试次数，窗口一般只有几秒
+     *
+     * @param blocked
+     */
+    private void requeueBlocked(List<Pending> blocked) {
+        if (blocked.isEmpty()) {
+            return;
+        }
+        log.debug("{} 条文档遇到重建索引禁写，{} ms 后重新入队", blocked.size(), blockedRetry);
+        taskScheduler.schedule(() -> queue.addAll(blocked), new Date(System.currentTimeMillis() + blockedRetry));
+    }
+
+    private void complete(Pending p, boolean success) {
+        if (success) {
+            succeeded.increment();
+        } else {
+            failed.increment();
+        }
+        queuedBytes.release(p.bytes);
+        if (pending.decrementAndGet() == 0) {
+            List<CompletableFuture<Void>> waiters;
+            synchronized (pending) {
+                pending.notifyAll();
+                waiters = new ArrayList<>(flushWaiters);
+                flushWaiters.clear();
+            }
+            for (CompletableFuture<Void> waiter : waiters) {
+                waiter.complete(null);
+            }
+        }
+    }
+
+    private void recordFailure(String index, String id, String message) {
+        log.warn("文档写入失败，index: {}，id: {}，原因: {}", index, id, message);
+        recentFailures.addLast(index + "/" + id + ": " + message);
+        while (recentFailures.size() > MAX_RECENT_FAILURES) {
+            recentFailures.pollFirst();
+        }
+    }
+
+    private int estimateSize(DocWriteRequest<?> request) {
+        long size = REQUEST_OVERHEAD;
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            if (null != indexRequest.source()) {
+                size += indexRequest.source().length();
+            }
+        } else if (request instanceof UpdateRequest) {
+            UpdateRequest updateRequest = (UpdateRequest) request;
+            if (null != updateRequest.doc()) {
+                size += updateRequest.doc().source().length();
+            }
+            if (null != updateRequest.upsertRequest()) {
+                size += updateRequest.upsertRequest().source().length();
+            }
+        }
+        return (int) Math.min(size, queueBytes);
+    }
+
+    private static double rate(long count, long nanos) {
+        return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    private static final class Pending {
+        private final DocWriteRequest<?> request;
+        private final int bytes;
+        private int attempt;
+
+        private Pending(DocWriteRequest<?> request, int bytes) {
+            this.request = request;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.steven.topsail.demo.quickstart.service.impl;
+
+import com.steven.topsail.demo.quickstart.model.ExportResult;
+import com.steven.topsail.demo.quickstart.service.IExportService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 索引导出服务
+ * <p>
+ * 每个切片一个任务，在共用的有界线程池中执行，命中文档的 _source 原始字节直接拷入写缓冲，
+ * 不解析成 Map；多个切片共用一个 FileChannel，按缓冲块整体写入。输出文件只能位于 export.dir 之下。
+ *
+ * @author Steven
+ * @date 2021-01-23
+ */
+@Slf4j
+@Service
+public class ExportServiceImpl implements IExportService {
+
+    private static final byte[] ID_PREFIX = "{\"_id\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SOURCE_PREFIX = "\",\"_source\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL_SOURCE = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LINE_END = "}\n".getBytes(StandardCharsets.UTF_8);
+
+    @Value("${export.scroll-keep-alive:1m}")
+    private String keepAlive;
+
+    @Value("${export.buffer-size:1048576}")
+    private int bufferSize;
+
+    /**
+     * 导出文件的根目录，请求中的文件名相对于该目录解析
+     */
+    @Value("${export.dir:export}")
+    private String dir;
+
+    /**
+     * 切片线程池大小，也是单次导出的切片数上限
+     */
+    @Value("${export.threads:8}")
+    private int threads;
+
+    @Value("${export.queue-capacity:32}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor sliceExecutor;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private ThreadPoolTaskExecutor jobExecutor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        sliceExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> new Thread(r, "Export-" + threadNumber.incrementAndGet()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        sliceExecutor.shutdownNow();
+    }
+
+    @Override
+    public CompletableFuture<ExportResult> exportAsync(String index, String file, int slices, int pageSize) {
+        // 参数错误在提交前抛出，调用方直接得到 400
+        validate(slices, pageSize);
+        resolve(file);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return export(index, file, slices, pageSize);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, jobExecutor);
+    }
+
+    @Override
+    public ExportResult export(String index, String file, int slices, int pageSize) throws IOException {
+        validate(slices, pageSize);
+        long start = System.currentTimeMillis();
+        Path path = resolve(file);
+        Files.createDirectories(path.getParent());
+
+        LongAdder docs = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        List<Future<?>> futures = new ArrayList<>(slices);
+        // 切片按页检查该标记自行退出；不用中断，中断会关闭所有切片共用的通道
+        AtomicBoolean cancelled = new AtomicBoolean();
+        try (FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            try {
+                for (int i = 0; i < slices; i++) {
+                    int sliceId = i;
+                    futures.add(sliceExecutor.submit(() -> {
+                        try {
+                            exportSlice(index, sliceId, slices, pageSize, channel, docs, bytes, cancelled);
+                        } catch (Exception e) {
+                            // 一个切片失败，其余切片尽快停止
+                            cancelled.set(true);
+                            throw e;
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                channel.force(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("导出被中断: " + index, e);
+            } catch (ExecutionException e) {
+                throw new IOException("导出失败: " + index, e.getCause());
+            } finally {
+                // 失败或中断时通知其余切片停止，并在通道关闭之前等它们全部退出
+                cancelled.set(true);
+                awaitSlices(futures);
+            }
+        }
+
+        ExportResult result = new ExportResult();
+        result.setIndex(index);
+        result.setFile(path.toAbsolutePath().toString());
+        result.setSlices(slices);
+        result.setDocs(docs.sum());
+        result.setBytes(bytes.sum());
+        result.setCost(System.currentTimeMillis() - start);
+        log.info("索引 {} 导出完成，文档数: {}，字节数: {}，耗时: {} ms", index, result.getDocs(), result.getBytes(), result.getCost());
+        return result;
+    }
+
+    /**
+     * 等待切片全部结束，不响应中断，结束后恢复中断标记
+     */
+    private static void awaitSlices(List<Future<?>> futures) {
+        boolean interrupted = Thread.interrupted();
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void validate(int slices, int pageSize) {
+        if (slices <= 0 || slices > threads || pageSize <= 0) {
+            throw new IllegalArgumentException("slices 必须在 1 到 " + threads + " 之间，pageSize 必须大于 0");
+        }
+    }
+
+    /**
+     * 把请求中的文件名解析到导出目录下，拒绝绝对路径和跳出目录的相对路径
+     *
+     * @param file
+     * @return
+     */
+    private Path resolve(String file) {
+        if (StringUtils.isBlank(file)) {
+            throw new IllegalArgumentException("导出文件名不能为空");
+        }
+        Path root = Paths.get(dir).toAbsolutePath().normalize();
+        Path relative;
+        try {
+            relative = Paths.get(file);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("导出文件名不合法: " + file);
+        }
+        Path path = root.resolve(relative).normalize();
+        if (relative.isAbsolute() || !path.startsWith(root) || path.equals(root)) {
+            throw new IllegalArgumentException("导出文件必须位于导出目录之下: " + file);
+        }
+        return path;
+    }
+
+    private void exportSlice(String index, int sliceId, int slices, int pageSize, FileChannel channel,
+                             LongAdder docs, LongAdder bytes, AtomicBoolean cancelled) throws IOException {
+        if (cancelled.get()) {
+            return;
+        }
+        TimeValue scrollKeepAlive = TimeValue.parseTimeValue(keepAlive, "export.scroll-keep-alive");
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+            .query(QueryBuilders.matchAllQuery())
+            .size(pageSize)
+            .sort("_doc", SortOrder.ASC);
+        if (slices > 1) {
+            searchSourceBuilder.slice(new SliceBuilder(sliceId, slices));
+        }
+        SearchRequest searchRequest = new SearchRequest(index).source(searchSourceBuilder).scroll(scrollKeepAlive);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        SearchResponse response = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+        String scrollId = response.getScrollId();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                if (cancelled.get()) {
+                    log.debug("索引 {} 切片 {}/{} 导出取消", index, sliceId, slices);
+                    return;
+                }
+                for (SearchHit hit : response.getHits().getHits()) {
+                    writeHit(hit, buffer, channel, bytes);
+                }
+                docs.add(response.getHits().getHits().length);
+
+                SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId).scroll(scrollKeepAlive);
+                response = restHighLevelClient.scroll(scrollRequest, RequestOptions.DEFAULT);
+                scrollId = response.getScrollId();
+            }
+            drain(buffer, channel, bytes);
+        } finally {
+            // 异步清除，线程被中断时同样能发出
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            restHighLevelClient.clearScrollAsync(clearScrollRequest, RequestOptions.DEFAULT,
+                new ActionListener<ClearScrollResponse>() {
+                    @Override
+                    public void onResponse(ClearScrollResponse clearScrollResponse) {
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        log.warn("清除 scroll 失败，索引 {} 切片 {}/{}: {}", index, sliceId, slices, e.toString());
+                    }
+                });
+        }
+        log.debug("索引 {} 切片 {}/{} 导出完成", index, sliceId, slices);
+    }
+
+    /**
+     * 一行完整写入同一个缓冲区；超过缓冲区容量的大文档单独分配缓冲整行写出，避免与其他切片交错
+     */
+    private void writeHit(SearchHit hit, ByteBuffer buffer, FileChannel channel, LongAdder bytes) throws IOException {
+        byte[] id = escape(hit.getId()).getBytes(StandardCharsets.UTF_8);
+        BytesReference source = hit.getSourceRef();
+        int length = ID_PREFIX.length + id.length + SOURCE_PREFIX.length
+            + (null == source ? NULL_SOURCE.length : source.length()) + LINE_END.length;
+
+        if (buffer.remaining() < length) {
+            drain(buffer, channel, bytes);
+        }
+        ByteBuffer target = buffer.remaining() < length ? ByteBuffer.allocate(length) : buffer;
+
+        target.put(ID_PREFIX).put(id).put(SOURCE_PREFIX);
+        if (null == source) {
+            target.put(NULL_SOURCE);
+        } else {
+            BytesRefIterator iterator = source.iterator();
+            BytesRef ref;
+            while (null != (ref = iterator.next())) {
+                target.put(ref.bytes, ref.offset, ref.length);
+            }
+        }
+        target.put(LINE_END);
+
+        if (target != buffer) {
+            drain(target, channel, bytes);
+        }
+    }
+
+    private void drain(ByteBuffer buffer, FileChannel channel, LongAdder bytes) throws IOException {
+        buffer.flip();
+        write(buffer, channel, bytes);
+        buffer.clear();
+    }
+
+    /**
+     * 多个切片共用一个通道，整块写入时加锁，保证行不会交错
+     */
+    private void write(ByteBuffer buffer, FileChannel channel, LongAdder bytes) throws IOException {
+        int length = buffer.remaining();
+        synchronized (channel) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        bytes.add(length);
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf('"') < 0 && value.indexOf('\\') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
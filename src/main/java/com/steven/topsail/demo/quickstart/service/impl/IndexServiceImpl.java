@@ -1,21 +1,72 @@
 package com.steven.topsail.demo.quickstart.service.impl;
 
+import com.steven.topsail.demo.quickstart.async.EsAsyncExecutor;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
 import com.steven.topsail.demo.quickstart.service.IIndexService;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
 import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.GetAliasesResponse;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.CreateIndexResponse;
 import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.GetMappingsResponse;
+import org.elasticsearch.client.indices.PutIndexTemplateRequest;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.client.indices.rollover.RolloverRequest;
+import org.elasticsearch.client.indices.rollover.RolloverResponse;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 索引管理
+ * <p>
+ * 滚动索引：同一个逻辑索引按小时分桶（alias-yyyy.MM.dd.HH-000001），读别名覆盖全部分桶，
+ * 写别名只指向当前分桶；TaskScheduler 定期检查，满足大小、文档数、时长任一条件即滚动。
+ * 批量导入期间分桶关闭刷新、去掉副本、translog 异步落盘，结束后恢复，不再写入的分桶合并为一个段。
+ * 导入期间分桶的映射 _meta.bulk_load 记录导入方（进程实例 id）和心跳时间，导入方定期续期，结束时标记为结束。
+ * 每次滚动检查时，停留在导入设置、标记仍为导入中但心跳已超时（导入方已退出）的分桶恢复为正常设置并合并段；
+ * 其他实例正在导入的分桶、没有标记（人工设置）的分桶不处理。
+ *
  * @author Steven
  * @date 2021-01-15
  */
@@ -26,6 +77,106 @@ public class IndexServiceImpl implements IIndexService {
     @Autowired
     private RestHighLevelClient restHighLevelClient;
 
+    private static final String WRITE_SUFFIX = "-write";
+
+    private static final String TEMPLATE_SUFFIX = "-template";
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+    private static final String TRANSLOG_DURABILITY = "index.translog.durability";
+
+    private static final String BULK_LOAD_META = "bulk_load";
+
+    /**
+     * 本进程的实例 id，作为导入方写入分桶的标记
+     */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * 启动时即纳入滚动检查的别名，逗号分隔；写别名不存在时自动创建
+     */
+    @Value("${index.rolling.aliases:}")
+    private String rollingAliases;
+
+    @Value("${index.rolling.shards:5}")
+    private int rollingShards;
+
+    @Value("${index.rolling.replicas:1}")
+    private int rollingReplicas;
+
+    @Value("${index.rolling.refresh-interval:1s}")
+    private String rollingRefreshInterval;
+
+    @Value("${index.rolling.max-age:1h}")
+    private String maxAge;
+
+    @Value("${index.rolling.max-docs:10000000}")
+    private long maxDocs;
+
+    @Value("${index.rolling.max-size:20gb}")
+    private String maxSize;
+
+    @Value("${index.rolling.check-interval:60000}")
+    private long checkInterval;
+
+    /**
+     * 导入中分桶标记的续期间隔
+     */
+    @Value("${index.rolling.bulk-load-heartbeat:30000}")
+    private long bulkLoadHeartbeat;
+
+    /**
+     * 标记超过这么久未续期即认为导入方已退出，应远大于续期间隔
+     */
+    @Value("${index.rolling.bulk-load-owner-timeout:300000}")
+    private long bulkLoadOwnerTimeout;
+
+    /**
+     * 合并段可能持续很久，单独放宽读超时
+     */
+    @Value("${index.rolling.force-merge-timeout:3600000}")
+    private int forceMergeTimeout;
+
+    @Autowired
+    private EsAsyncExecutor esAsyncExecutor;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    /**
+     * 等待合并段的分桶，同一时间只合并一个，避免多个合并同时占用集群的 IO
+     */
+    private final Deque<String> mergeQueue = new ArrayDeque<>();
+
+    /**
+     * 是否有合并在进行，只在持有 mergeQueue 锁时读写
+     */
+    private boolean merging;
+
+    /**
+     * 纳入滚动检查的别名
+     */
+    private final Set<String> rolling = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 批量导入中的别名 -> 导入期间改过设置的分桶，只在持有 this 锁时修改
+     */
+    private final Map<String, Set<String>> bulkLoading = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (String alias : StringUtils.split(rollingAliases, ',')) {
+            rolling.add(alias.trim());
+        }
+        taskScheduler.scheduleWithFixedDelay(this::checkRollover, checkInterval);
+        taskScheduler.scheduleWithFixedDelay(this::heartbeat, bulkLoadHeartbeat);
+    }
+
     /**
      * 创建索引
      *
@@ -37,54 +188,7 @@ public class IndexServiceImpl implements IIndexService {
 
         if (!existsIndex(indexName)) {
             log.info("创建索引: {}", indexName);
-            CreateIndexRequest createIndexRequest = new CreateIndexRequest(indexName);
-            createIndexRequest.source("{\n" +
-                    "  \"settings\": {\n" +
-                    "    \"number_of_shards\": \"5\",\n" +
-                    "    \"number_of_replicas\": \"0\"\n" +
-                    "  },\n" +
-                    "  \"mappings\": {\n" +
-                    "    \"properties\": {\n" +
-                    "      \"DONE_DATE\": {\n" +
-                    "        \"type\": \"date\"\n" +
-                    "      },\n" +
-                    "      \"FUNC_ID\": {\n" +
-                    "        \"type\": \"text\"\n" +
-                    "      },\n" +
-                    "      \"FUNC_IMG\": {\n" +
-                    "        \"type\": \"text\"\n" +
-                    "      },\n" +
-                    "      \"FUNC_LEVEL\": {\n" +
-                    "        \"type\": \"long\"\n" +
-                    "      },\n" +
-                    "      \"FUNC_NAME\": {\n" +
-                    "        \"type\": \"text\",\n" +
-                    "        \"analyzer\": \"ik_max_word\",\n" +
-                    "        \"search_analyzer\": \"ik_max_word\"\n" +
-                    "      },\n" +
-                    "      \"FUN_SEQ\": {\n" +
-                    "        \"type\": \"long\"\n" +
-                    "      },\n" +
-                    "      \"MODULE_TYPE\": {\n" +
-                    "        \"type\": \"text\"\n" +
-                    "      },\n" +
-                    "      \"PARENT_FUNC_ID\": {\n" +
-                    "        \"type\": \"text\"\n" +
-                    "      },\n" +
-                    "      \"STATE\": {\n" +
-                    "        \"type\": \"text\"\n" +
-                    "      },\n" +
-                    "      \"VIEWNAME\": {\n" +
-                    "        \"type\": \"text\",\n" +
-                    "        \"analyzer\": \"ik_max_word\",\n" +
-                    "        \"search_analyzer\": \"ik_max_word\"\n" +
-                    "      }\n" +
-                    "    }\n" +
-                    "  }\n" +
-                    "}",
-                XContentType.JSON);
-
-            CreateIndexResponse response = restHighLevelClient.indices().create(createIndexRequest, RequestOptions.DEFAULT);
+            CreateIndexResponse response = restHighLevelClient.indices().create(createIndexRequest(indexName), RequestOptions.DEFAULT);
             System.out.println(response.toString());
             log.info("索引创建结果: {}", response.isAcknowledged());
         } else {
@@ -92,6 +196,80 @@ public class IndexServiceImpl implements IIndexService {
         }
     }
 
+    /**
+     * 异步创建索引，已存在时不创建
+     *
+     * @param indexName
+     * @return 是否新建了索引
+     */
+    @Override
+    public CompletableFuture<Boolean> createIndexAsync(String indexName) {
+        return existsIndexAsync(indexName).thenCompose(exists -> {
+            if (exists) {
+                log.warn("索引：{}，已经存在，不能再创建。", indexName);
+                return CompletableFuture.completedFuture(false);
+            }
+            log.info("创建索引: {}", indexName);
+            return esAsyncExecutor.<CreateIndexResponse>execute("create index " + indexName,
+                listener -> restHighLevelClient.indices().createAsync(createIndexRequest(indexName), RequestOptions.DEFAULT, listener))
+                .thenApply(response -> {
+                    log.info("索引创建结果: {}", response.isAcknowledged());
+                    return response.isAcknowledged();
+                });
+        });
+    }
+
+    @Override
+    public CreateIndexRequest createIndexRequest(String indexName) {
+        CreateIndexRequest createIndexRequest = new CreateIndexRequest(indexName);
+        createIndexRequest.source("{\n" +
+                "  \"settings\": {\n" +
+                "    \"number_of_shards\": \"5\",\n" +
+                "    \"number_of_replicas\": \"0\"\n" +
+                "  },\n" +
+                "  \"mappings\": {\n" +
+                "    \"properties\": {\n" +
+                "      \"DONE_DATE\": {\n" +
+                "        \"type\": \"date\"\n" +
+                "      },\n" +
+                "      \"FUNC_ID\": {\n" +
+                "        \"type\": \"text\"\n" +
+                "      },\n" +
+                "      \"FUNC_IMG\": {\n" +
+                "        \"type\": \"text\"\n" +
+                "      },\n" +
+                "      \"FUNC_LEVEL\": {\n" +
+                "        \"type\": \"long\"\n" +
+                "      },\n" +
+                "      \"FUNC_NAME\": {\n" +
+                "        \"type\": \"text\",\n" +
+                "        \"analyzer\": \"ik_max_word\",\n" +
+                "        \"search_analyzer\": \"ik_max_word\"\n" +
+                "      },\n" +
+                "      \"FUN_SEQ\": {\n" +
+                "        \"type\": \"long\"\n" +
+                "      },\n" +
+                "      \"MODULE_TYPE\": {\n" +
+                "        \"type\": \"text\"\n" +
+                "      },\n" +
+                "      \"PARENT_FUNC_ID\": {\n" +
+                "        \"type\": \"text\"\n" +
+                "      },\n" +
+                "      \"STATE\": {\n" +
+                "        \"type\": \"text\"\n" +
+                "      },\n" +
+                "      \"VIEWNAME\": {\n" +
+                "        \"type\": \"text\",\n" +
+                "        \"analyzer\": \"ik_max_word\",\n" +
+                "        \"search_analyzer\": \"ik_max_word\"\n" +
+                "      }\n" +
+                "    }\n" +
+                "  }\n" +
+                "}",
+            XContentType.JSON);
+        return createIndexRequest;
+    }
+
     /**
      * 删除索引
      *
@@ -108,6 +286,28 @@ public class IndexServiceImpl implements IIndexService {
         }
     }
 
+    /**
+     * 异步删除索引，不存在时直接返回 false
+     *
+     * @param indexName
+     * @return 是否删除了索引
+     */
+    @Override
+    public CompletableFuture<Boolean> deleteIndexAsync(String indexName) {
+        log.info("删除索引: {}", indexName);
+        return existsIndexAsync(indexName).thenCompose(exists -> {
+            if (!exists) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return esAsyncExecutor.<AcknowledgedResponse>execute("delete index " + indexName,
+                listener -> restHighLevelClient.indices().deleteAsync(new DeleteIndexRequest(indexName), RequestOptions.DEFAULT, listener))
+                .thenApply(response -> {
+                    log.info("删除响应: {}", response.isAcknowledged());
+                    return response.isAcknowledged();
+                });
+        });
+    }
+
     /**
      * 判断索引是否存在
      *
@@ -123,4 +323,324 @@ public class IndexServiceImpl implements IIndexService {
         return exists;
     }
 
+    private CompletableFuture<Boolean> existsIndexAsync(String indexName) {
+        return esAsyncExecutor.execute("exists index " + indexName,
+            listener -> restHighLevelClient.indices().existsAsync(new GetIndexRequest(indexName), RequestOptions.DEFAULT, listener));
+    }
+
+    @Override
+    public String writeAlias(String alias) {
+        return alias + WRITE_SUFFIX;
+    }
+
+    @Override
+    public String createRollingIndex(String alias) throws IOException {
+        putRollingTemplate(alias);
+        rolling.add(alias);
+
+        String current = currentWriteIndex(alias);
+        if (null != current) {
+            log.warn("滚动索引：{}，写别名已指向 {}，不再创建。", alias, current);
+            return current;
+        }
+
+        // 日期表达式索引名，滚动时 ES 按当时的小时生成新名称并递增序号
+        CreateIndexRequest request = new CreateIndexRequest("<" + alias + "-{now/h{yyyy.MM.dd.HH}}-000001>");
+        request.alias(new Alias(writeAlias(alias)).writeIndex(true));
+        CreateIndexResponse response = restHighLevelClient.indices().create(request, RequestOptions.DEFAULT);
+        log.info("创建滚动索引: {} -> {}", alias, response.index());
+        return response.index();
+    }
+
+    @Override
+    public synchronized String rollover(String alias, boolean force) throws IOException {
+        RolloverRequest request = new RolloverRequest(writeAlias(alias), null);
+        if (!force) {
+            request.addMaxIndexAgeCondition(TimeValue.parseTimeValue(maxAge, "index.rolling.max-age"));
+            request.addMaxIndexDocsCondition(maxDocs);
+            request.addMaxIndexSizeCondition(ByteSizeValue.parseBytesSizeValue(maxSize, "index.rolling.max-size"));
+        }
+        RolloverResponse response = restHighLevelClient.indices().rollover(request, RequestOptions.DEFAULT);
+        if (!response.isRolledOver()) {
+            log.debug("滚动索引: {}，未满足滚动条件: {}", alias, response.getConditionStatus());
+            return null;
+        }
+        log.info("滚动索引: {}，{} -> {}，条件: {}", alias, response.getOldIndex(), response.getNewIndex(), response.getConditionStatus());
+
+        Set<String> loading = bulkLoading.get(alias);
+        if (null != loading) {
+            // 导入还在进行，新分桶沿用导入设置，旧分桶等导入结束后一起合并
+            markBulkLoad(new String[]{response.getNewIndex()}, true);
+            putSettings(response.getNewIndex(), bulkLoadSettings());
+            loading.add(response.getNewIndex());
+        } else {
+            forceMergeLater(response.getOldIndex());
+        }
+        return response.getNewIndex();
+    }
+
+    @Override
+    public synchronized void beginBulkLoad(String alias) throws IOException {
+        if (bulkLoading.containsKey(alias)) {
+            log.warn("滚动索引：{}，已在批量导入中。", alias);
+            return;
+        }
+        String current = currentWriteIndex(alias);
+        if (null == current) {
+            throw new IllegalStateException("写别名不存在: " + writeAlias(alias));
+        }
+        // 先标记再改设置，其他实例看到导入设置时一定能看到导入方
+        markBulkLoad(new String[]{current}, true);
+        putSettings(current, bulkLoadSettings());
+        bulkLoading.put(alias, new LinkedHashSet<>(Collections.singleton(current)));
+        log.info("滚动索引: {}，进入批量导入模式: {}", alias, current);
+    }
+
+    @Override
+    public synchronized void endBulkLoad(String alias) throws IOException {
+        Set<String> loading = bulkLoading.remove(alias);
+        if (null == loading) {
+            log.warn("滚动索引：{}，不在批量导入中。", alias);
+            return;
+        }
+        String[] indices = loading.toArray(new String[0]);
+        putSettings(indices, normalSettings());
+        markBulkLoad(indices, false);
+        restHighLevelClient.indices().refresh(new RefreshRequest(indices), RequestOptions.DEFAULT);
+        // 导入期间按 max-ttl 缓存的结果不含刚刷新可见的文档
+        searchResultCache.invalidate(alias);
+        log.info("滚动索引: {}，退出批量导入模式: {}", alias, loading);
+
+        String current = currentWriteIndex(alias);
+        for (String index : loading) {
+            if (!index.equals(current)) {
+                forceMergeLater(index);
+            }
+        }
+    }
+
+    private void checkRollover() {
+        try {
+            restoreBulkLoadSettings();
+        } catch (Exception e) {
+            log.error("恢复批量导入设置失败，下次检查重试", e);
+        }
+        for (String alias : rolling) {
+            try {
+                if (null == currentWriteIndex(alias)) {
+                    createRollingIndex(alias);
+                } else {
+                    rollover(alias, false);
+                }
+            } catch (Exception e) {
+                log.error("滚动索引检查失败: " + alias, e);
+            }
+        }
+    }
+
+    /**
+     * 导入方已退出（标记为导入中、心跳超时）却仍是导入设置（不刷新或 translog 异步）的分桶，恢复为正常设置并合并段
+     *
+     * @throws IOException
+     */
+    private synchronized void restoreBulkLoadSettings() throws IOException {
+        for (String alias : rolling) {
+            if (bulkLoading.containsKey(alias)) {
+                continue;
+            }
+            GetSettingsRequest request = new GetSettingsRequest()
+                .indices(alias + "-*")
+                .names(REFRESH_INTERVAL, TRANSLOG_DURABILITY);
+            GetSettingsResponse response = restHighLevelClient.indices().getSettings(request, RequestOptions.DEFAULT);
+            List<String> candidates = new ArrayList<>();
+            Iterator<String> it = response.getIndexToSettings().keysIt();
+            while (it.hasNext()) {
+                String index = it.next();
+                if ("-1".equals(response.getSetting(index, REFRESH_INTERVAL))
+                    || "async".equals(response.getSetting(index, TRANSLOG_DURABILITY))) {
+                    candidates.add(index);
+                }
+            }
+            if (candidates.isEmpty()) {
+                continue;
+            }
+            List<String> stale = abandoned(candidates);
+            if (stale.isEmpty()) {
+                continue;
+            }
+            log.warn("滚动索引: {}，分桶的导入方已退出，恢复: {}", alias, stale);
+            String[] indices = stale.toArray(new String[0]);
+            putSettings(indices, normalSettings());
+            markBulkLoad(indices, false);
+            searchResultCache.invalidate(alias);
+            String current = currentWriteIndex(alias);
+            for (String index : stale) {
+                if (!index.equals(current)) {
+                    forceMergeLater(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * 标记为导入中、心跳超时的分桶；没有标记或已结束的分桶是人工设置的，不算
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> abandoned(List<String> indices) throws IOException {
+        GetMappingsResponse response = restHighLevelClient.indices()
+            .getMapping(new GetMappingsRequest().indices(indices.toArray(new String[0])), RequestOptions.DEFAULT);
+        long now = System.currentTimeMillis();
+        List<String> abandoned = new ArrayList<>();
+        for (Map.Entry<String, MappingMetadata> entry : response.mappings().entrySet()) {
+            Object meta = entry.getValue().sourceAsMap().get("_meta");
+            Object marker = meta instanceof Map ? ((Map<String, Object>) meta).get(BULK_LOAD_META) : null;
+            if (!(marker instanceof Map)) {
+                continue;
+            }
+            Map<String, Object> bulkLoad = (Map<String, Object>) marker;
+            Object heartbeat = bulkLoad.get("heartbeat");
+            if (Boolean.TRUE.equals(bulkLoad.get("active")) && heartbeat instanceof Number
+                && now - ((Number) heartbeat).longValue() > bulkLoadOwnerTimeout) {
+                log.info("分桶 {} 的导入方 {} 已超过 {} ms 未续期", entry.getKey(), bulkLoad.get("owner"), bulkLoadOwnerTimeout);
+                abandoned.add(entry.getKey());
+            }
+        }
+        return abandoned;
+    }
+
+    /**
+     * 在分桶映射的 _meta 中记录导入方和心跳
+     *
+     * @param indices
+     * @param active  导入中为 true，结束或恢复后为 false
+     */
+    private void markBulkLoad(String[] indices, boolean active) throws IOException {
+        Map<String, Object> bulkLoad = new HashMap<>();
+        bulkLoad.put("owner", instanceId);
+        bulkLoad.put("heartbeat", System.currentTimeMillis());
+        bulkLoad.put("active", active);
+        PutMappingRequest request = new PutMappingRequest(indices)
+            .source(Collections.singletonMap("_meta", Collections.singletonMap(BULK_LOAD_META, bulkLoad)));
+        restHighLevelClient.indices().putMapping(request, RequestOptions.DEFAULT);
+    }
+
+    /**
+     * 为本进程导入中的分桶续期
+     */
+    private synchronized void heartbeat() {
+        for (Map.Entry<String, Set<String>> entry : bulkLoading.entrySet()) {
+            try {
+                markBulkLoad(entry.getValue().toArray(new String[0]), true);
+            } catch (Exception e) {
+                log.warn("滚动索引: {}，导入标记续期失败: {}", entry.getKey(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * 模板只管设置和读别名，映射沿用动态映射；写别名由创建分桶和滚动维护
+     */
+    private void putRollingTemplate(String alias) throws IOException {
+        PutIndexTemplateRequest request = new PutIndexTemplateRequest(alias + TEMPLATE_SUFFIX)
+            .patterns(Collections.singletonList(alias + "-*"))
+            .settings(Settings.builder()
+                .put("index.number_of_shards", rollingShards)
+                .put(normalSettings()))
+            .alias(new Alias(alias));
+        AcknowledgedResponse response = restHighLevelClient.indices().putTemplate(request, RequestOptions.DEFAULT);
+        log.info("滚动索引模板: {}，结果: {}", request.name(), response.isAcknowledged());
+    }
+
+    /**
+     * 写别名当前指向的分桶
+     *
+     * @return 写别名不存在时返回 null
+     */
+    private String currentWriteIndex(String alias) throws IOException {
+        GetAliasesResponse response = restHighLevelClient.indices()
+            .getAlias(new GetAliasesRequest(writeAlias(alias)), RequestOptions.DEFAULT);
+        for (Map.Entry<String, Set<AliasMetadata>> entry : response.getAliases().entrySet()) {
+            for (AliasMetadata metadata : entry.getValue()) {
+                if (!Boolean.FALSE.equals(metadata.writeIndex())) {
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    private Settings bulkLoadSettings() {
+        return Settings.builder()
+            .put(REFRESH_INTERVAL, "-1")
+            .put(NUMBER_OF_REPLICAS, 0)
+            .put(TRANSLOG_DURABILITY, "async")
+            .build();
+    }
+
+    private Settings normalSettings() {
+        return Settings.builder()
+            .put(REFRESH_INTERVAL, rollingRefreshInterval)
+            .put(NUMBER_OF_REPLICAS, rollingReplicas)
+            .put(TRANSLOG_DURABILITY, "request")
+            .build();
+    }
+
+    private void putSettings(String index, Settings settings) throws IOException {
+        putSettings(new String[]{index}, settings);
+    }
+
+    private void putSettings(String[] indices, Settings settings) throws IOException {
+        UpdateSettingsRequest request = new UpdateSettingsRequest(indices).settings(settings);
+        restHighLevelClient.indices().putSettings(request, RequestOptions.DEFAULT);
+        // 刷新间隔变了，查询缓存的有效期随之变化
+        searchResultCache.invalidateTtl();
+        log.info("更新索引设置: {} -> {}", Arrays.toString(indices), settings);
+    }
+
+    /**
+     * 不再写入的分桶合并为一个段
+     * <p>
+     * 合并可能持续很久，使用异步请求，不占用任何线程；排队依次执行，同一分桶不重复排队
+     */
+    private void forceMergeLater(String index) {
+        synchronized (mergeQueue) {
+            if (!mergeQueue.contains(index)) {
+                mergeQueue.add(index);
+            }
+            if (merging) {
+                return;
+            }
+            merging = true;
+        }
+        forceMergeNext();
+    }
+
+    private void forceMergeNext() {
+        String index;
+        synchronized (mergeQueue) {
+            index = mergeQueue.poll();
+            if (null == index) {
+                merging = false;
+                return;
+            }
+        }
+        RequestOptions options = RequestOptions.DEFAULT.toBuilder()
+            .setRequestConfig(RequestConfig.custom().setConnectTimeout(1000).setSocketTimeout(forceMergeTimeout).build())
+            .build();
+        long start = System.currentTimeMillis();
+        restHighLevelClient.indices().forcemergeAsync(new ForceMergeRequest(index).maxNumSegments(1), options,
+            new ActionListener<ForceMergeResponse>() {
+                @Override
+                public void onResponse(ForceMergeResponse response) {
+                    log.info("合并段: {}，失败分片数: {}，耗时: {} ms", index, response.getFailedShards(), System.currentTimeMillis() - start);
+                    forceMergeNext();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    log.error("合并段失败: " + index, e);
+                    forceMergeNext();
+                }
+            });
+    }
 }
@@ -0,0 +1,172 @@
+package com.steven.topsail.demo.quickstart.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.steven.topsail.demo.quickstart.loadgen.LoadGenerator;
+import com.steven.topsail.demo.quickstart.loadgen.WorkloadDriver;
+import com.steven.topsail.demo.quickstart.model.WorkloadReport;
+import com.steven.topsail.demo.quickstart.model.WorkloadSpec;
+import com.steven.topsail.demo.quickstart.service.ILoadTestService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 压测服务
+ * <p>
+ * 压测在独立线程上运行，结果保留一天。每次压测都创建独立的客户端，不占用应用的连接池，避免压测拖垮线上请求。
+ * target 为空时压测应用配置的 ES 集群（elastic.hosts 的第一个节点）；其他地址只允许 stub 或 loadtest.targets 中配置的地址，
+ * 防止接口被用来向任意地址发请求。任意地址的压测请使用命令行入口 {@link LoadGenerator}。
+ *
+ * @author Steven
+ * @date 2021-02-10
+ */
+@Slf4j
+@Service
+public class LoadTestServiceImpl implements ILoadTestService {
+
+    @Value("${elastic.hosts:10.230.55.48}")
+    private String hosts;
+
+    @Value("${elastic.username:elastic}")
+    private String username;
+
+    @Value("${elastic.password:123456}")
+    private String password;
+
+    /**
+     * 允许压测的其他集群地址，逗号分隔，如 http://10.0.0.1:9200
+     */
+    @Value("${loadtest.targets:}")
+    private String[] allowedTargets;
+
+    private ExecutorService executor;
+
+    private final Cache<String, Task> tasks = Caffeine.newBuilder()
+        .expireAfterWrite(1, TimeUnit.DAYS)
+        .build();
+
+    private final AtomicReference<String> running = new AtomicReference<>();
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newCachedThreadPool(r -> new Thread(r, "LoadTest"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (Task task : tasks.asMap().values()) {
+            task.driver.stop();
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String submit(WorkloadSpec spec) {
+        String taskId = UUID.randomUUID().toString();
+        if (!running.compareAndSet(null, taskId)) {
+            throw new RejectedExecutionException("已有压测在运行: " + running.get());
+        }
+        LoadGenerator.Target target = null;
+        try {
+            target = open(spec.getTarget());
+            WorkloadDriver driver = new WorkloadDriver(target.getClient(), spec, target.getUrl());
+            Task task = new Task(driver);
+            tasks.put(taskId, task);
+            LoadGenerator.Target opened = target;
+            executor.execute(() -> run(taskId, task, opened));
+            return taskId;
+        } catch (Exception e) {
+            if (null != target) {
+                try {
+                    target.close();
+                } catch (IOException ex) {
+                    log.warn("关闭压测客户端失败", ex);
+                }
+            }
+            running.set(null);
+            throw new IllegalArgumentException("压测启动失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 为压测创建独立客户端，只接受应用集群、stub 和配置过的地址
+     *
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    private LoadGenerator.Target open(String target) throws IOException {
+        if (StringUtils.isEmpty(target)) {
+            return LoadGenerator.open("http://" + hosts.split(",")[0].trim() + ":9200", username, password);
+        }
+        if (target.equals(LoadGenerator.STUB) || target.startsWith(LoadGenerator.STUB + ":")) {
+            return LoadGenerator.open(target);
+        }
+        for (String allowed : allowedTargets) {
+            if (StringUtils.isNotBlank(allowed) && allowed.trim().equals(target)) {
+                return LoadGenerator.open(target, username, password);
+            }
+        }
+        throw new IllegalArgumentException("不允许的压测地址: " + target + "，请配置 loadtest.targets");
+    }
+
+    @Override
+    public WorkloadReport report(String taskId) {
+        Task task = tasks.getIfPresent(taskId);
+        if (null == task) {
+            return null;
+        }
+        WorkloadReport report = task.report;
+        return null != report ? report : task.driver.report(false);
+    }
+
+    @Override
+    public boolean cancel(String taskId) {
+        Task task = tasks.getIfPresent(taskId);
+        if (null == task || null != task.report) {
+            return false;
+        }
+        task.driver.stop();
+        return true;
+    }
+
+    private void run(String taskId, Task task, LoadGenerator.Target target) {
+        try {
+            task.report = task.driver.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.report = task.driver.report(true);
+        } catch (Exception e) {
+            log.warn("压测失败，taskId: {}", taskId, e);
+            task.report = task.driver.report(true);
+        } finally {
+            try {
+                target.close();
+            } catch (Exception e) {
+                log.warn("关闭压测客户端失败", e);
+            }
+            running.set(null);
+        }
+    }
+
+    private static final class Task {
+        private final WorkloadDriver driver;
+        private volatile WorkloadReport report;
+
+        private Task(WorkloadDriver driver) {
+            this.driver = driver;
+        }
+    }
+}
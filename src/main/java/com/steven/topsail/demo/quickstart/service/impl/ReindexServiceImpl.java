@@ -0,0 +1,586 @@
+package com.steven.topsail.demo.quickstart.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.carrotsearch.hppc.ObjectHashSet;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.steven.topsail.demo.quickstart.cache.DocumentCache;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
+import com.steven.topsail.demo.quickstart.model.ReindexProgress;
+import com.steven.topsail.demo.quickstart.replica.LocalReplicaService;
+import com.steven.topsail.demo.quickstart.service.IIndexService;
+import com.steven.topsail.demo.quickstart.service.IReindexService;
+import com.steven.topsail.demo.quickstart.util.ScrollUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.tasks.CancelTasksRequest;
+import org.elasticsearch.client.tasks.TaskId;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不停机重建索引
+ * <p>
+ * 1. 按 IIndexService 中的映射创建 alias-v时间戳，复制期间关闭刷新、去掉副本；
+ * 2. 由 ES 的 reindex 任务分片并行、限速复制全部文档，本服务轮询任务状态更新进度；
+ * 3. 按更新时间字段追平复制期间的写入，随后旧索引禁写，再追平一次，并收集旧索引的全部 id；
+ * 4. 恢复新索引的刷新和副本设置并刷新，在新索引上打开 scroll 固定此刻的快照，
+ * 一次 _aliases 请求把读别名切到新索引、同时删除旧索引；
+ * 5. 按快照逐页找出旧索引中已不存在的文档（复制期间被删除），带 if_seq_no 从新索引删除，
+ * 切换后被应用重新写入的同 id 文档版本已变，不会被误删。
+ * <p>
+ * 切换之前任何一步失败或被取消都会删除新索引、解除旧索引的禁写，查询始终不受影响。
+ * 禁写从最后一次追平开始到切换为止，包括扫描旧索引全部 id 的时间，窗口的起止时间记录在进度中，
+ * 也可由 {@link #isWriteBlocked} 查询；期间写入会收到 403，批量写入和合并更新会排队到窗口结束后重试，
+ * 其他直接写入由调用方处理。旧索引的 id 集合在内存中，索引很大时注意堆大小。
+ *
+ * @author Steven
+ * @date 2021-02-06
+ */
+@Slf4j
+@Service
+public class ReindexServiceImpl implements IReindexService {
+
+    private static final DateTimeFormatter VERSION = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String AUTO_EXPAND_REPLICAS = "index.auto_expand_replicas";
+
+    private static final String BLOCKS_WRITE = "index.blocks.write";
+
+    /**
+     * 并行切片数，0 表示由 ES 按分片数决定
+     */
+    @Value("${reindex.slices:0}")
+    private int slices;
+
+    /**
+     * 每秒复制的文档数上限，小于等于 0 表示不限速
+     */
+    @Value("${reindex.requests-per-second:5000}")
+    private float requestsPerSecond;
+
+    @Value("${reindex.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 判断文档是否在复制期间被修改的字段
+     */
+    @Value("${reindex.updated-field:DONE_DATE}")
+    private String updatedField;
+
+    /**
+     * 追平时向前多取的时间，覆盖应用服务器与 ES 之间的时钟偏差
+     */
+    @Value("${reindex.catch-up-margin:60000}")
+    private long catchUpMargin;
+
+    @Value("${reindex.poll-interval:1000}")
+    private long pollInterval;
+
+    /**
+     * 新索引快照 scroll 的保持时间，需覆盖切换和逐页删除的间隔
+     */
+    @Value("${reindex.scroll-keep-alive:5m}")
+    private String scrollKeepAlive;
+
+    /**
+     * 同时执行的重建任务数，超出的排队
+     */
+    @Value("${reindex.threads:2}")
+    private int threads;
+
+    /**
+     * 等待执行的重建任务数上限，超出时提交返回 503
+     */
+    @Value("${reindex.queue-capacity:4}")
+    private int queueCapacity;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private IIndexService indexService;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    @Autowired
+    private LocalReplicaService localReplicaService;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    /**
+     * 重建任务，完成后保留一天供查询
+     */
+    private final Cache<String, ReindexProgress> tasks = Caffeine.newBuilder()
+        .expireAfterWrite(1, TimeUnit.DAYS)
+        .build();
+
+    /**
+     * 正在重建的别名，同一别名同时只允许一个任务
+     */
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 处于禁写窗口的别名和旧索引名
+     */
+    private final Set<String> writeBlocked = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> new Thread(r, "Reindex-" + threadNumber.incrementAndGet()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public ReindexProgress submit(String alias) {
+        if (!running.add(alias)) {
+            throw new IllegalStateException("索引正在重建: " + alias);
+        }
+        ReindexProgress progress = new ReindexProgress(UUID.randomUUID().toString(), alias);
+        tasks.put(progress.getTaskId(), progress);
+        try {
+            executor.execute(() -> {
+                try {
+                    run(progress);
+                } finally {
+                    running.remove(alias);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.remove(alias);
+            tasks.invalidate(progress.getTaskId());
+            throw new RejectedExecutionException("重建任务已满，执行中 " + threads + " 个、排队 " + queueCapacity + " 个，请稍后重试");
+        } catch (RuntimeException e) {
+            running.remove(alias);
+            tasks.invalidate(progress.getTaskId());
+            throw e;
+        }
+        return progress;
+    }
+
+    @Override
+    public boolean isWriteBlocked(String index) {
+        return writeBlocked.contains(index);
+    }
+
+    @Override
+    public ReindexProgress progress(String taskId) {
+        return tasks.getIfPresent(taskId);
+    }
+
+    @Override
+    public boolean cancel(String taskId) {
+        ReindexProgress progress = tasks.getIfPresent(taskId);
+        if (null == progress || progress.getStatus() != ReindexProgress.Status.RUNNING
+            || progress.getPhase().compareTo(ReindexProgress.Phase.SWAP) >= 0) {
+            return false;
+        }
+        progress.cancel();
+        return true;
+    }
+
+    private void run(ReindexProgress progress) {
+        String alias = progress.getAlias();
+        boolean blocked = false;
+        boolean swapped = false;
+        ReindexProgress.Status status = ReindexProgress.Status.DONE;
+        String error = null;
+        try {
+            String source = resolveSource(alias);
+            String target = alias + "-v" + VERSION.format(LocalDateTime.now());
+            progress.setSource(source);
+            progress.setTarget(target);
+            log.info("重建索引开始: {}，{} -> {}", alias, source, target);
+
+            // 新索引按模板以 0 副本创建，切换后应恢复为旧索引的副本设置
+            Settings replicas = replicas(source);
+            restHighLevelClient.indices().create(indexService.createIndexRequest(target), RequestOptions.DEFAULT);
+            putSettings(target, Settings.builder().put(REFRESH_INTERVAL, "-1").put(NUMBER_OF_REPLICAS, 0).build());
+
+            long copyStart = System.currentTimeMillis();
+            progress.setPhase(ReindexProgress.Phase.COPY);
+            progress.setCopied(copy(progress, source, target, null));
+
+            long catchUpStart = System.currentTimeMillis();
+            progress.setPhase(ReindexProgress.Phase.CATCH_UP);
+            long caughtUp = copy(progress, source, target, changedSince(copyStart));
+
+            progress.setPhase(ReindexProgress.Phase.FINAL_CATCH_UP);
+            // 先登记再禁写，写入方收到 403 时一定能查到窗口
+            writeBlocked.add(alias);
+            writeBlocked.add(source);
+            progress.setWriteBlockedAt(System.currentTimeMillis());
+            blocked = true;
+            putSettings(source, Settings.builder().put(BLOCKS_WRITE, true).build());
+            caughtUp += copy(progress, source, target, changedSince(catchUpStart));
+            progress.setCaughtUp(caughtUp);
+
+            // 禁写后旧索引不再变化，此时的 id 集合就是切换时应有的文档
+            checkCancelled(progress);
+            ObjectHashSet<String> sourceIds = new ObjectHashSet<>();
+            ScrollUtils.scanIds(restHighLevelClient, source, sourceIds::add);
+
+            checkCancelled(progress);
+            putSettings(target, Settings.builder().putNull(REFRESH_INTERVAL).put(replicas).build());
+            restHighLevelClient.indices().refresh(new RefreshRequest(target), RequestOptions.DEFAULT);
+            TimeValue keepAlive = TimeValue.parseTimeValue(scrollKeepAlive, "reindex.scroll-keep-alive");
+            SearchResponse snapshot = openSnapshot(target, keepAlive);
+
+            progress.setPhase(ReindexProgress.Phase.SWAP);
+            try {
+                swap(alias, source, target);
+            } catch (Exception e) {
+                clearScroll(snapshot.getScrollId());
+                throw e;
+            }
+            swapped = true;
+            unblock(progress);
+            // 别名改指新索引，有效期按新索引的刷新间隔重新读取
+            searchResultCache.invalidateTtl();
+            searchResultCache.invalidate(alias);
+            localReplicaService.writtenAll(alias);
+
+            progress.setPhase(ReindexProgress.Phase.RECONCILE);
+            try {
+                progress.setReconciled(reconcileDeletes(alias, target, snapshot, keepAlive, sourceIds));
+                searchResultCache.invalidate(alias);
+            } catch (Exception e) {
+                // 已经切换，不能回滚；新索引中可能残留复制期间已删除的文档
+                log.error("重建索引: {}，切换后清理已删除文档失败", alias, e);
+                error = "切换完成，清理复制期间已删除的文档失败: " + e.getMessage();
+            }
+            progress.setPhase(ReindexProgress.Phase.FINISHED);
+        } catch (CancellationException e) {
+            status = ReindexProgress.Status.CANCELLED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = ReindexProgress.Status.CANCELLED;
+        } catch (Exception e) {
+            log.error("重建索引失败: {}", alias, e);
+            status = ReindexProgress.Status.FAILED;
+            error = e.getMessage();
+        }
+
+        if (ReindexProgress.Status.DONE != status && !swapped) {
+            rollback(progress, blocked);
+        }
+        if (blocked) {
+            unblock(progress);
+        }
+        progress.finish(status, error);
+        log.info("重建索引结束: {}，状态: {}，{} -> {}，复制: {}，追平: {}，清理: {}，禁写: {} ms，耗时: {} ms",
+            alias, status, progress.getSource(), progress.getTarget(), progress.getCopied(), progress.getCaughtUp(),
+            progress.getReconciled(), progress.getWriteUnblockedAt() - progress.getWriteBlockedAt(),
+            progress.getEndTime() - progress.getStartTime());
+    }
+
+    /**
+     * 别名指向的索引；首次执行时 alias 本身是索引
+     */
+    private String resolveSource(String alias) throws IOException {
+        GetAliasesResponse response = restHighLevelClient.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT);
+        Set<String> indices = response.getAliases().keySet();
+        if (indices.size() > 1) {
+            throw new IllegalStateException("别名指向多个索引: " + alias + " -> " + indices);
+        }
+        if (1 == indices.size()) {
+            return indices.iterator().next();
+        }
+        if (restHighLevelClient.indices().exists(new GetIndexRequest(alias), RequestOptions.DEFAULT)) {
+            return alias;
+        }
+        throw new IllegalStateException("索引不存在: " + alias);
+    }
+
+    private QueryBuilder changedSince(long time) {
+        return QueryBuilders.rangeQuery(updatedField).gte(time - catchUpMargin).format("epoch_millis");
+    }
+
+    /**
+     * 提交 reindex 任务并轮询到结束
+     *
+     * @return 新建和覆盖的文档数
+     */
+    private long copy(ReindexProgress progress, String source, String target, QueryBuilder query)
+        throws IOException, InterruptedException {
+        checkCancelled(progress);
+        ReindexRequest request = new ReindexRequest()
+            .setSourceIndices(source)
+            .setDestIndex(target)
+            .setSourceBatchSize(batchSize)
+            .setSlices(slices > 0 ? slices : AbstractBulkByScrollRequest.AUTO_SLICES)
+            .setRequestsPerSecond(requestsPerSecond > 0 ? requestsPerSecond : Float.POSITIVE_INFINITY)
+            .setRefresh(false);
+        if (null != query) {
+            request.setSourceQuery(query);
+        }
+        String esTaskId = restHighLevelClient.submitReindexTask(request, RequestOptions.DEFAULT).getTask();
+        progress.setEsTaskId(esTaskId);
+
+        while (true) {
+            Map<String, Object> task = getTask(esTaskId);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> taskStatus = (Map<String, Object>) ((Map<String, Object>) task.get("task")).get("status");
+            progress.setTotal(longValue(taskStatus, "total"));
+            progress.setCreated(longValue(taskStatus, "created"));
+            progress.setUpdated(longValue(taskStatus, "updated"));
+            progress.setBatches(longValue(taskStatus, "batches"));
+
+            if (Boolean.TRUE.equals(task.get("completed"))) {
+                checkFailures(esTaskId, task);
+                return progress.getCreated() + progress.getUpdated();
+            }
+            if (progress.isCancelRequested()) {
+                cancelTask(esTaskId);
+                throw new CancellationException();
+            }
+            Thread.sleep(pollInterval);
+        }
+    }
+
+    /**
+     * 高级客户端不解析已完成任务的 response 和 error，直接读 _tasks 的原始 JSON
+     */
+    private Map<String, Object> getTask(String esTaskId) throws IOException {
+        Response response = restHighLevelClient.getLowLevelClient().performRequest(new Request("GET", "/_tasks/" + esTaskId));
+        try (InputStream in = response.getEntity().getContent()) {
+            return XContentHelper.convertToMap(XContentType.JSON.xContent(), in, false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void checkFailures(String esTaskId, Map<String, Object> task) {
+        if (null != task.get("error")) {
+            throw new IllegalStateException("reindex 任务失败: " + esTaskId + "，" + task.get("error"));
+        }
+        Map<String, Object> response = (Map<String, Object>) task.get("response");
+        if (null == response) {
+            return;
+        }
+        List<Object> failures = (List<Object>) response.get("failures");
+        if (null != failures && !failures.isEmpty()) {
+            throw new IllegalStateException("reindex 任务有 " + failures.size() + " 个失败，首个: " + failures.get(0));
+        }
+        if (Boolean.TRUE.equals(response.get("timed_out"))) {
+            throw new IllegalStateException("reindex 任务超时: " + esTaskId);
+        }
+    }
+
+    private void cancelTask(String esTaskId) {
+        try {
+            CancelTasksRequest request = new CancelTasksRequest.Builder()
+                .withTaskId(new TaskId(esTaskId))
+                .build();
+            restHighLevelClient.tasks().cancel(request, RequestOptions.DEFAULT);
+        } catch (Exception e) {
+            log.warn("取消 reindex 任务失败: {}", esTaskId, e);
+        }
+    }
+
+    private void checkCancelled(ReindexProgress progress) {
+        if (progress.isCancelRequested()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * 读别名切到新索引，旧索引在同一个请求中删除；首次执行时旧索引与别名同名，只能用 remove_index
+     */
+    private void swap(String alias, String source, String target) throws IOException {
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        request.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(target).alias(alias));
+        request.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(source));
+        restHighLevelClient.indices().updateAliases(request, RequestOptions.DEFAULT);
+        log.info("读别名已切换: {}，{} -> {}，旧索引已删除", alias, source, target);
+    }
+
+    private void unblock(ReindexProgress progress) {
+        writeBlocked.remove(progress.getAlias());
+        writeBlocked.remove(progress.getSource());
+        if (0 == progress.getWriteUnblockedAt()) {
+            progress.setWriteUnblockedAt(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 在新索引上打开 scroll，固定切换前的内容
+     */
+    private SearchResponse openSnapshot(String target, TimeValue keepAlive) throws IOException {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+            .query(QueryBuilders.matchAllQuery())
+            .fetchSource(false)
+            .seqNoAndPrimaryTerm(true)
+            .size(batchSize)
+            .sort("_doc", SortOrder.ASC);
+        return restHighLevelClient.search(new SearchRequest(target).source(searchSourceBuilder).scroll(keepAlive), RequestOptions.DEFAULT);
+    }
+
+    /**
+     * 按切换前的快照删除新索引中、旧索引已不存在的文档
+     *
+     * @return 删除的文档数
+     */
+    private long reconcileDeletes(String alias, String target, SearchResponse snapshot, TimeValue keepAlive,
+                                  ObjectHashSet<String> sourceIds) throws IOException {
+        long deleted = 0;
+        SearchResponse response = snapshot;
+        String scrollId = response.getScrollId();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                BulkRequest bulkRequest = new BulkRequest();
+                for (SearchHit hit : response.getHits().getHits()) {
+                    if (!sourceIds.contains(hit.getId())) {
+                        bulkRequest.add(new DeleteRequest(target, hit.getId())
+                            .setIfSeqNo(hit.getSeqNo())
+                            .setIfPrimaryTerm(hit.getPrimaryTerm()));
+                    }
+                }
+                if (bulkRequest.numberOfActions() > 0) {
+                    BulkResponse bulkResponse = restHighLevelClient.bulk(bulkRequest, RequestOptions.DEFAULT);
+                    for (BulkItemResponse item : bulkResponse.getItems()) {
+                        if (!item.isFailed()) {
+                            deleted++;
+                            documentCache.evict(alias, item.getId(), item.getVersion());
+                            localReplicaService.written(alias, item.getId());
+                        } else if (RestStatus.CONFLICT != item.status()) {
+                            log.warn("重建索引: {}，清理已删除文档失败，id: {}，原因: {}", alias, item.getId(), item.getFailureMessage());
+                        }
+                    }
+                }
+                response = restHighLevelClient.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), RequestOptions.DEFAULT);
+                scrollId = response.getScrollId();
+            }
+        } finally {
+            clearScroll(scrollId);
+        }
+        if (deleted > 0) {
+            log.info("重建索引: {}，已从新索引删除复制期间删除的文档 {} 个", alias, deleted);
+        }
+        return deleted;
+    }
+
+    private void clearScroll(String scrollId) {
+        try {
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            restHighLevelClient.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+        } catch (Exception e) {
+            log.warn("清除 scroll 失败", e);
+        }
+    }
+
+    /**
+     * 切换前失败或取消：删除新索引，解除旧索引禁写
+     */
+    private void rollback(ReindexProgress progress, boolean blocked) {
+        String target = progress.getTarget();
+        if (blocked) {
+            try {
+                putSettings(progress.getSource(), Settings.builder().putNull(BLOCKS_WRITE).build());
+            } catch (Exception e) {
+                log.error("解除禁写失败，请手动处理: {}", progress.getSource(), e);
+            }
+        }
+        if (null == target) {
+            return;
+        }
+        try {
+            if (restHighLevelClient.indices().exists(new GetIndexRequest(target), RequestOptions.DEFAULT)) {
+                restHighLevelClient.indices().delete(new DeleteIndexRequest(target), RequestOptions.DEFAULT);
+                log.info("已删除未完成的新索引: {}", target);
+            }
+        } catch (Exception e) {
+            log.error("删除未完成的新索引失败，请手动处理: {}", target, e);
+        }
+    }
+
+    /**
+     * 旧索引的副本数，设置了 auto_expand_replicas 时一并带上
+     */
+    private Settings replicas(String index) throws IOException {
+        GetSettingsResponse response = restHighLevelClient.indices()
+            .getSettings(new GetSettingsRequest().indices(index), RequestOptions.DEFAULT);
+        String replicas = response.getSetting(index, NUMBER_OF_REPLICAS);
+        Settings.Builder builder = Settings.builder().put(NUMBER_OF_REPLICAS, null == replicas ? "1" : replicas);
+        String autoExpand = response.getSetting(index, AUTO_EXPAND_REPLICAS);
+        if (null != autoExpand && !"false".equals(autoExpand)) {
+            builder.put(AUTO_EXPAND_REPLICAS, autoExpand);
+        }
+        return builder.build();
+    }
+
+    private void putSettings(String index, Settings settings) throws IOException {
+        restHighLevelClient.indices().putSettings(new UpdateSettingsRequest(index).settings(settings), RequestOptions.DEFAULT);
+        searchResultCache.invalidateTtl();
+    }
+
+    private static long longValue(Map<String, Object> map, String key) {
+        Object value = null == map ? null : map.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -1,12 +1,28 @@
 package com.steven.topsail.demo.quickstart.service.impl;
 
+import com.steven.topsail.demo.quickstart.async.EsAsyncExecutor;
+import com.steven.topsail.demo.quickstart.async.HedgedReader;
+import com.steven.topsail.demo.quickstart.batch.MultiGetBatcher;
+import com.steven.topsail.demo.quickstart.batch.UpdateCoalescer;
+import com.steven.topsail.demo.quickstart.bloom.IdBloomFilter;
+import com.steven.topsail.demo.quickstart.cache.CachedDocument;
+import com.steven.topsail.demo.quickstart.cache.CachedSearchResponse;
+import com.steven.topsail.demo.quickstart.cache.DocumentCache;
+import com.steven.topsail.demo.quickstart.cache.DocumentKey;
+import com.steven.topsail.demo.quickstart.cache.SearchResultCache;
+import com.steven.topsail.demo.quickstart.codec.JsonDocumentWriter;
+import com.steven.topsail.demo.quickstart.model.BulkIngestStats;
+import com.steven.topsail.demo.quickstart.model.DeleteProgress;
+import com.steven.topsail.demo.quickstart.replica.LocalReplicaService;
+import com.steven.topsail.demo.quickstart.service.IBulkDeleteService;
+import com.steven.topsail.demo.quickstart.service.IBulkIngestService;
 import com.steven.topsail.demo.quickstart.service.ISearchService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.RandomStringUtils;
-import org.elasticsearch.action.ActionListener;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
 import org.elasticsearch.action.DocWriteResponse;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.*;
@@ -14,22 +30,28 @@ import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.support.ActiveShardCount;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.UUIDs;
 import org.elasticsearch.common.unit.Fuzziness;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.get.GetResult;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
-import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
@@ -37,11 +59,20 @@ import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Steven
@@ -52,9 +83,56 @@ public class SearchServiceImpl implements ISearchService {
 
     private static final int DEMO_NUMBER = 100;
 
+    public static final String FUNCTION_INDEX = "sec_function";
+
+    private static final String ARTICLE_INDEX = "article-2019.08.08.03";
+
+    private static final JsonDocumentWriter.Field USER = JsonDocumentWriter.Field.of("user");
+    private static final JsonDocumentWriter.Field DATE = JsonDocumentWriter.Field.of("date");
+    private static final JsonDocumentWriter.Field MESSAGE = JsonDocumentWriter.Field.of("message");
+
+    @Value("${batch.get.enabled:true}")
+    private boolean batchGetEnabled;
+
+    @Value("${batch.get.timeout:5000}")
+    private long batchGetTimeout;
+
     @Autowired
     private RestHighLevelClient restHighLevelClient;
 
+    @Autowired
+    private IBulkIngestService bulkIngestService;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private MultiGetBatcher multiGetBatcher;
+
+    @Autowired
+    private IBulkDeleteService bulkDeleteService;
+
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    @Autowired
+    private EsAsyncExecutor esAsyncExecutor;
+
+    @Autowired
+    private HedgedReader hedgedReader;
+
+    @Autowired
+    private LocalReplicaService localReplicaService;
+
+    @Autowired
+    private ThreadPoolTaskExecutor jobExecutor;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    @Autowired
+    private UpdateCoalescer updateCoalescer;
+
     @Override
     public void indexRequest() throws IOException {
         /** 从 json 字符串索引数据 */
@@ -66,7 +144,10 @@ public class SearchServiceImpl implements ISearchService {
             "}";
         indexRequest1.source(jsonString, XContentType.JSON);
         indexRequest1.id("10000");
+        idBloomFilter.put(indexRequest1.index(), indexRequest1.id());
         IndexResponse indexResponse1 = restHighLevelClient.index(indexRequest1, RequestOptions.DEFAULT);
+        documentCache.evict(indexRequest1.index(), indexRequest1.id(), indexResponse1.getVersion());
+        localReplicaService.written(indexRequest1.index(), indexRequest1.id());
         displayIndexResponse(indexResponse1);
 
         /** 从 map 对象索引数据 */
@@ -77,7 +158,10 @@ public class SearchServiceImpl implements ISearchService {
         jsonMap.put("message", "王婆卖瓜越卖越夸");
         indexRequest2.source(jsonMap);
         indexRequest2.id("10001");
+        idBloomFilter.put(indexRequest2.index(), indexRequest2.id());
         IndexResponse indexResponse2 = restHighLevelClient.index(indexRequest2, RequestOptions.DEFAULT);
+        documentCache.evict(indexRequest2.index(), indexRequest2.id(), indexResponse2.getVersion());
+        localReplicaService.written(indexRequest2.index(), indexRequest2.id());
         displayIndexResponse(indexResponse2);
 
         /** 使用 XContentBuilder 创建对象索引数据 */
@@ -90,7 +174,11 @@ public class SearchServiceImpl implements ISearchService {
         xContentBuilder.endObject();
         indexRequest3.source(xContentBuilder);
         indexRequest3.id("10002");
+        idBloomFilter.put(indexRequest3.index(), indexRequest3.id());
         IndexResponse indexResponse3 = restHighLevelClient.index(indexRequest3, RequestOptions.DEFAULT);
+        documentCache.evict(indexRequest3.index(), indexRequest3.id(), indexResponse3.getVersion());
+        localReplicaService.written(indexRequest3.index(), indexRequest3.id());
+        searchResultCache.invalidate("posts");
         displayIndexResponse(indexResponse3);
 
     }
@@ -131,11 +219,29 @@ public class SearchServiceImpl implements ISearchService {
 
     @Override
     public void isExist() throws IOException {
-        GetRequest getRequest = new GetRequest("posts", "10001");
+        log.info("isExist: {}", isExist("posts", "10001"));
+    }
+
+    /**
+     * 判断文档是否存在，布隆过滤器判定不存在时不再访问 ES
+     *
+     * @param indexName
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    public boolean isExist(String indexName, String id) throws IOException {
+        if (!idBloomFilter.mightContain(indexName, id)) {
+            return false;
+        }
+        GetRequest getRequest = new GetRequest(indexName, id);
         getRequest.fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
 
         boolean exists = restHighLevelClient.exists(getRequest, RequestOptions.DEFAULT);
-        log.info("isExist: {}", exists);
+        if (!exists) {
+            idBloomFilter.recordFalsePositive(indexName);
+        }
+        return exists;
     }
 
     @Override
@@ -144,114 +250,342 @@ public class SearchServiceImpl implements ISearchService {
         deleteRequest.timeout(TimeValue.timeValueSeconds(2));
         deleteRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
         DeleteResponse deleteResponse = restHighLevelClient.delete(deleteRequest, RequestOptions.DEFAULT);
+        documentCache.refresh(deleteRequest.index(), deleteRequest.id(), CachedDocument.missing(deleteResponse.getVersion()));
+        searchResultCache.invalidate(deleteRequest.index());
+        localReplicaService.written(deleteRequest.index(), deleteRequest.id());
         log.info("deleteResponse: {}", deleteResponse.getResult());
     }
 
     @Override
     public void update() throws IOException {
-        UpdateRequest updateRequest = new UpdateRequest("posts", "10001");
         Map<String, Object> map = new HashMap<>(6);
         map.put("date", new Date());
         map.put("sec", "female");
+        if (updateCoalescer.isEnabled()) {
+            partialUpdate("posts", "10001", map);
+            return;
+        }
+        UpdateRequest updateRequest = new UpdateRequest("posts", "10001");
         updateRequest.doc(map);
+        updateRequest.fetchSource(true);
         UpdateResponse updateResponse = restHighLevelClient.update(updateRequest, RequestOptions.DEFAULT);
+        refreshCache(updateRequest.index(), updateRequest.id(), updateResponse);
         log.info("updateResponse: {}", updateResponse.getResult());
     }
 
     /**
-     * 生成模拟数据
+     * 局部更新，开启 write-behind 时交给更新合并器，与窗口内同一文档的其他更新合并后发送
+     *
+     * @param indexName
+     * @param id
+     * @param fields
+     * @return 更新被 ES 确认时完成
+     */
+    @Override
+    public CompletableFuture<Void> partialUpdate(String indexName, String id, Map<String, Object> fields) {
+        if (updateCoalescer.isEnabled()) {
+            return updateCoalescer.update(indexName, id, fields);
+        }
+        UpdateRequest updateRequest = new UpdateRequest(indexName, id).doc(fields).fetchSource(true);
+        return esAsyncExecutor.<UpdateResponse>execute("update " + indexName,
+            listener -> restHighLevelClient.updateAsync(updateRequest, RequestOptions.DEFAULT, listener))
+            .thenAccept(updateResponse -> refreshCache(indexName, id, updateResponse));
+    }
+
+    /**
+     * 生成模拟数据，全部写请求异步并发发出，受 EsAsyncExecutor 的在途上限约束
      *
-     * @throws Exception
+     * @return 写入成功的文档数
      */
     @Override
-    public void createDemoData() throws Exception {
+    public CompletableFuture<Integer> createDemoData() {
         long start = System.currentTimeMillis();
+        JsonDocumentWriter writer = new JsonDocumentWriter();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(DEMO_NUMBER);
         for (int i = 0; i < DEMO_NUMBER; i++) {
-            IndexRequest indexRequest = new IndexRequest("posts");
-            Map<String, Object> jsonMap = new HashMap<>(6);
-            jsonMap.put("user", RandomStringUtils.randomAlphabetic(8));
-            jsonMap.put("date", new Date());
-            jsonMap.put("message", RandomStringUtils.randomAlphabetic(16));
-            indexRequest.source(jsonMap);
-            indexRequest.id(UUID.randomUUID().toString());
-            IndexResponse indexResponse = restHighLevelClient.index(indexRequest, RequestOptions.DEFAULT);
-            Thread.sleep(10);
+            IndexRequest indexRequest = demoDocument(writer);
+            idBloomFilter.put(indexRequest.index(), indexRequest.id());
+            futures.add(esAsyncExecutor.<IndexResponse>execute("index " + indexRequest.index(),
+                listener -> restHighLevelClient.indexAsync(indexRequest, RequestOptions.DEFAULT, listener))
+                .handle((indexResponse, e) -> {
+                    if (null != e) {
+                        log.warn("模拟数据写入失败，id: {}", indexRequest.id(), e);
+                        return false;
+                    }
+                    documentCache.evict(indexRequest.index(), indexRequest.id(), indexResponse.getVersion());
+                    localReplicaService.written(indexRequest.index(), indexRequest.id());
+                    return true;
+                }));
         }
-        long cost = System.currentTimeMillis() - start;
-        log.info("创建 {} 条模拟数据，耗时：{} ms", DEMO_NUMBER, cost);
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            searchResultCache.invalidate("posts");
+            int created = 0;
+            for (CompletableFuture<Boolean> future : futures) {
+                if (future.join()) {
+                    created++;
+                }
+            }
+            log.info("创建 {} 条模拟数据，成功 {} 条，耗时：{} ms", DEMO_NUMBER, created, System.currentTimeMillis() - start);
+            return created;
+        });
     }
 
     @Override
     public void multiGet() throws IOException {
-        MultiGetRequest multiGetRequest = new MultiGetRequest();
-        multiGetRequest.add(new MultiGetRequest.Item("posts", "10000"));
-        multiGetRequest.add(new MultiGetRequest.Item("posts", "10001"));
-        MultiGetResponse mget = restHighLevelClient.mget(multiGetRequest, RequestOptions.DEFAULT);
-        for (MultiGetItemResponse response : mget.getResponses()) {
-            Map<String, Object> source = response.getResponse().getSource();
+        Map<String, Map<String, Object>> docs = multiGet("posts", Arrays.asList("10000", "10001"));
+        for (Map<String, Object> source : docs.values()) {
             System.out.println(source);
         }
     }
 
     /**
-     * 采用 Bulk API 生成模拟数据
+     * 批量获取文档，已缓存的直接返回，其余通过一次 mget 加载并写入缓存
      *
-     * @throws Exception
+     * @param indexName
+     * @param ids
+     * @return id -> source，不存在的文档 source 为 null
+     * @throws IOException
      */
-    @Override
-    public void createDemoDataBulk() throws Exception {
-
-        for (int i = 0; i < 10; i++) {
-            long start = System.currentTimeMillis();
-            BulkRequest bulkRequest = new BulkRequest();
-            for (int j = 0; j < 10000; j++) {
-                IndexRequest indexRequest = new IndexRequest("posts");
-                Map<String, Object> jsonMap = new HashMap<>(6);
-                jsonMap.put("user", RandomStringUtils.randomAlphabetic(8));
-                jsonMap.put("date", new Date());
-                jsonMap.put("message", RandomStringUtils.randomAlphabetic(16));
-                indexRequest.source(jsonMap);
-                indexRequest.id(UUID.randomUUID().toString());
-                bulkRequest.add(indexRequest);
+    public Map<String, Map<String, Object>> multiGet(String indexName, List<String> ids) throws IOException {
+        try {
+            return multiGetAsync(indexName, ids).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("批量获取文档被中断: " + indexName);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw new IOException("批量获取文档失败: " + indexName, e.getCause());
+        }
+    }
+
+    /**
+     * 异步批量获取文档，已缓存的直接返回，其余通过一次 mgetAsync 加载并写入缓存
+     *
+     * @param indexName
+     * @param ids
+     * @return id -> source，不存在的文档 source 为 null
+     */
+    public CompletableFuture<Map<String, Map<String, Object>>> multiGetAsync(String indexName, List<String> ids) {
+        List<DocumentKey> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(new DocumentKey(indexName, id));
+        }
+        Map<DocumentKey, CachedDocument> cached = documentCache.getAllPresent(keys);
+
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>(ids.size());
+        List<String> missing = new ArrayList<>();
+        for (DocumentKey key : keys) {
+            CachedDocument doc = cached.get(key);
+            if (null == doc && !idBloomFilter.mightContain(indexName, key.getId())) {
+                result.put(key.getId(), null);
+            } else if (null != doc) {
+                result.put(key.getId(), updateCoalescer.overlay(indexName, key.getId(), doc.getSource()));
+            } else {
+                result.put(key.getId(), null);
+                missing.add(key.getId());
+            }
+        }
 
-            /** 在批量操作前要求全部分片都处于激活状态 */
-            bulkRequest.waitForActiveShards(ActiveShardCount.ALL);
-            BulkResponse bulk = restHighLevelClient.bulk(bulkRequest, RequestOptions.DEFAULT);
-            long cost = System.currentTimeMillis() - start;
-            log.info("批量创建 {} 条模拟数据，耗时：{} ms", 10000, cost);
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
         }
+        return hedgedReader.<MultiGetResponse>read("mget " + indexName, (preference, listener) -> {
+            MultiGetRequest multiGetRequest = new MultiGetRequest().preference(preference);
+            for (String id : missing) {
+                multiGetRequest.add(new MultiGetRequest.Item(indexName, id));
+            }
+            return restHighLevelClient.mgetAsync(multiGetRequest, RequestOptions.DEFAULT, listener);
+        }).thenApply(mget -> {
+                for (MultiGetItemResponse response : mget.getResponses()) {
+                    if (response.isFailed()) {
+                        log.warn("mget 失败，index: {}，id: {}，原因: {}", response.getIndex(), response.getId(), response.getFailure().getMessage());
+                        continue;
+                    }
+                    CachedDocument doc = toCachedDocument(response.getResponse());
+                    // 响应中是实际索引名，缓存、过滤器、合并器都按调用方的索引名（可能是别名）记录
+                    if (null == doc.getSource()) {
+                        idBloomFilter.recordFalsePositive(indexName);
+                    }
+                    documentCache.refresh(indexName, response.getId(), doc);
+                    result.put(response.getId(), updateCoalescer.overlay(indexName, response.getId(), doc.getSource()));
+                }
+                return result;
+            });
+    }
 
+    /**
+     * 采用 Bulk API 生成模拟数据，交由批量写入服务攒批、并发发送。
+     * 批量写入服务满载时 add 会阻塞，生产过程放在 jobExecutor 中执行，等待写完不占线程
+     *
+     * @return 写入统计
+     */
+    @Override
+    public CompletableFuture<BulkIngestStats> createDemoDataBulk() {
+        long start = System.currentTimeMillis();
+        return CompletableFuture.runAsync(() -> {
+            JsonDocumentWriter writer = new JsonDocumentWriter();
+            try {
+                for (int i = 0; i < 10; i++) {
+                    for (int j = 0; j < 10000; j++) {
+                        bulkIngestService.add(demoDocument(writer));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, jobExecutor).thenCompose(v -> bulkIngestService.flushAsync()).thenApply(v -> {
+            BulkIngestStats stats = bulkIngestService.stats();
+            log.info("批量创建 {} 条模拟数据，耗时：{} ms，统计：{}", 100000, System.currentTimeMillis() - start, stats);
+            return stats;
+        });
+    }
+
+    /**
+     * 生成一条模拟数据，字段直接编码成 JSON 字节，不经过 Map；id 使用 ES 的时间序 id
+     *
+     * @param writer
+     * @return
+     */
+    private IndexRequest demoDocument(JsonDocumentWriter writer) {
+        return writer.start()
+            .field(USER, RandomStringUtils.randomAlphabetic(8))
+            .dateField(DATE, System.currentTimeMillis())
+            .field(MESSAGE, RandomStringUtils.randomAlphabetic(16))
+            .toIndexRequest("posts", UUIDs.base64UUID());
     }
 
     /**
      * 批量删除数据
      *
      * @param indexName
-     * @throws IOException
+     * @return 删除的文档数
      */
     @Override
-    public void deleteRecord(String indexName) throws IOException {
+    public CompletableFuture<Long> deleteRecord(String indexName) {
         DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(indexName);
         deleteByQueryRequest.setConflicts("proceed");
         RangeQueryBuilder rangeQueryBuilder = QueryBuilders.rangeQuery("date").lt(new Date());
         deleteByQueryRequest.setQuery(rangeQueryBuilder);
-        restHighLevelClient.deleteByQuery(deleteByQueryRequest, RequestOptions.DEFAULT);
+        return esAsyncExecutor.<BulkByScrollResponse>execute("delete_by_query " + indexName,
+            listener -> restHighLevelClient.deleteByQueryAsync(deleteByQueryRequest, RequestOptions.DEFAULT, listener))
+            .thenApply(response -> {
+                documentCache.evictIndex(indexName);
+                searchResultCache.invalidate(indexName);
+                localReplicaService.writtenAll(indexName);
+                return response.getDeleted();
+            });
     }
 
     /**
-     * 获取指定index和id的 数据
+     * 获取指定index和id的 数据，优先读文档缓存，叠加尚未发送的合并更新
      *
      * @param indexName
      * @param id
      * @return
      */
     public Map<String, Object> getNameById(String indexName, String id) throws IOException {
-        GetRequest getRequest = new GetRequest(indexName, id);
-        GetResponse getResponse = restHighLevelClient.get(getRequest, RequestOptions.DEFAULT);
-        Map<String, Object> source = getResponse.getSource();
-        System.out.println("查询结果: " + source);
-        return source;
+        if (!idBloomFilter.mightContain(indexName, id)) {
+            return null;
+        }
+        try {
+            Map<String, Object> source = updateCoalescer.overlay(indexName, id,
+                documentCache.get(indexName, id, this::loadDocument).getSource());
+            log.debug("查询结果: {}", source);
+            return source;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 异步获取文档：布隆过滤器、文档缓存命中时直接返回，否则经 get 合并器（或 getAsync）加载
+     *
+     * @param indexName
+     * @param id
+     * @return
+     */
+    public CompletableFuture<Map<String, Object>> getNameByIdAsync(String indexName, String id) {
+        if (!idBloomFilter.mightContain(indexName, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CachedDocument cached = documentCache.getIfPresent(indexName, id);
+        if (null != cached) {
+            return CompletableFuture.completedFuture(updateCoalescer.overlay(indexName, id, cached.getSource()));
+        }
+        CompletableFuture<GetResponse> future;
+        if (batchGetEnabled) {
+            future = esAsyncExecutor.limit("get " + indexName, () -> multiGetBatcher.get(indexName, id));
+        } else {
+            future = hedgedReader.read("get " + indexName, (preference, listener) ->
+                restHighLevelClient.getAsync(new GetRequest(indexName, id).preference(preference), RequestOptions.DEFAULT, listener));
+        }
+        return future.thenApply(getResponse -> {
+            if (!getResponse.isExists()) {
+                idBloomFilter.recordFalsePositive(indexName);
+            }
+            CachedDocument doc = toCachedDocument(getResponse);
+            documentCache.refresh(indexName, id, doc);
+            return updateCoalescer.overlay(indexName, id, doc.getSource());
+        });
+    }
+
+    /**
+     * 缓存未命中时加载文档，开启合并时与同一时间窗口内的其他查询合并成一次 _mget
+     *
+     * @param key
+     * @return
+     */
+    private CachedDocument loadDocument(DocumentKey key) {
+        try {
+            GetResponse getResponse;
+            if (batchGetEnabled) {
+                getResponse = multiGetBatcher.get(key.getIndex(), key.getId()).get(batchGetTimeout, TimeUnit.MILLISECONDS);
+            } else {
+                getResponse = restHighLevelClient.get(new GetRequest(key.getIndex(), key.getId()), RequestOptions.DEFAULT);
+            }
+            if (!getResponse.isExists()) {
+                idBloomFilter.recordFalsePositive(key.getIndex());
+            }
+            return toCachedDocument(getResponse);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("获取文档被中断: " + key));
+        } catch (ExecutionException | TimeoutException e) {
+            throw new UncheckedIOException(new IOException("获取文档失败: " + key, e));
+        }
+    }
+
+    private CachedDocument toCachedDocument(GetResponse getResponse) {
+        if (!getResponse.isExists()) {
+            return CachedDocument.missing(-1);
+        }
+        int sourceBytes = null == getResponse.getSourceInternal() ? 0 : getResponse.getSourceInternal().length();
+        return CachedDocument.of(getResponse.getVersion(), getResponse.getSource(), sourceBytes);
+    }
+
+    /**
+     * 用 update 返回的最新文档刷新缓存，未返回文档时直接剔除
+     *
+     * @param indexName 请求中的索引名
+     * @param id
+     * @param updateResponse
+     */
+    private void refreshCache(String indexName, String id, UpdateResponse updateResponse) {
+        searchResultCache.invalidate(indexName);
+        localReplicaService.written(indexName, id);
+        GetResult getResult = updateResponse.getGetResult();
+        if (null != getResult && getResult.isExists()) {
+            int sourceBytes = null == getResult.internalSourceRef() ? 0 : getResult.internalSourceRef().length();
+            documentCache.refresh(indexName, id,
+                CachedDocument.of(updateResponse.getVersion(), getResult.sourceAsMap(), sourceBytes));
+        } else {
+            documentCache.evict(indexName, id, updateResponse.getVersion());
+        }
     }
 
     /**
@@ -263,48 +597,173 @@ public class SearchServiceImpl implements ISearchService {
      */
     @Override
     public void search() throws IOException {
+        CachedSearchResponse local = localReplicaService.search(FUNCTION_INDEX, functionSearchSource("备卡激活", 0, 5), null);
+        if (null != local) {
+            log.info("本地副本查询结果: {}", new String(local.getBody(), StandardCharsets.UTF_8));
+            return;
+        }
+
+        SearchRequest searchRequest = new SearchRequest(FUNCTION_INDEX);
+        searchRequest.source(functionSearchSource("备卡激活", 0, 5));
+        SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+        SearchHits searchHits = searchResponse.getHits();
+
+        log.info("HTTP状态码: {}，查询时间: {} ms，是否超时: {}，查询命中数量: {}，最大分值: {}",
+            searchResponse.status().getStatus(),
+            searchResponse.getTook().getMillis(),
+            searchResponse.isTimedOut(),
+            searchHits.getTotalHits().value,
+            searchHits.getMaxScore()
+        );
+
+        for (SearchHit searchHit : searchHits.getHits()) {
+            Map<String, HighlightField> highlightFields = searchHit.getHighlightFields();
+            HighlightField funcName = highlightFields.get("FUNC_NAME");
+            Map<String, Object> source = searchHit.getSourceAsMap();
+            //log.info("{}", funcName.getFragments());
+            log.info("{}", source);
+        }
+    }
 
+    /**
+     * 菜单模糊查询条件：FUNC_NAME 模糊匹配并高亮
+     *
+     * @param content 搜索词
+     * @param from
+     * @param size
+     * @return
+     */
+    public SearchSourceBuilder functionSearchSource(String content, int from, int size) {
         HighlightBuilder highlightBuilder = new HighlightBuilder();
         HighlightBuilder.Field highlightField = new HighlightBuilder.Field("FUNC_NAME");
         highlightBuilder.field(highlightField);
         highlightBuilder.preTags("<span style='color:red'>");
         highlightBuilder.postTags("</span>");
 
-        SearchRequest searchRequest = new SearchRequest("sec_function");
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         QueryBuilder queryBuilder = QueryBuilders
-            .matchQuery("FUNC_NAME", "备卡激活")
+            .matchQuery("FUNC_NAME", content)
             .fuzziness(Fuzziness.AUTO)
             .prefixLength(3)
             .maxExpansions(10);
         searchSourceBuilder.query(queryBuilder);
-        searchSourceBuilder.from(0);
-        searchSourceBuilder.size(5);
+        searchSourceBuilder.from(from);
+        searchSourceBuilder.size(size);
         searchSourceBuilder.fetchSource(
             new String[]{"MODULE_TYPE", "FUNC_NAME", "FUN_SEQ", "FUNC_ID", "FUNC_LEVEL", "PARENT_FUNC_ID"},
             new String[]{"@timestamp", "@version"}
         );
         searchSourceBuilder.highlighter(highlightBuilder);
         searchSourceBuilder.timeout(new TimeValue(5, TimeUnit.SECONDS));
-        searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
-        SearchHits searchHits = searchResponse.getHits();
+        return searchSourceBuilder;
+    }
 
-        log.info("HTTP状态码: {}，查询时间: {} ms，是否超时: {}，查询命中数量: {}，最大分值: {}",
-            searchResponse.status().getStatus(),
-            searchResponse.getTook().getMillis(),
-            searchResponse.isTimedOut(),
-            searchHits.getTotalHits().value,
-            searchHits.getMaxScore()
-        );
+    /**
+     * 通过低级 RestClient 执行查询，返回未解析的原始响应，由调用方直接转发响应体字节
+     *
+     * @param index         索引名
+     * @param searchSource  查询条件
+     * @param filterPath    响应字段过滤（filter_path），为空时返回完整响应
+     * @return ES 原始响应，4xx/5xx 时同样返回而不抛出异常
+     * @throws IOException
+     */
+    public Response rawSearch(String index, SearchSourceBuilder searchSource, String filterPath) throws IOException {
+        Request request = new Request("POST", "/" + index + "/_search");
+        if (StringUtils.isNotEmpty(filterPath)) {
+            request.addParameter("filter_path", filterPath);
+        }
+        request.setJsonEntity(Strings.toString(searchSource));
+        try {
+            return restHighLevelClient.getLowLevelClient().performRequest(request);
+        } catch (ResponseException e) {
+            return e.getResponse();
+        }
+    }
 
-        for (SearchHit searchHit : searchHits.getHits()) {
-            Map<String, HighlightField> highlightFields = searchHit.getHighlightFields();
-            HighlightField funcName = highlightFields.get("FUNC_NAME");
-            Map<String, Object> source = searchHit.getSourceAsMap();
-            //log.info("{}", funcName.getFragments());
-            log.info("{}", source);
+    /**
+     * 带结果缓存的查询，相同条件的并发查询只有一个发往 ES；有本地副本的索引直接在本地执行
+     *
+     * @param index
+     * @param searchSource
+     * @param filterPath
+     * @return
+     * @throws IOException
+     */
+    public CachedSearchResponse cachedSearch(String index, SearchSourceBuilder searchSource, String filterPath) throws IOException {
+        CachedSearchResponse local = localReplicaService.search(index, searchSource, filterPath);
+        if (null != local) {
+            return local;
+        }
+        return searchResultCache.get(index, filterPath, searchSource,
+            ttlNanos -> toCachedSearchResponse(rawSearch(index, searchSource, filterPath), ttlNanos));
+    }
+
+    /**
+     * rawSearch 的异步版本，通过 performRequestAsync 发送，4xx/5xx 同样作为正常响应返回；
+     * 开启对冲读时慢于阈值的查询会带 preference 向另一个数据节点再发一次
+     *
+     * @param index
+     * @param searchSource
+     * @param filterPath
+     * @return
+     */
+    public CompletableFuture<Response> rawSearchAsync(String index, SearchSourceBuilder searchSource, String filterPath) {
+        String body = Strings.toString(searchSource);
+        return hedgedReader.<Response>read("search " + index, (preference, listener) -> {
+            Request request = new Request("POST", "/" + index + "/_search");
+            if (StringUtils.isNotEmpty(filterPath)) {
+                request.addParameter("filter_path", filterPath);
+            }
+            if (null != preference) {
+                request.addParameter("preference", preference);
+            }
+            request.setJsonEntity(body);
+            return restHighLevelClient.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    if (exception instanceof ResponseException) {
+                        listener.onResponse(((ResponseException) exception).getResponse());
+                    } else {
+                        listener.onFailure(exception);
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * cachedSearch 的异步版本，相同条件的并发查询共用一次请求
+     *
+     * @param index
+     * @param searchSource
+     * @param filterPath
+     * @return
+     */
+    public CompletableFuture<CachedSearchResponse> cachedSearchAsync(String index, SearchSourceBuilder searchSource, String filterPath) {
+        CachedSearchResponse local = localReplicaService.search(index, searchSource, filterPath);
+        if (null != local) {
+            return CompletableFuture.completedFuture(local);
         }
+        return searchResultCache.getAsync(index, filterPath, searchSource, ttlNanos ->
+            rawSearchAsync(index, searchSource, filterPath).thenApply(response -> {
+                try {
+                    return toCachedSearchResponse(response, ttlNanos);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+    }
+
+    private static CachedSearchResponse toCachedSearchResponse(Response response, long ttlNanos) throws IOException {
+        HttpEntity entity = response.getEntity();
+        String contentType = null == entity || null == entity.getContentType() ? null : entity.getContentType().getValue();
+        byte[] body = null == entity ? new byte[0] : EntityUtils.toByteArray(entity);
+        return new CachedSearchResponse(response.getStatusLine().getStatusCode(), contentType, body, ttlNanos);
     }
 
     public SearchHits search(String index, String key, String value) {
@@ -335,64 +794,35 @@ public class SearchServiceImpl implements ISearchService {
         return searchHits;
     }
 
+    /**
+     * 删除标题匹配的全部文章，等待删除完成后返回实际删除的文档数
+     *
+     * @param titleName
+     * @return
+     */
     public long deleteArticle(String titleName) {
-        long deleteNum = 0l;
-
-        SearchHits searchHits = search("article-2019.08.08.03", "title", titleName);
-        System.out.println("Exxcute Start");
-        deleteCommon(searchHits);
-        //deleteAsync(searchHits);
-        System.out.println("Exxcute Done");
-        return deleteNum;
-
+        return deleteArticleCount(titleName).join();
     }
 
     /**
-     * 正常删除
+     * 删除标题匹配的全部文章，删除完成时返回删除数
      *
-     * @param searchHits
+     * @param titleName
+     * @return
      */
-    private void deleteCommon(SearchHits searchHits) {
-        DeleteRequest deleteRequest = new DeleteRequest();
-        for (SearchHit hit : searchHits.getHits()) {
-            deleteRequest = new DeleteRequest("article-2019.08.08.03", hit.getId());
-            try {
-                DeleteResponse deleteResponse = this.restHighLevelClient.delete(deleteRequest, RequestOptions.DEFAULT);
-                System.out.println("Delete Done【" + deleteResponse.getId() + "】,Status:【" + deleteResponse.status() + "】");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+    public CompletableFuture<Long> deleteArticleCount(String titleName) {
+        DeleteProgress progress = deleteArticleAsync(ARTICLE_INDEX, titleName);
+        return progress.getCompletion().thenApply(p -> p.getDeleted().get());
     }
 
     /**
-     * 异步删除
+     * 异步删除标题匹配的全部文章
      *
-     * @param searchHits
+     * @param index
+     * @param titleName
+     * @return 删除进度
      */
-    private void deleteAsync(SearchHits searchHits) {
-        DeleteRequest deleteRequest = new DeleteRequest();
-        for (SearchHit hit : searchHits.getHits()) {
-            deleteRequest = new DeleteRequest("article-2019.08.08.03", hit.getId());
-
-
-            //异步删除
-            this.restHighLevelClient.deleteAsync(deleteRequest, RequestOptions.DEFAULT, new ActionListener<DeleteResponse>() {
-                @Override
-                public void onResponse(DeleteResponse deleteResponse) {
-                    RestStatus restStatus = deleteResponse.status();
-                    int status = restStatus.getStatus();
-                    deleteResponse.getId();
-                    System.out.println("Delete Done【" + deleteResponse.getId() + "】,Status:【" + status + "】");
-                }
-
-                @Override
-                public void onFailure(Exception e) {
-                    e.printStackTrace();
-                    System.out.println("ERROR  " + hit.getId());
-                }
-            });
-        }
-
+    public DeleteProgress deleteArticleAsync(String index, String titleName) {
+        return bulkDeleteService.submit(index, QueryBuilders.matchPhraseQuery("title", titleName));
     }
 }
@@ -0,0 +1,147 @@
+package com.steven.topsail.demo.quickstart.suggest;
+
+import com.steven.topsail.demo.quickstart.feed.ChangeBatch;
+import com.steven.topsail.demo.quickstart.feed.ChangeFeed;
+import com.steven.topsail.demo.quickstart.feed.ChangedDocument;
+import com.steven.topsail.demo.quickstart.model.FunctionSuggestion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * sec_function 菜单联想
+ * <p>
+ * 订阅 sec_function 的变更（{@link ChangeFeed}），维护 FUNC_NAME / VIEWNAME 的内存前缀树，
+ * 新增、修改、删除的菜单随批次更新。每批变更生成新的前缀树整体替换，查询无锁、不访问 ES。
+ *
+ * @author Steven
+ * @date 2021-01-30
+ */
+@Slf4j
+@Component
+public class FunctionSuggester {
+
+    private static final String INDEX = "sec_function";
+
+    private static final Comparator<FunctionSuggestion> ORDER = Comparator
+        .comparingLong(FunctionSuggestion::getFuncLevel)
+        .thenComparingLong(FunctionSuggestion::getFunSeq)
+        .thenComparingInt(s -> null == s.getFuncName() ? Integer.MAX_VALUE : s.getFuncName().length());
+
+    @Value("${suggest.max-size:10}")
+    private int maxSize;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    /**
+     * 文档 id -> 菜单，只在变更订阅线程中修改
+     */
+    private final Map<String, FunctionSuggestion> functions = new HashMap<>();
+
+    private volatile SuggestTrie<FunctionSuggestion> trie;
+
+    @PostConstruct
+    public void init() {
+        changeFeed.register(INDEX, true, true, this::apply);
+    }
+
+    /**
+     * 按前缀联想，尚未加载完成时返回空列表
+     *
+     * @param prefix
+     * @param size
+     * @return
+     */
+    public List<FunctionSuggestion> suggest(String prefix, int size) {
+        SuggestTrie<FunctionSuggestion> current = trie;
+        if (null == current || null == prefix) {
+            return Collections.emptyList();
+        }
+        return current.lookup(normalize(prefix), Math.min(size, maxSize));
+    }
+
+    public int size() {
+        SuggestTrie<FunctionSuggestion> current = trie;
+        return null == current ? 0 : current.size();
+    }
+
+    /**
+     * 立即从 ES 全量同步
+     *
+     * @throws IOException
+     */
+    public void fullRefresh() throws IOException {
+        long start = System.currentTimeMillis();
+        changeFeed.resync(INDEX);
+        log.info("菜单联想全量同步完成，菜单数: {}，耗时: {} ms", size(), System.currentTimeMillis() - start);
+    }
+
+    private synchronized void apply(ChangeBatch batch) {
+        boolean modified = false;
+        for (ChangedDocument document : batch.getUpserts()) {
+            FunctionSuggestion suggestion = toSuggestion(document.getSource());
+            if (!suggestion.equals(functions.put(document.getId(), suggestion))) {
+                modified = true;
+            }
+        }
+        for (String id : batch.getDeletes()) {
+            if (null != functions.remove(id)) {
+                modified = true;
+            }
+        }
+        if (modified || null == trie) {
+            rebuild();
+            log.debug("菜单联想更新，{} 新增/修改: {}，删除: {}，菜单数: {}",
+                batch.getType(), batch.getUpserts().size(), batch.getDeletes().size(), functions.size());
+        }
+    }
+
+    private void rebuild() {
+        List<FunctionSuggestion> entries = new ArrayList<>(functions.values());
+        List<String[]> keys = new ArrayList<>(entries.size());
+        for (FunctionSuggestion entry : entries) {
+            keys.add(new String[]{normalize(entry.getFuncName()), normalize(entry.getViewName())});
+        }
+        trie = SuggestTrie.build(entries, keys, ORDER, maxSize);
+    }
+
+    private static FunctionSuggestion toSuggestion(Map<String, Object> source) {
+        return new FunctionSuggestion(
+            asString(source.get("FUNC_ID")),
+            asString(source.get("FUNC_NAME")),
+            asString(source.get("VIEWNAME")),
+            asLong(source.get("FUNC_LEVEL")),
+            asLong(source.get("FUN_SEQ")));
+    }
+
+    private static String normalize(String value) {
+        return null == value ? null : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String asString(Object value) {
+        return null == value ? null : value.toString();
+    }
+
+    private static long asLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return null == value ? Long.MAX_VALUE : Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
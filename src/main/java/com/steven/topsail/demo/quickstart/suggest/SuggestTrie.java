@@ -0,0 +1,142 @@
+package com.steven.topsail.demo.quickstart.suggest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 只读前缀树
+ * <p>
+ * 每个节点预先算好该前缀下排序最靠前的 K 个条目，查询时只需沿前缀走到节点直接返回，
+ * 耗时与候选数量无关。子节点按字符排序存放在数组中，二分查找。
+ *
+ * @author Steven
+ * @date 2021-01-30
+ */
+public final class SuggestTrie<T> {
+
+    private final Node root;
+    private final List<T> entries;
+
+    private SuggestTrie(Node root, List<T> entries) {
+        this.root = root;
+        this.entries = entries;
+    }
+
+    /**
+     * 查找以 prefix 开头的条目，按构建时的排序返回前 size 个
+     *
+     * @param prefix 已规范化（小写）的前缀
+     * @param size   不超过构建时的 K
+     * @return
+     */
+    public List<T> lookup(CharSequence prefix, int size) {
+        Node node = root;
+        for (int i = 0, len = prefix.length(); i < len && null != node; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        if (null == node || prefix.length() == 0) {
+            return Collections.emptyList();
+        }
+        int n = Math.min(size, node.top.length);
+        List<T> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(entries.get(node.top[i]));
+        }
+        return result;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 构建前缀树
+     *
+     * @param entries    全部条目
+     * @param keys       每个条目的检索键（已规范化）
+     * @param comparator 条目排序，越靠前越优先
+     * @param topK       每个节点保留的条目数
+     * @param <T>
+     * @return
+     */
+    public static <T> SuggestTrie<T> build(List<T> entries, List<String[]> keys, Comparator<T> comparator, int topK) {
+        BuildNode root = new BuildNode();
+        Comparator<Integer> order = (a, b) -> comparator.compare(entries.get(a), entries.get(b));
+        for (int i = 0; i < entries.size(); i++) {
+            for (String key : keys.get(i)) {
+                if (null == key) {
+                    continue;
+                }
+                BuildNode node = root;
+                for (int c = 0; c < key.length(); c++) {
+                    node = node.children.computeIfAbsent(key.charAt(c), k -> new BuildNode());
+                    node.offer(i, order, topK);
+                }
+            }
+        }
+        return new SuggestTrie<>(root.freeze(), new ArrayList<>(entries));
+    }
+
+    private static final class Node {
+        private final char[] keys;
+        private final Node[] children;
+        private final int[] top;
+
+        private Node(char[] keys, Node[] children, int[] top) {
+            this.keys = keys;
+            this.children = children;
+            this.top = top;
+        }
+
+        private Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    private static final class BuildNode {
+        private final Map<Character, BuildNode> children = new TreeMap<>();
+        private final List<Integer> top = new ArrayList<>(4);
+
+        /**
+         * 有序插入，保留前 topK 个；同一条目的多个键经过同一节点时只记一次
+         */
+        private void offer(int entry, Comparator<Integer> order, int topK) {
+            if (top.contains(entry)) {
+                return;
+            }
+            int pos = 0;
+            while (pos < top.size() && order.compare(top.get(pos), entry) <= 0) {
+                pos++;
+            }
+            if (pos >= topK) {
+                return;
+            }
+            top.add(pos, entry);
+            if (top.size() > topK) {
+                top.remove(top.size() - 1);
+            }
+        }
+
+        private Node freeze() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, BuildNode> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().freeze();
+                i++;
+            }
+            int[] ids = new int[top.size()];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = top.get(j);
+            }
+            return new Node(keys, nodes, ids);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.steven.topsail.demo.quickstart.tool;
+
+import com.steven.topsail.demo.quickstart.model.TnsConvertResult;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TNS 描述文件转 WD_DATASOURCE_URL 插入语句
+ * <p>
+ * 输入文件按块内存映射，块边界向后对齐到空行（即条目边界），各块由线程池并行解析；
+ * 主线程按块的顺序取回结果，攒够 batchSize 行输出一条 INSERT ALL，单次顺序写出。
+ * Oracle 限制一条 INSERT ALL 的 INTO 子句合计不超过 999 列，每行 3 列，batchSize 最大 333。
+ * 同时在途的块数有上限，内存占用与文件大小无关。
+ * <p>
+ * 条目之间以空行分隔，首行 = 之前为连接名（zz_ 前缀替换为 xt_），
+ * 从 (description 开始到条目结束为描述符，空白压缩后拼成 jdbc:oracle:thin:@ 连接串。
+ * 以 # 开头的注释行忽略，没有描述符的条目跳过并计数。
+ * <p>
+ * 用法：TnsToSqlConverter &lt;输入 .ora&gt; &lt;输出 .sql&gt; [每条 INSERT 的行数] [线程数]
+ *
+ * @author Steven
+ * @date 2021-02-03
+ */
+@Slf4j
+public class TnsToSqlConverter {
+
+    private static final String URL_PREFIX = "jdbc:oracle:thin:@";
+
+    private static final String DESCRIPTION = "(description";
+
+    private static final String INSERT_INTO = "  INTO WD_DATASOURCE_URL(URL_CODE, URL, STATE) VALUES('";
+
+    /**
+     * 每行插入的列数：URL_CODE、URL、STATE
+     */
+    private static final int COLUMNS = 3;
+
+    /**
+     * INSERT ALL 所有 INTO 子句合计最多 999 列（ORA-24335）
+     */
+    public static final int MAX_BATCH_SIZE = 999 / COLUMNS;
+
+    private static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final int batchSize;
+
+    private final int threads;
+
+    private final long chunkSize;
+
+    public TnsToSqlConverter(int batchSize, int threads) {
+        this(batchSize, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    public TnsToSqlConverter(int batchSize, int threads, long chunkSize) {
+        if (batchSize <= 0 || threads <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("batchSize、threads、chunkSize 必须大于 0");
+        }
+        if (batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batchSize 不能超过 " + MAX_BATCH_SIZE + "，Oracle 一条 INSERT ALL 最多 999 列");
+        }
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("用法: TnsToSqlConverter <输入 .ora> <输出 .sql> [每条 INSERT 的行数] [线程数]");
+            System.exit(1);
+        }
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : MAX_BATCH_SIZE;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        TnsConvertResult result = new TnsToSqlConverter(batchSize, threads).convert(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.println(result);
+    }
+
+    /**
+     * 转换
+     *
+     * @param input  TNS 描述文件
+     * @param output 生成的 SQL 文件，已存在时覆盖
+     * @return
+     * @throws IOException
+     */
+    public TnsConvertResult convert(Path input, Path output) throws IOException {
+        long start = System.currentTimeMillis();
+        if (null != output.getParent()) {
+            Files.createDirectories(output.getParent());
+        }
+
+        TnsConvertResult result = new TnsConvertResult();
+        result.setInput(input.toAbsolutePath().toString());
+        result.setOutput(output.toAbsolutePath().toString());
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+            r -> new Thread(r, "TnsToSql-" + threadNumber.incrementAndGet()));
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+             BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+
+            long size = channel.size();
+            result.setBytes(size);
+            SqlBatchWriter sql = new SqlBatchWriter(writer, batchSize);
+            Deque<Future<Chunk>> pending = new ArrayDeque<>();
+
+            long position = 0;
+            while (position < size) {
+                long end = size;
+                if (size - position > chunkSize) {
+                    end = alignToEntry(channel, position + chunkSize, size);
+                }
+                long chunkStart = position;
+                long chunkEnd = end;
+                pending.addLast(executor.submit(() -> parse(channel, chunkStart, chunkEnd)));
+                position = end;
+                result.setChunks(result.getChunks() + 1);
+
+                if (pending.size() >= threads * 2) {
+                    write(pending.removeFirst(), sql, result);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst(), sql, result);
+            }
+            sql.finish();
+            result.setStatements(sql.statements);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("转换被中断: " + input, e);
+        } catch (ExecutionException e) {
+            throw new IOException("转换失败: " + input, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        result.setCost(System.currentTimeMillis() - start);
+        log.info("TNS 转换完成，条目数: {}，跳过: {}，语句数: {}，耗时: {} ms",
+            result.getEntries(), result.getSkipped(), result.getStatements(), result.getCost());
+        return result;
+    }
+
+    private void write(Future<Chunk> future, SqlBatchWriter sql, TnsConvertResult result)
+        throws InterruptedException, ExecutionException, IOException {
+        Chunk chunk = future.get();
+        for (String[] row : chunk.rows) {
+            sql.add(row[0], row[1]);
+        }
+        result.setEntries(result.getEntries() + chunk.rows.size());
+        result.setSkipped(result.getSkipped() + chunk.skipped);
+    }
+
+    /**
+     * 从 from 开始向后找到第一个空行之后的位置，作为块边界
+     */
+    static long alignToEntry(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        boolean lineStart = false;
+        boolean blank = true;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if ('\n' == b) {
+                    if (lineStart && blank) {
+                        return position + i + 1;
+                    }
+                    // from 可能落在某行中间，从下一行开始判断
+                    lineStart = true;
+                    blank = true;
+                } else if (' ' != b && '\t' != b && '\r' != b) {
+                    blank = false;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * 解析 [start, end) 范围内的条目，范围的两端都是条目边界
+     */
+    static Chunk parse(FileChannel channel, long start, long end) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        Chunk chunk = new Chunk();
+        StringBuilder entry = new StringBuilder(512);
+        // 按字节切行（UTF-8 多字节字符不含 \n、\r），整行再按 UTF-8 解码，中文注释和连接名不会乱码
+        byte[] bytes = new byte[128];
+        while (buffer.hasRemaining()) {
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if ('\n' == b) {
+                    break;
+                }
+                if ('\r' != b) {
+                    if (length == bytes.length) {
+                        bytes = Arrays.copyOf(bytes, length << 1);
+                    }
+                    bytes[length++] = b;
+                }
+            }
+            String line = new String(bytes, 0, length, StandardCharsets.UTF_8);
+
+            if (isBlank(line)) {
+                chunk.add(entry);
+                entry.setLength(0);
+            } else if ('#' != firstNonWhitespace(line)) {
+                entry.append(line).append('\n');
+            }
+        }
+        chunk.add(entry);
+        return chunk;
+    }
+
+    /**
+     * 条目首行 = 之前为连接名，(description 起为描述符
+     *
+     * @return {连接名, 连接串}，不是合法条目时返回 null
+     */
+    static String[] toRow(CharSequence entry) {
+        String text = entry.toString();
+        int lineEnd = text.indexOf('\n');
+        String firstLine = lineEnd < 0 ? text : text.substring(0, lineEnd);
+        int eq = firstLine.indexOf('=');
+        int description = indexOfIgnoreCase(text, DESCRIPTION);
+        if (eq <= 0 || description < 0) {
+            return null;
+        }
+        String urlCode = firstLine.substring(0, eq).trim().replace("zz_", "xt_");
+        if (urlCode.isEmpty()) {
+            return null;
+        }
+        return new String[]{urlCode, URL_PREFIX + collapseWhitespace(text, description)};
+    }
+
+    private static String collapseWhitespace(String text, int from) {
+        StringBuilder buff = new StringBuilder(text.length() - from);
+        boolean space = false;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && buff.length() > 0) {
+                    buff.append(' ');
+                }
+                buff.append(c);
+                space = false;
+            }
+        }
+        return buff.toString();
+    }
+
+    private static int indexOfIgnoreCase(String text, String target) {
+        for (int i = 0, last = text.length() - target.length(); i <= last; i++) {
+            if (text.regionMatches(true, i, target, 0, target.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(CharSequence line) {
+        return firstNonWhitespace(line) < 0;
+    }
+
+    private static int firstNonWhitespace(CharSequence line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (' ' != c && '\t' != c) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    static final class Chunk {
+        private final List<String[]> rows = new ArrayList<>();
+        private int skipped;
+
+        private void add(StringBuilder entry) {
+            if (0 == entry.length()) {
+                return;
+            }
+            String[] row = toRow(entry);
+            if (null == row) {
+                skipped++;
+                log.warn("跳过无法解析的条目: {}", entry.length() > 80 ? entry.substring(0, 80) + "..." : entry);
+            } else {
+                rows.add(row);
+            }
+        }
+    }
+
+    /**
+     * Oracle 多行插入：INSERT ALL INTO ... VALUES (...) ... SELECT 1 FROM DUAL;
+     */
+    private static final class SqlBatchWriter {
+        private final Writer writer;
+        private final int batchSize;
+        private int rows;
+        private long statements;
+
+        private SqlBatchWriter(Writer writer, int batchSize) {
+            this.writer = writer;
+            this.batchSize = batchSize;
+        }
+
+        private void add(String urlCode, String url) throws IOException {
+            if (0 == rows) {
+                writer.write("INSERT ALL\n");
+            }
+            writer.write(INSERT_INTO);
+            writeLiteral(urlCode);
+            writer.write("', '");
+            writeLiteral(url);
+            writer.write("', 'U')\n");
+            if (++rows == batchSize) {
+                finish();
+            }
+        }
+
+        private void finish() throws IOException {
+            if (rows > 0) {
+                writer.write("SELECT 1 FROM DUAL;\n");
+                rows = 0;
+                statements++;
+            }
+        }
+
+        private void writeLiteral(String value) throws IOException {
+            if (value.indexOf('\'') < 0) {
+                writer.write(value);
+            } else {
+                writer.write(value.replace("'", "''"));
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.steven.topsail.demo.quickstart.util;
+
+/**
+ * 包路径简写，每段取首字母：com.steven.topsail.Demo -> @c.s.t.D
+ * <p>
+ * 用于日志、指标的 key，同一批类名、包名会被反复简写，因此带一个定长的两路组相联缓存：
+ * 按名称的 hash 定位槽位（及其相邻槽位），命中时直接复用已生成的结果，写入调用方提供的 StringBuilder / char[]
+ * 不产生任何对象；未命中时计算并覆盖该槽位。缓存大小固定，不会随名称数量增长。
+ * <p>
+ * 与 GenerateKeyTest 中原来的实现相比，连续的点、开头或结尾的点都按空段跳过，不会越界。
+ *
+ * @author Steven
+ * @date 2021-02-02
+ */
+public final class PackageAbbreviator {
+
+    /**
+     * 默认实例，4096 个槽位
+     */
+    public static final PackageAbbreviator DEFAULT = new PackageAbbreviator(4096);
+
+    private static final char PREFIX = '@';
+
+    private static final char SEPARATOR = '.';
+
+    /**
+     * 槽位中的 Entry 只有 final 字段，无锁读写也能看到完整对象；并发覆盖只会导致一次额外的计算
+     */
+    private final Entry[] table;
+
+    private final int mask;
+
+    /**
+     * @param capacity 缓存槽位数，向上取整为 2 的幂，至少 2
+     */
+    public PackageAbbreviator(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity 必须大于 0: " + capacity);
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, 2));
+        if (size < Math.max(capacity, 2)) {
+            size <<= 1;
+        }
+        this.table = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 简写，命中缓存时返回同一个 String 实例
+     *
+     * @param name 包名或类的全限定名
+     * @return
+     */
+    public String abbreviate(String name) {
+        if (null == name) {
+            return String.valueOf(PREFIX);
+        }
+        int slot = slot(name);
+        Entry entry = table[slot];
+        if (null != entry && name.equals(entry.name)) {
+            return entry.abbreviation;
+        }
+        Entry neighbor = table[slot ^ 1];
+        if (null != neighbor && name.equals(neighbor.name)) {
+            return neighbor.abbreviation;
+        }
+        String abbreviation = compute(name);
+        if (null != entry) {
+            // 两路组相联：原槽位的结果挪到相邻槽位，新结果放在原槽位
+            table[slot ^ 1] = entry;
+        }
+        table[slot] = new Entry(name, abbreviation);
+        return abbreviation;
+    }
+
+    /**
+     * 简写并追加到 out
+     *
+     * @param name
+     * @param out
+     * @return out
+     */
+    public StringBuilder abbreviate(String name, StringBuilder out) {
+        return out.append(abbreviate(name));
+    }
+
+    /**
+     * 简写并写入 dest
+     *
+     * @param name
+     * @param dest
+     * @param offset 写入的起始位置
+     * @return 写入的字符数
+     * @throws IndexOutOfBoundsException dest 剩余空间不足
+     */
+    public int abbreviate(String name, char[] dest, int offset) {
+        String abbreviation = abbreviate(name);
+        int length = abbreviation.length();
+        if (offset < 0 || offset + length > dest.length) {
+            throw new IndexOutOfBoundsException("需要 " + length + " 个字符，offset: " + offset + "，容量: " + dest.length);
+        }
+        abbreviation.getChars(0, length, dest, offset);
+        return length;
+    }
+
+    /**
+     * 不经缓存直接简写，追加到 out
+     *
+     * @param name
+     * @param out
+     * @return out
+     */
+    public static StringBuilder appendAbbreviation(CharSequence name, StringBuilder out) {
+        out.append(PREFIX);
+        boolean segmentStart = true;
+        boolean first = true;
+        for (int i = 0, length = name.length(); i < length; i++) {
+            char c = name.charAt(i);
+            if (SEPARATOR == c) {
+                segmentStart = true;
+            } else if (segmentStart) {
+                if (!first) {
+                    out.append(SEPARATOR);
+                }
+                out.append(c);
+                segmentStart = false;
+                first = false;
+            }
+        }
+        return out;
+    }
+
+    private int slot(String name) {
+        int h = name.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static String compute(String name) {
+        return appendAbbreviation(name, new StringBuilder(name.length() / 2 + 2)).toString();
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final String abbreviation;
+
+        private Entry(String name, String abbreviation) {
+            this.name = name;
+            this.abbreviation = abbreviation;
+        }
+    }
+}
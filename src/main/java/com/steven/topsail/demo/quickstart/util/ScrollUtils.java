@@ -0,0 +1,78 @@
+package com.steven.topsail.demo.quickstart.util;
+
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * scroll 遍历工具类
+ *
+ * @author Steven
+ * @date 2021-01-28
+ */
+public final class ScrollUtils {
+
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private ScrollUtils() {
+    }
+
+    /**
+     * 按 _doc 顺序遍历索引的全部文档 id，不取 _source
+     *
+     * @param client
+     * @param index
+     * @param consumer
+     * @return 遍历的文档数
+     * @throws IOException
+     */
+    public static long scanIds(RestHighLevelClient client, String index, Consumer<String> consumer) throws IOException {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+            .query(QueryBuilders.matchAllQuery())
+            .fetchSource(false)
+            .size(5000)
+            .sort("_doc", SortOrder.ASC);
+        return scan(client, new SearchRequest(index).source(searchSourceBuilder), hit -> consumer.accept(hit.getId()));
+    }
+
+    /**
+     * 按 scroll 遍历查询的全部命中
+     *
+     * @param client
+     * @param searchRequest
+     * @param consumer
+     * @return 遍历的文档数
+     * @throws IOException
+     */
+    public static long scan(RestHighLevelClient client, SearchRequest searchRequest, Consumer<SearchHit> consumer) throws IOException {
+        long scanned = 0;
+        SearchResponse response = client.search(searchRequest.scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
+        String scrollId = response.getScrollId();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    consumer.accept(hit);
+                }
+                scanned += response.getHits().getHits().length;
+                response = client.scroll(new SearchScrollRequest(scrollId).scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
+                scrollId = response.getScrollId();
+            }
+        } finally {
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+        }
+        return scanned;
+    }
+}
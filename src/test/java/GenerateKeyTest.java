@@ -1,3 +1,4 @@
+import com.steven.topsail.demo.quickstart.util.PackageAbbreviator;
 import org.apache.commons.lang3.RandomStringUtils;
 
 import java.util.ArrayList;
@@ -35,18 +36,7 @@ public class GenerateKeyTest {
         List<String> list2 = new ArrayList<>(10000);
         start = System.currentTimeMillis();
         for (String packageName : list) {
-            StringBuilder buff = new StringBuilder(packageName.length() * 2);
-            char[] chars = packageName.toCharArray();
-
-            buff.append("@").append(chars[0]);
-            for (int i = 1; i < chars.length; i++) {
-                if ('.' == chars[i]) {
-                    char c = chars[i + 1];
-                    buff.append('.').append(c);
-                    i++;
-                }
-            }
-            list2.add(buff.toString());
+            list2.add(PackageAbbreviator.DEFAULT.abbreviate(packageName));
         }
         System.out.println("简化1W个包路径耗时: " + (System.currentTimeMillis() - start) + "ms");
     }